@@ -0,0 +1,108 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+import hudson.FilePath;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.directory.InvalidAttributesException;
+
+import org.apache.commons.lang.StringUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Java serialization of the payload sent to the agent on every build, with a realistic build environment.
+ * The serialized size is printed once per trial.
+ *
+ * <p>
+ * The environment is sent as a diff against the agent environment, here the build variables on top of
+ * {@code envSize} agent variables. The build listener is left out: it can only be serialized on a remoting channel.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+@SuppressWarnings("javadoc")
+public class CallableSerializationBenchmark {
+
+    @Param({ "40", "200" })
+    public int envSize;
+
+    private SeleneseRunnerCallable callable;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InvalidAttributesException {
+        SeleneseRunnerBuilder builder = new SeleneseRunnerBuilder("tests/**/*.html", "firefox", true, true, "screenshot",
+            "http://localhost:8080/", "junitresult", "1024x768", "");
+        FilePath workspace = new FilePath(new File("/var/lib/jenkins/workspace/selenese-smoke"));
+
+        Map<String, String> agentEnv = environment(envSize);
+        Map<String, String> buildEnv = new TreeMap<String, String>(agentEnv);
+        buildEnv.putAll(buildVariables());
+
+        SeleneseRunSpec spec = new SeleneseRunSpec(builder, builder.getBrowser(), workspace.child("screenshot").getRemote(), workspace.child(
+            "junitresult").getRemote(), workspace.getRemote(), Arrays.asList(Arrays.asList(workspace.child(
+            "tests/case.html").getRemote())), null, null, 0, null, EnvironmentDiff.of(agentEnv, buildEnv));
+        callable = new SeleneseRunnerCallable(spec, null);
+
+        System.out.println("payload bytes: " + serialize().length);
+    }
+
+    @Benchmark
+    public byte[] serialize() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(callable);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    static Map<String, String> buildVariables() {
+        Map<String, String> env = new TreeMap<String, String>();
+        env.put("BUILD_NUMBER", "1234");
+        env.put("BUILD_ID", "2013-08-01_12-34-56");
+        env.put("BUILD_TAG", "jenkins-selenese-smoke-1234");
+        env.put("BUILD_URL", "http://jenkins.example.com/job/selenese-smoke/1234/");
+        env.put("JOB_NAME", "selenese-smoke");
+        env.put("JOB_URL", "http://jenkins.example.com/job/selenese-smoke/");
+        env.put("JENKINS_URL", "http://jenkins.example.com/");
+        env.put("NODE_NAME", "linux-agent-07");
+        env.put("NODE_LABELS", "linux firefox chrome phantomjs");
+        env.put("EXECUTOR_NUMBER", "3");
+        env.put("WORKSPACE", "/var/lib/jenkins/workspace/selenese-smoke");
+        return env;
+    }
+
+    /**
+     * An agent environment: a long PATH and node specific variables.
+     */
+    static Map<String, String> environment(int size) {
+        Map<String, String> env = new TreeMap<String, String>();
+        env.put("HOME", "/var/lib/jenkins");
+        env.put("DISPLAY", ":99");
+        env.put("PATH", StringUtils.repeat("/opt/tools/bin:", 30) + "/usr/local/bin:/usr/bin:/bin");
+        for (int i = env.size(); i < size; i++) {
+            env.put("AGENT_VARIABLE_" + i, StringUtils.repeat("value" + i + " ", 6));
+        }
+        return env;
+    }
+}
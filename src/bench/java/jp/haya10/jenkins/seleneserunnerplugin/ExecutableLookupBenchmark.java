@@ -0,0 +1,110 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.io.Files;
+
+/**
+ * Looking up chromedriver on synthetic PATHs of varying size, with chromedriver in the last directory.
+ *
+ * <p>
+ * {@code listFiles} is the lookup {@link PathUtils#searchExecutableFile(String)} did before
+ * {@link ExecutableResolver}, {@code findAll} is what it does now, {@code resolve} is the cached lookup used by builds.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+@SuppressWarnings("javadoc")
+public class ExecutableLookupBenchmark {
+
+    private static final int FILES_PER_DIR = 50;
+
+    @Param({ "10", "100", "1000" })
+    public int dirs;
+
+    private File root;
+
+    private String path;
+
+    private ExecutableResolver resolver;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        root = Files.createTempDir();
+        List<String> entries = new ArrayList<String>();
+        for (int i = 0; i < dirs; i++) {
+            File dir = new File(root, "bin" + i);
+            for (int j = 0; j < FILES_PER_DIR; j++) {
+                FileUtils.touch(new File(dir, "tool" + j));
+            }
+            entries.add(dir.getPath());
+        }
+        File chromedriver = new File(root, "bin" + (dirs - 1) + "/chromedriver");
+        FileUtils.touch(chromedriver);
+        chromedriver.setExecutable(true);
+
+        StringBuilder buf = new StringBuilder();
+        for (String entry : entries) {
+            if (buf.length() > 0)
+                buf.append(File.pathSeparator);
+            buf.append(entry);
+        }
+        path = buf.toString();
+        resolver = new ExecutableResolver();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(root);
+    }
+
+    @Benchmark
+    public List<File> listFiles() {
+        List<File> result = new ArrayList<File>();
+        for (String entry : path.split(Pattern.quote(File.pathSeparator))) {
+            File[] files = new File(entry).listFiles();
+            if (files != null)
+                result.addAll(Arrays.asList(files));
+        }
+        List<File> matches = new ArrayList<File>();
+        for (File file : result) {
+            if (file.canExecute() && file.getName().equals("chromedriver"))
+                matches.add(file);
+        }
+        return matches;
+    }
+
+    @Benchmark
+    public List<File> findAll() {
+        return ExecutableResolver.findAll("chromedriver", path);
+    }
+
+    @Benchmark
+    public File resolve() {
+        return resolver.resolve("chromedriver", path);
+    }
+}
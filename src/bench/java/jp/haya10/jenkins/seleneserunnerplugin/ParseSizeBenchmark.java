@@ -0,0 +1,42 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.directory.InvalidAttributesException;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link SeleneseRunnerBuilder#parseSize(String)}, which runs on every configuration load and build.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+@SuppressWarnings("javadoc")
+public class ParseSizeBenchmark {
+
+    @Param({ "1024x768", "1x1", "1024x" })
+    public String size;
+
+    @Benchmark
+    public Pair<Integer, Integer> parseSize() {
+        try {
+            return SeleneseRunnerBuilder.parseSize(size);
+        } catch (InvalidAttributesException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+
+/**
+ * Parsing the selenese HTML test resources with {@link SeleneseScripts}, as the pre-flight check and the suite
+ * expansion do on the workspace. The parse of selenese-runner that runs the test cases is not measured here.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+@SuppressWarnings("javadoc")
+public class SeleneseScriptsParseBenchmark {
+
+    @Param({ "Simple", "Suite" })
+    public String script;
+
+    private File file;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        file = new File(TestUtils.getScriptFile(SeleneseRunnerBuilderTest.class, script));
+    }
+
+    @Benchmark
+    public Document parse() throws IOException {
+        return SeleneseScripts.parse(file);
+    }
+}
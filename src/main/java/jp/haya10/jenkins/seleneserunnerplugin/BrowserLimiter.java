@@ -0,0 +1,137 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the browsers running at the same time in the agent JVM, across all builds and jobs on the node.
+ *
+ * <p>
+ * Browser sessions take a slot of a fair semaphore, so builds waiting for a slot get one in the order they
+ * asked for it. The limit is set per node with {@link SeleneseRunnerNodeProperty#getMaxBrowsers()}; without
+ * one it is derived from the processors and the physical memory of the node, allowing
+ * <tt>jp.haya10.jenkins.seleneserunnerplugin.BrowserLimiter.memoryPerBrowser</tt> megabytes (1024 by default)
+ * to each browser.
+ *
+ * <p>
+ * The limiter belongs to the agent JVM. Runs in the {@link RunnerDaemon} take their slots here too, all of
+ * them for the whole run, before the run is handed to the daemon; so runs in the agent JVM and in the daemon
+ * share the limit of the node.
+ */
+public class BrowserLimiter {
+
+    static final long MEMORY_PER_BROWSER = Long.getLong(BrowserLimiter.class.getName() + ".memoryPerBrowser", 1024)
+        * 1024 * 1024;
+
+    private static final BrowserLimiter INSTANCE = new BrowserLimiter(getDefaultLimit());
+
+    public static BrowserLimiter getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * A semaphore whose number of permits can be lowered while permits are taken.
+     */
+    private static class Slots extends Semaphore {
+        private static final long serialVersionUID = 1L;
+
+        Slots(int permits) {
+            super(permits, true);
+        }
+
+        @Override
+        public void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+
+    private final Slots slots;
+
+    private int limit;
+
+    BrowserLimiter(int limit) {
+        this.limit = Math.max(1, limit);
+        this.slots = new Slots(this.limit);
+    }
+
+    /**
+     * @param limit
+     *      browsers allowed at the same time, 0 or less for the default of the node.
+     */
+    public synchronized void setLimit(int limit) {
+        limit = limit > 0 ? limit : getDefaultLimit();
+        if (limit > this.limit) {
+            slots.release(limit - this.limit);
+        } else if (limit < this.limit) {
+            //sessions over the new limit keep their slot until they end.
+            slots.reducePermits(this.limit - limit);
+        }
+        this.limit = limit;
+    }
+
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Waits for a slot, behind the sessions that asked earlier, until one is free or the thread is interrupted.
+     */
+    public void acquire() throws InterruptedException {
+        slots.acquire();
+    }
+
+    /**
+     * Waits for several slots at once, behind the sessions that asked earlier.
+     *
+     * @return the slots taken, at most the limit, to give back with {@link #release(int)}.
+     */
+    public int acquire(int count) throws InterruptedException {
+        int taken;
+        synchronized (this) {
+            taken = Math.max(1, Math.min(count, limit));
+        }
+        slots.acquire(taken);
+        return taken;
+    }
+
+    /**
+     * Waits up to the timeout for a slot, behind the sessions that asked earlier.
+     */
+    public boolean tryAcquire(long timeout, TimeUnit unit) throws InterruptedException {
+        return slots.tryAcquire(timeout, unit);
+    }
+
+    public void release() {
+        slots.release();
+    }
+
+    public void release(int count) {
+        slots.release(count);
+    }
+
+    /**
+     * @return number of slots taken, which may be over the limit for a while after it was lowered.
+     */
+    public synchronized int getUsed() {
+        return limit - slots.availablePermits();
+    }
+
+    /**
+     * @return number of sessions waiting for a slot.
+     */
+    public int getQueueLength() {
+        return slots.getQueueLength();
+    }
+
+    static int getDefaultLimit() {
+        int processors = Runtime.getRuntime().availableProcessors();
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            long memory = ((com.sun.management.OperatingSystemMXBean) os).getTotalPhysicalMemorySize();
+            return (int) Math.max(1, Math.min(processors, memory / MEMORY_PER_BROWSER));
+        }
+        return Math.max(1, processors);
+    }
+}
@@ -0,0 +1,533 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * HTTP proxy between the browser and the application under test that keeps static responses in memory,
+ * so that test cases and builds on the node do not download the same assets again.
+ *
+ * <p>
+ * Only GET requests whose URL matches one of the rules (regular expressions) are cached, and only successful
+ * responses without <tt>Cache-Control: no-store</tt> or <tt>private</tt>, without cookies and without
+ * <tt>Vary</tt>, since the cache is keyed by URL only and shared by the builds of all jobs on the node.
+ * Requests with <tt>Cookie</tt> or <tt>Authorization</tt> headers neither use nor fill the cache, so that
+ * content of a logged-in user is not served to others. Entries expire
+ * after {@link #MAX_AGE} milliseconds, and the least recently used ones are evicted beyond {@link #MAX_BYTES}.
+ * Responses over {@link #MAX_ENTRY_BYTES} are not kept.
+ * Other requests, and HTTPS through <tt>CONNECT</tt>, go through unchanged.
+ *
+ * <p>
+ * One cache runs per set of rules in the JVM running selenese. Each run leases a loopback {@link Port} of it,
+ * which counts the requests of that run only, even while other runs use the same cache. A released port is
+ * leased again before new ones, so that pooled browsers set up for it keep being used.
+ *
+ * <p>
+ * Browsers do not send requests for <tt>localhost</tt> or <tt>127.0.0.1</tt> to a proxy, so responses of an
+ * application under test on these addresses are not cached.
+ */
+public class CachingProxy {
+
+    private static final Logger LOGGER = Logger.getLogger(CachingProxy.class.getName());
+
+    public static final long MAX_BYTES = Long.getLong(CachingProxy.class.getName() + ".maxBytes", 64 * 1024 * 1024);
+
+    public static final long MAX_ENTRY_BYTES = Long.getLong(CachingProxy.class.getName() + ".maxEntryBytes",
+        4 * 1024 * 1024);
+
+    public static final long MAX_AGE = Long.getLong(CachingProxy.class.getName() + ".maxAge",
+        TimeUnit.MINUTES.toMillis(30));
+
+    /**
+     * Headers of a single connection, not forwarded.
+     */
+    private static final Set<String> HOP_BY_HOP = new HashSet<String>(Arrays.asList("connection", "keep-alive",
+        "proxy-connection", "proxy-authenticate", "proxy-authorization", "te", "trailer", "transfer-encoding",
+        "upgrade", "host", "content-length"));
+
+    private static final Map<List<String>, CachingProxy> INSTANCES = new HashMap<List<String>, CachingProxy>();
+
+    /**
+     * @return the proxy for the rules, created if needed.
+     */
+    public static CachingProxy of(List<String> rules) throws IOException {
+        synchronized (INSTANCES) {
+            CachingProxy proxy = INSTANCES.get(rules);
+            if (proxy == null) {
+                proxy = new CachingProxy(rules, MAX_BYTES, MAX_ENTRY_BYTES, MAX_AGE);
+                INSTANCES.put(new ArrayList<String>(rules), proxy);
+            }
+            return proxy;
+        }
+    }
+
+    private static class Entry {
+        final int status;
+        final String reason;
+        final List<String[]> headers;
+        final byte[] body;
+        final long stored;
+
+        Entry(int status, String reason, List<String[]> headers, byte[] body) {
+            this.status = status;
+            this.reason = reason;
+            this.headers = headers;
+            this.body = body;
+            this.stored = System.currentTimeMillis();
+        }
+    }
+
+    private final List<Pattern> rules = new ArrayList<Pattern>();
+
+    private final long maxBytes;
+
+    private final long maxEntryBytes;
+
+    private final long maxAge;
+
+    /**
+     * Entries by URL, the least recently used first.
+     */
+    private final LinkedHashMap<String, Entry> cache = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    private long bytes;
+
+    /**
+     * Ports not leased, the last released first.
+     */
+    private final LinkedList<Port> free = new LinkedList<Port>();
+
+    private final List<Port> ports = new ArrayList<Port>();
+
+    CachingProxy(List<String> rules, long maxBytes, long maxEntryBytes, long maxAge) throws IOException {
+        for (String rule : rules) {
+            try {
+                this.rules.add(Pattern.compile(rule));
+            } catch (PatternSyntaxException e) {
+                throw new IOException("invalid proxy cache rule : " + e.getMessage());
+            }
+        }
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxEntryBytes;
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * A loopback port of the proxy, leased by one run at a time.
+     */
+    public class Port {
+        private final ServerSocket server;
+
+        private final AtomicLong hits = new AtomicLong();
+
+        private final AtomicLong misses = new AtomicLong();
+
+        private final AtomicLong bytesSaved = new AtomicLong();
+
+        Port() throws IOException {
+            this.server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        }
+
+        void start() {
+            Thread acceptor = new Thread("CachingProxy " + getAddress()) {
+                @Override
+                public void run() {
+                    while (true) {
+                        final Socket socket;
+                        try {
+                            socket = server.accept();
+                        } catch (IOException e) {
+                            return;
+                        }
+                        Thread handler = new Thread("CachingProxy connection " + socket.getPort()) {
+                            @Override
+                            public void run() {
+                                handle(socket, Port.this);
+                            }
+                        };
+                        handler.setDaemon(true);
+                        handler.start();
+                    }
+                }
+            };
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        /**
+         * @return host and port, as set in {@code DriverOption.PROXY}.
+         */
+        public String getAddress() {
+            return "127.0.0.1:" + server.getLocalPort();
+        }
+
+        /**
+         * @return hits, misses of cacheable requests, and bytes served from the cache, since the port was leased.
+         */
+        public long[] getStats() {
+            return new long[] { hits.get(), misses.get(), bytesSaved.get() };
+        }
+    }
+
+    /**
+     * @return a port for one run, to give back with {@link #release(Port)}.
+     */
+    public Port lease() throws IOException {
+        synchronized (free) {
+            Port port = free.poll();
+            if (port == null) {
+                port = new Port();
+                port.start();
+                ports.add(port);
+            }
+            port.hits.set(0);
+            port.misses.set(0);
+            port.bytesSaved.set(0);
+            return port;
+        }
+    }
+
+    public void release(Port port) {
+        synchronized (free) {
+            free.addFirst(port);
+        }
+    }
+
+    /**
+     * @return address of the port the next run leases, unless another run leases it first.
+     */
+    public String getNextAddress() throws IOException {
+        Port port = lease();
+        release(port);
+        return port.getAddress();
+    }
+
+    void close() throws IOException {
+        synchronized (free) {
+            for (Port port : ports) {
+                port.server.close();
+            }
+        }
+    }
+
+    boolean isCacheable(String method, String url) {
+        if (!"GET".equals(method))
+            return false;
+        for (Pattern rule : rules) {
+            if (rule.matcher(url).find())
+                return true;
+        }
+        return false;
+    }
+
+    private synchronized Entry get(String url) {
+        Entry entry = cache.get(url);
+        if (entry != null && System.currentTimeMillis() - entry.stored > maxAge) {
+            cache.remove(url);
+            bytes -= entry.body.length;
+            return null;
+        }
+        return entry;
+    }
+
+    private synchronized void put(String url, Entry entry) {
+        Entry old = cache.put(url, entry);
+        if (old != null)
+            bytes -= old.body.length;
+        bytes += entry.body.length;
+        for (Iterator<Entry> it = cache.values().iterator(); bytes > maxBytes && it.hasNext();) {
+            bytes -= it.next().body.length;
+            it.remove();
+        }
+    }
+
+    private void handle(Socket socket, Port port) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            while (true) {
+                String requestLine = readLine(in);
+                if (StringUtils.isEmpty(requestLine))
+                    return;
+                String[] request = StringUtils.split(requestLine, ' ');
+                List<String[]> headers = readHeaders(in);
+                if (request.length != 3) {
+                    writeError(out, 400, "Bad Request", false);
+                    return;
+                }
+                if ("CONNECT".equals(request[0])) {
+                    tunnel(socket, in, out, request[1]);
+                    return;
+                }
+                boolean keepAlive = "HTTP/1.1".equals(request[2])
+                    && !"close".equalsIgnoreCase(header(headers, "Connection"))
+                    && !"close".equalsIgnoreCase(header(headers, "Proxy-Connection"));
+                if (header(headers, "Transfer-Encoding") != null) {
+                    writeError(out, 411, "Length Required", false);
+                    return;
+                }
+                byte[] body = new byte[Integer.parseInt(StringUtils.defaultIfEmpty(header(headers, "Content-Length"),
+                    "0"))];
+                IOUtils.readFully(in, body);
+
+                keepAlive = serve(request[0], request[1], headers, body, out, keepAlive, port);
+                out.flush();
+                if (!keepAlive)
+                    return;
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "proxy connection failed", e);
+        } catch (NumberFormatException e) {
+            LOGGER.log(Level.FINE, "invalid Content-Length", e);
+        } finally {
+            IOUtils.closeQuietly(socket);
+        }
+    }
+
+    /**
+     * @return whether the connection can take another request.
+     */
+    private boolean serve(String method, String url, List<String[]> headers, byte[] body, OutputStream out,
+        boolean keepAlive, Port port) throws IOException {
+        if (!url.startsWith("http://")) {
+            writeError(out, 400, "Bad Request", keepAlive);
+            return keepAlive;
+        }
+        boolean cacheable = isCacheable(method, url) && isAnonymous(headers);
+        if (cacheable) {
+            Entry entry = get(url);
+            if (entry != null) {
+                port.hits.incrementAndGet();
+                port.bytesSaved.addAndGet(entry.body.length);
+                writeHead(out, entry.status, entry.reason, entry.headers, "HIT", keepAlive);
+                out.write(("Content-Length: " + entry.body.length + "\r\n\r\n").getBytes("ISO-8859-1"));
+                out.write(entry.body);
+                return keepAlive;
+            }
+            port.misses.incrementAndGet();
+        }
+
+        HttpURLConnection connection;
+        int status;
+        String reason;
+        try {
+            connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setInstanceFollowRedirects(false);
+            connection.setUseCaches(false);
+            connection.setRequestMethod(method);
+            for (String[] header : headers) {
+                if (!HOP_BY_HOP.contains(header[0].toLowerCase()))
+                    connection.addRequestProperty(header[0], header[1]);
+            }
+            if (body.length > 0) {
+                connection.setDoOutput(true);
+                connection.setFixedLengthStreamingMode(body.length);
+                OutputStream upstream = connection.getOutputStream();
+                upstream.write(body);
+                upstream.close();
+            }
+            status = connection.getResponseCode();
+            reason = StringUtils.defaultString(connection.getResponseMessage());
+        } catch (IOException e) {
+            writeError(out, 502, "Bad Gateway", keepAlive);
+            return keepAlive;
+        }
+
+        List<String[]> responseHeaders = new ArrayList<String[]>();
+        for (int i = 1; connection.getHeaderFieldKey(i) != null; i++) {
+            if (!HOP_BY_HOP.contains(connection.getHeaderFieldKey(i).toLowerCase()))
+                responseHeaders.add(new String[] { connection.getHeaderFieldKey(i), connection.getHeaderField(i) });
+        }
+        InputStream response = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+        try {
+            if (response == null || "HEAD".equals(method) || status == 204 || status == 304) {
+                writeHead(out, status, reason, responseHeaders, cacheable ? "MISS" : null, keepAlive);
+                out.write("Content-Length: 0\r\n\r\n".getBytes("ISO-8859-1"));
+                return keepAlive;
+            }
+
+            if (cacheable && status == 200 && isStorable(responseHeaders)) {
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                long copied = IOUtils.copyLarge(response, buffer, 0, maxEntryBytes + 1);
+                if (copied <= maxEntryBytes) {
+                    byte[] content = buffer.toByteArray();
+                    put(url, new Entry(status, reason, responseHeaders, content));
+                    writeHead(out, status, reason, responseHeaders, "MISS", keepAlive);
+                    out.write(("Content-Length: " + content.length + "\r\n\r\n").getBytes("ISO-8859-1"));
+                    out.write(content);
+                    return keepAlive;
+                }
+                response = new SequenceInputStream(new ByteArrayInputStream(buffer.toByteArray()), response);
+            }
+
+            //streamed in chunks, or until the connection closes for HTTP/1.0 clients.
+            writeHead(out, status, reason, responseHeaders, cacheable ? "MISS" : null, keepAlive);
+            if (!keepAlive) {
+                out.write("\r\n".getBytes("ISO-8859-1"));
+                IOUtils.copy(response, out);
+                return false;
+            }
+            out.write("Transfer-Encoding: chunked\r\n\r\n".getBytes("ISO-8859-1"));
+            byte[] chunk = new byte[8192];
+            int n;
+            while ((n = response.read(chunk)) >= 0) {
+                if (n == 0)
+                    continue;
+                out.write((Integer.toHexString(n) + "\r\n").getBytes("ISO-8859-1"));
+                out.write(chunk, 0, n);
+                out.write("\r\n".getBytes("ISO-8859-1"));
+            }
+            out.write("0\r\n\r\n".getBytes("ISO-8859-1"));
+            return true;
+        } finally {
+            IOUtils.closeQuietly(response);
+        }
+    }
+
+    /**
+     * @return whether the request carries no credentials of a user.
+     */
+    static boolean isAnonymous(List<String[]> requestHeaders) {
+        return header(requestHeaders, "Cookie") == null && header(requestHeaders, "Authorization") == null;
+    }
+
+    static boolean isStorable(List<String[]> headers) {
+        for (String[] header : headers) {
+            if (header[0].equalsIgnoreCase("Set-Cookie") || header[0].equalsIgnoreCase("Vary"))
+                return false;
+            if (header[0].equalsIgnoreCase("Cache-Control")) {
+                String value = header[1].toLowerCase();
+                if (value.contains("no-store") || value.contains("private"))
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Passes the bytes of an HTTPS connection through.
+     */
+    private void tunnel(Socket socket, final InputStream in, OutputStream out, String target) throws IOException {
+        int colon = target.lastIndexOf(':');
+        final Socket upstream;
+        try {
+            upstream = new Socket(target.substring(0, colon), Integer.parseInt(target.substring(colon + 1)));
+        } catch (RuntimeException e) {
+            writeError(out, 400, "Bad Request", false);
+            return;
+        } catch (IOException e) {
+            writeError(out, 502, "Bad Gateway", false);
+            return;
+        }
+        try {
+            out.write("HTTP/1.1 200 Connection established\r\n\r\n".getBytes("ISO-8859-1"));
+            out.flush();
+            Thread up = new Thread("CachingProxy tunnel " + target) {
+                @Override
+                public void run() {
+                    try {
+                        IOUtils.copy(in, upstream.getOutputStream());
+                    } catch (IOException e) {
+                        //closed.
+                    } finally {
+                        IOUtils.closeQuietly(upstream);
+                    }
+                }
+            };
+            up.setDaemon(true);
+            up.start();
+            IOUtils.copy(upstream.getInputStream(), socket.getOutputStream());
+        } catch (IOException e) {
+            //closed.
+        } finally {
+            IOUtils.closeQuietly(upstream);
+        }
+    }
+
+    private static void writeHead(OutputStream out, int status, String reason, List<String[]> headers, String cache,
+        boolean keepAlive) throws IOException {
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(status).append(' ').append(reason).append("\r\n");
+        for (String[] header : headers) {
+            head.append(header[0]).append(": ").append(header[1]).append("\r\n");
+        }
+        if (cache != null)
+            head.append("X-Cache: ").append(cache).append("\r\n");
+        head.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n");
+        out.write(head.toString().getBytes("ISO-8859-1"));
+    }
+
+    private static void writeError(OutputStream out, int status, String message, boolean keepAlive)
+        throws IOException {
+        writeHead(out, status, message, Collections.<String[]> emptyList(), null, keepAlive);
+        byte[] body = message.getBytes("ISO-8859-1");
+        out.write(("Content-Type: text/plain\r\nContent-Length: " + body.length + "\r\n\r\n").getBytes("ISO-8859-1"));
+        out.write(body);
+        out.flush();
+    }
+
+    private static String header(List<String[]> headers, String name) {
+        for (String[] header : headers) {
+            if (header[0].equalsIgnoreCase(name))
+                return header[1];
+        }
+        return null;
+    }
+
+    private static List<String[]> readHeaders(InputStream in) throws IOException {
+        List<String[]> headers = new ArrayList<String[]>();
+        String line;
+        while (!StringUtils.isEmpty(line = readLine(in))) {
+            int colon = line.indexOf(':');
+            if (colon > 0)
+                headers.add(new String[] { line.substring(0, colon).trim(), line.substring(colon + 1).trim() });
+        }
+        return headers;
+    }
+
+    /**
+     * @return a line of the request without its line end, or null at the end of the stream.
+     */
+    static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) >= 0 && b != '\n') {
+            if (b != '\r')
+                line.write(b);
+        }
+        if (b < 0 && line.size() == 0)
+            return null;
+        return line.toString("ISO-8859-1");
+    }
+}
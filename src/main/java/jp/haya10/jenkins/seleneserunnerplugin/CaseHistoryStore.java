@@ -0,0 +1,612 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+import hudson.Extension;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.listeners.ItemListener;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import jp.haya10.jenkins.seleneserunnerplugin.SeleneseRunReport.CaseResult;
+
+/**
+ * Append-only store of the test case results of every build of a job, in three files of the job directory:
+ * <dl>
+ * <dt><tt>seleneserunner-cases.names</tt></dt>
+ * <dd>test case and browser names, one per line; a name is referred to by its line number.</dd>
+ * <dt><tt>seleneserunner-cases.dat</tt></dt>
+ * <dd>fixed size records of name, browser, status and duration.</dd>
+ * <dt><tt>seleneserunner-cases.idx</tt></dt>
+ * <dd>build number, offset and record count of each build, so that the last builds are read without
+ * reading the records of the older ones. The selenese build steps of a build add their records to the entry of
+ * the build.</dd>
+ * <dt><tt>seleneserunner-builds.dat</tt></dt>
+ * <dd>fixed size {@link Timing} records of the builds, for the trend of the job; the last one of a build counts.</dd>
+ * </dl>
+ * A build only counts once its index entry is written, so records of an interrupted append are ignored.
+ */
+public class CaseHistoryStore {
+
+    static final String NAMES = "seleneserunner-cases.names";
+
+    static final String DATA = "seleneserunner-cases.dat";
+
+    static final String INDEX = "seleneserunner-cases.idx";
+
+    static final String TIMINGS = "seleneserunner-builds.dat";
+
+    /**
+     * name, browser, status, duration.
+     */
+    static final int RECORD_SIZE = 4 + 4 + 1 + 4;
+
+    /**
+     * build number, offset, record count.
+     */
+    static final int INDEX_SIZE = 4 + 8 + 4;
+
+    /**
+     * build number, test case duration, driver startup, command p90.
+     */
+    static final int TIMING_SIZE = 4 + 8 + 8 + 8;
+
+    public enum Status {
+        PASSED, FAILED, FLAKY
+    }
+
+    public static class Record {
+        private final int build;
+        private final String name;
+        private final String browser;
+        private final Status status;
+        private final long duration;
+
+        Record(int build, String name, String browser, Status status, long duration) {
+            this.build = build;
+            this.name = name;
+            this.browser = browser;
+            this.status = status;
+            this.duration = duration;
+        }
+
+        public int getBuild() {
+            return build;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return browser, empty if unknown.
+         */
+        public String getBrowser() {
+            return browser;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        /**
+         * @return milliseconds.
+         */
+        public long getDuration() {
+            return duration;
+        }
+    }
+
+    /**
+     * Timings of a build, as shown by {@link SeleneseRunnerPerformanceAction}.
+     */
+    public static class Timing {
+        private final int build;
+        private final long caseDuration;
+        private final long driverStartup;
+        private final long commandP90;
+
+        Timing(int build, long caseDuration, long driverStartup, long commandP90) {
+            this.build = build;
+            this.caseDuration = caseDuration;
+            this.driverStartup = driverStartup;
+            this.commandP90 = commandP90;
+        }
+
+        public int getBuild() {
+            return build;
+        }
+
+        /**
+         * @return milliseconds.
+         */
+        public long getCaseDuration() {
+            return caseDuration;
+        }
+
+        /**
+         * @return milliseconds.
+         */
+        public long getDriverStartup() {
+            return driverStartup;
+        }
+
+        /**
+         * @return milliseconds.
+         */
+        public long getCommandP90() {
+            return commandP90;
+        }
+    }
+
+    /**
+     * Durations of a test case on one browser over a range of builds.
+     */
+    public static class CaseStats {
+        private final String name;
+        private final String browser;
+        private int runs;
+        private int failures;
+        private int flaky;
+        private long total;
+        private long max;
+
+        CaseStats(String name, String browser) {
+            this.name = name;
+            this.browser = browser;
+        }
+
+        void add(Record record) {
+            runs++;
+            total += record.getDuration();
+            max = Math.max(max, record.getDuration());
+            if (record.getStatus() == Status.FAILED)
+                failures++;
+            if (record.getStatus() == Status.FLAKY)
+                flaky++;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getBrowser() {
+            return browser;
+        }
+
+        public int getRuns() {
+            return runs;
+        }
+
+        public int getFailures() {
+            return failures;
+        }
+
+        /**
+         * @return runs that passed only after a retry.
+         */
+        public int getFlaky() {
+            return flaky;
+        }
+
+        public long getMean() {
+            return runs == 0 ? 0 : total / runs;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * Flaky if it passed after a retry, or both passed and failed in the range.
+         */
+        public boolean isFlaky() {
+            return flaky > 0 || (failures > 0 && failures < runs);
+        }
+    }
+
+    private static final Map<File, CaseHistoryStore> INSTANCES = new HashMap<File, CaseHistoryStore>();
+
+    public static CaseHistoryStore of(Job<?, ?> job) {
+        return of(job.getRootDir());
+    }
+
+    static CaseHistoryStore of(File dir) {
+        synchronized (INSTANCES) {
+            CaseHistoryStore store = INSTANCES.get(dir);
+            if (store == null) {
+                store = new CaseHistoryStore(dir);
+                INSTANCES.put(dir, store);
+            }
+            return store;
+        }
+    }
+
+    /**
+     * Forgets the stores of the directories that no longer exist, or of the given one.
+     */
+    static void forget(File dir) {
+        synchronized (INSTANCES) {
+            for (Iterator<File> it = INSTANCES.keySet().iterator(); it.hasNext();) {
+                File stored = it.next();
+                if (stored.equals(dir) || !stored.exists())
+                    it.remove();
+            }
+        }
+    }
+
+    /**
+     * Forgets the stores of deleted and renamed jobs.
+     */
+    @Extension
+    public static class JobListener extends ItemListener {
+        @Override
+        public void onDeleted(Item item) {
+            if (item instanceof Job)
+                forget(((Job<?, ?>) item).getRootDir());
+        }
+
+        @Override
+        public void onRenamed(Item item, String oldName, String newName) {
+            //the directory of the old name is gone.
+            forget(null);
+        }
+    }
+
+    private final File namesFile;
+
+    private final File dataFile;
+
+    private final File indexFile;
+
+    private final File timingsFile;
+
+    /**
+     * Loaded lazily, names by id and ids by name.
+     */
+    private List<String> names;
+
+    private Map<String, Integer> ids;
+
+    private int savedNames;
+
+    private CaseHistoryStore(File dir) {
+        this.namesFile = new File(dir, NAMES);
+        this.dataFile = new File(dir, DATA);
+        this.indexFile = new File(dir, INDEX);
+        this.timingsFile = new File(dir, TIMINGS);
+    }
+
+    public synchronized boolean isEmpty() {
+        return indexFile.length() < INDEX_SIZE;
+    }
+
+    /**
+     * Appends the results of one build step of a build.
+     *
+     * @param browser
+     *      browser of results that do not know theirs.
+     */
+    public synchronized void append(int build, String browser, Collection<CaseResult> results) throws IOException {
+        loadNames();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(results.size() * RECORD_SIZE);
+        DataOutputStream records = new DataOutputStream(bytes);
+        try {
+            for (CaseResult result : results) {
+                String caseBrowser = result.getBrowser() == null ? browser : result.getBrowser();
+                records.writeInt(id(result.getName()));
+                records.writeInt(id(caseBrowser == null ? "" : caseBrowser));
+                Status status = !result.isSuccess() ? Status.FAILED : result.isFlaky() ? Status.FLAKY : Status.PASSED;
+                records.writeByte(status.ordinal());
+                records.writeInt((int) Math.min(Integer.MAX_VALUE, Math.max(0, result.getDuration())));
+            }
+        } finally {
+            records.close();
+        }
+        //names first, then records, then the index entry that makes them count.
+        try {
+            saveNewNames();
+        } catch (IOException e) {
+            names = null;
+            throw e;
+        }
+
+        RandomAccessFile data = new RandomAccessFile(dataFile, "rw");
+        long offset;
+        try {
+            offset = data.length();
+            data.seek(offset);
+            data.write(bytes.toByteArray());
+        } finally {
+            data.close();
+        }
+
+        RandomAccessFile index = new RandomAccessFile(indexFile, "rw");
+        try {
+            //a partially written entry is overwritten.
+            long end = index.length() - index.length() % INDEX_SIZE;
+            if (end >= INDEX_SIZE) {
+                //another build step of the same build grows its entry, if their records follow each other.
+                index.seek(end - INDEX_SIZE);
+                int lastBuild = index.readInt();
+                long lastOffset = index.readLong();
+                int lastCount = index.readInt();
+                if (lastBuild == build && lastOffset + (long) lastCount * RECORD_SIZE == offset) {
+                    index.seek(end - 4);
+                    index.writeInt(lastCount + results.size());
+                    return;
+                }
+            }
+            index.seek(end);
+            index.writeInt(build);
+            index.writeLong(offset);
+            index.writeInt(results.size());
+        } finally {
+            index.close();
+        }
+    }
+
+    /**
+     * @return records of the last builds, by build number. Entries of the same build, left by build steps of
+     *      concurrent builds, count as one build.
+     */
+    public synchronized List<Record> read(int builds) throws IOException {
+        List<Record> result = new ArrayList<Record>();
+        if (isEmpty())
+            return result;
+        loadNames();
+
+        //the whole index, which is small, so that the earlier entries of a build are found.
+        int entries = (int) (indexFile.length() / INDEX_SIZE);
+        byte[] indexBytes = new byte[entries * INDEX_SIZE];
+        RandomAccessFile index = new RandomAccessFile(indexFile, "r");
+        try {
+            index.readFully(indexBytes);
+        } finally {
+            index.close();
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(indexBytes));
+        int[] buildOf = new int[entries];
+        long[] offsets = new long[entries];
+        int[] counts = new int[entries];
+        for (int i = 0; i < entries; i++) {
+            buildOf[i] = in.readInt();
+            offsets[i] = in.readLong();
+            counts[i] = in.readInt();
+        }
+
+        //the builds of the last entries, then all their entries.
+        Set<Integer> last = new HashSet<Integer>();
+        for (int i = entries - 1; i >= 0 && last.size() < builds; i--) {
+            last.add(buildOf[i]);
+        }
+        Map<Integer, List<Integer>> byBuild = new TreeMap<Integer, List<Integer>>();
+        for (int i = 0; i < entries; i++) {
+            if (!last.contains(buildOf[i]))
+                continue;
+            List<Integer> list = byBuild.get(buildOf[i]);
+            if (list == null) {
+                list = new ArrayList<Integer>();
+                byBuild.put(buildOf[i], list);
+            }
+            list.add(i);
+        }
+
+        RandomAccessFile data = new RandomAccessFile(dataFile, "r");
+        try {
+            for (List<Integer> list : byBuild.values()) {
+                for (int i : list) {
+                    byte[] block = new byte[counts[i] * RECORD_SIZE];
+                    data.seek(offsets[i]);
+                    data.readFully(block);
+                    DataInputStream records = new DataInputStream(new ByteArrayInputStream(block));
+                    for (int r = 0; r < counts[i]; r++) {
+                        String name = name(records.readInt());
+                        String browser = name(records.readInt());
+                        Status status = Status.values()[records.readByte()];
+                        long duration = records.readInt();
+                        result.add(new Record(buildOf[i], name, browser, status, duration));
+                    }
+                }
+            }
+        } catch (EOFException e) {
+            throw new IOException("truncated " + dataFile);
+        } finally {
+            data.close();
+        }
+        return result;
+    }
+
+    /**
+     * Records the timings of a build so far. A later build step of the build records the timings of all its steps.
+     */
+    public synchronized void appendTiming(Timing timing) throws IOException {
+        timingsFile.getParentFile().mkdirs();
+        RandomAccessFile raf = new RandomAccessFile(timingsFile, "rw");
+        try {
+            //a partially written record is overwritten.
+            raf.seek(raf.length() - raf.length() % TIMING_SIZE);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(TIMING_SIZE);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(timing.getBuild());
+            out.writeLong(timing.getCaseDuration());
+            out.writeLong(timing.getDriverStartup());
+            out.writeLong(timing.getCommandP90());
+            out.close();
+            raf.write(bytes.toByteArray());
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return the timings of the last builds, the oldest build first. Only the records of those builds are read.
+     */
+    public synchronized List<Timing> readTimings(int builds) throws IOException {
+        Map<Integer, Timing> timings = new TreeMap<Integer, Timing>();
+        if (!timingsFile.exists())
+            return new ArrayList<Timing>();
+        RandomAccessFile raf = new RandomAccessFile(timingsFile, "r");
+        try {
+            //read backwards; the last record of a build counts, so its earlier ones are skipped.
+            for (long i = raf.length() / TIMING_SIZE - 1; i >= 0; i--) {
+                raf.seek(i * TIMING_SIZE);
+                int build = raf.readInt();
+                if (timings.containsKey(build))
+                    continue;
+                if (timings.size() >= builds)
+                    break;
+                timings.put(build, new Timing(build, raf.readLong(), raf.readLong(), raf.readLong()));
+            }
+        } finally {
+            raf.close();
+        }
+        return new ArrayList<Timing>(timings.values());
+    }
+
+    /**
+     * @return statistics of each test case and browser over the last builds.
+     */
+    public List<CaseStats> getStats(int builds) throws IOException {
+        Map<String, CaseStats> stats = new LinkedHashMap<String, CaseStats>();
+        for (Record record : read(builds)) {
+            String key = record.getName() + "\n" + record.getBrowser();
+            CaseStats caseStats = stats.get(key);
+            if (caseStats == null) {
+                caseStats = new CaseStats(record.getName(), record.getBrowser());
+                stats.put(key, caseStats);
+            }
+            caseStats.add(record);
+        }
+        return new ArrayList<CaseStats>(stats.values());
+    }
+
+    /**
+     * @return the test cases with the longest mean duration over the last builds, the slowest first.
+     */
+    public List<CaseStats> getSlowest(int builds, int limit) throws IOException {
+        List<CaseStats> stats = getStats(builds);
+        Collections.sort(stats, new Comparator<CaseStats>() {
+            public int compare(CaseStats o1, CaseStats o2) {
+                return Long.valueOf(o2.getMean()).compareTo(o1.getMean());
+            }
+        });
+        return new ArrayList<CaseStats>(stats.subList(0, Math.min(limit, stats.size())));
+    }
+
+    /**
+     * @return the flaky test cases over the last builds.
+     */
+    public List<CaseStats> getFlaky(int builds) throws IOException {
+        List<CaseStats> result = new ArrayList<CaseStats>();
+        for (CaseStats stats : getStats(builds)) {
+            if (stats.isFlaky())
+                result.add(stats);
+        }
+        return result;
+    }
+
+    private String name(int id) throws IOException {
+        if (id < 0 || id >= names.size())
+            throw new IOException("unknown name " + id + " in " + dataFile);
+        return names.get(id);
+    }
+
+    private int id(String name) {
+        name = name.replace('\n', ' ').replace('\r', ' ');
+        Integer id = ids.get(name);
+        if (id == null) {
+            id = names.size();
+            names.add(name);
+            ids.put(name, id);
+        }
+        return id;
+    }
+
+    private void loadNames() throws IOException {
+        if (names != null)
+            return;
+        names = new ArrayList<String>();
+        ids = new HashMap<String, Integer>();
+        if (namesFile.exists()) {
+            truncatePartialLine(namesFile);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new BufferedInputStream(
+                new FileInputStream(namesFile)), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    ids.put(line, names.size());
+                    names.add(line);
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        savedNames = names.size();
+    }
+
+    /**
+     * Drops a name left without its line end by an interrupted append. No record refers to it yet.
+     */
+    private static void truncatePartialLine(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            long length = raf.length();
+            while (length > 0) {
+                raf.seek(length - 1);
+                if (raf.read() == '\n')
+                    break;
+                length--;
+            }
+            if (length < raf.length())
+                raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void saveNewNames() throws IOException {
+        if (savedNames == names.size())
+            return;
+        namesFile.getParentFile().mkdirs();
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(namesFile, true));
+        try {
+            Writer writer = new OutputStreamWriter(out, "UTF-8");
+            for (String name : names.subList(savedNames, names.size())) {
+                writer.write(name);
+                writer.write('\n');
+            }
+            writer.flush();
+        } finally {
+            out.close();
+        }
+        savedNames = names.size();
+    }
+}
@@ -0,0 +1,66 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+import hudson.console.LineTransformationOutputStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Passes the console log of a {@link jp.vmi.selenium.selenese.Runner} through and times each selenese command.
+ *
+ * <p>
+ * Runner logs a line like <tt>- [Success] Command#2: type("name=q", "selenium")</tt> when a command ends,
+ * so a command takes the time from the previous command line (or the start of the test case) to its own line.
+ */
+public class CommandTimingStream extends LineTransformationOutputStream {
+
+    private static final Pattern COMMAND = Pattern.compile("\\bCommand#\\d+:\\s*(\\w+)");
+
+    private static final Charset CHARSET = Charset.defaultCharset();
+
+    private final OutputStream out;
+
+    private final SeleneseRunReport report;
+
+    private long last = System.currentTimeMillis();
+
+    public CommandTimingStream(OutputStream out, SeleneseRunReport report) {
+        this.out = out;
+        this.report = report;
+    }
+
+    /**
+     * Marks the start of a test case, so that its first command is not charged with the previous case.
+     */
+    public synchronized void startCase() {
+        last = System.currentTimeMillis();
+    }
+
+    @Override
+    protected synchronized void eol(byte[] b, int len) throws IOException {
+        Matcher matcher = COMMAND.matcher(new String(b, 0, len, CHARSET));
+        if (matcher.find()) {
+            long now = System.currentTimeMillis();
+            report.addCommand(matcher.group(1), now - last);
+            last = now;
+        }
+        out.write(b, 0, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Flushes a pending partial line. The underlying stream is left open.
+     */
+    @Override
+    public void close() throws IOException {
+        forceEol();
+        out.flush();
+    }
+}
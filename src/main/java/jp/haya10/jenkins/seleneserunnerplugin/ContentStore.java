@@ -0,0 +1,290 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.Util;
+import hudson.XmlFile;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.listeners.ItemListener;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Per-job store of files by content digest, shared by the builds of the job.
+ *
+ * <p>
+ * Each digest is stored once under <tt>seleneserunner-store</tt> in the job directory and counts the
+ * builds referring to it. The file is deleted when the last of them is deleted.
+ */
+public class ContentStore {
+
+    private static final Logger LOGGER = Logger.getLogger(ContentStore.class.getName());
+
+    static final String DIRNAME = "seleneserunner-store";
+
+    private static final Map<File, ContentStore> INSTANCES = new HashMap<File, ContentStore>();
+
+    public static ContentStore of(Job<?, ?> job) {
+        return of(new File(job.getRootDir(), DIRNAME));
+    }
+
+    static ContentStore of(File dir) {
+        synchronized (INSTANCES) {
+            ContentStore store = INSTANCES.get(dir);
+            if (store == null) {
+                store = new ContentStore(dir);
+                INSTANCES.put(dir, store);
+            }
+            return store;
+        }
+    }
+
+    /**
+     * Forgets the stores of the jobs that no longer exist, or of the given job directory.
+     */
+    static void forget(File jobDir) {
+        synchronized (INSTANCES) {
+            for (Iterator<File> it = INSTANCES.keySet().iterator(); it.hasNext();) {
+                File stored = it.next().getParentFile();
+                if (stored.equals(jobDir) || !stored.exists())
+                    it.remove();
+            }
+        }
+    }
+
+    /**
+     * Forgets the stores of deleted and renamed jobs.
+     */
+    @Extension
+    public static class JobListener extends ItemListener {
+        @Override
+        public void onDeleted(Item item) {
+            if (item instanceof Job)
+                forget(((Job<?, ?>) item).getRootDir());
+        }
+
+        @Override
+        public void onRenamed(Item item, String oldName, String newName) {
+            //the directory of the old name is gone.
+            forget(null);
+        }
+    }
+
+    private final File dir;
+
+    private final XmlFile refsFile;
+
+    /**
+     * Number of builds referring to each digest, loaded lazily.
+     */
+    private Map<String, Integer> refs;
+
+    private ContentStore(File dir) {
+        this.dir = dir;
+        this.refsFile = new XmlFile(Jenkins.XSTREAM, new File(dir, "refs.xml"));
+    }
+
+    public File getFile(String digest) {
+        return new File(new File(dir, digest.substring(0, 2)), digest);
+    }
+
+    public synchronized int getRefCount(String digest) throws IOException {
+        Integer count = getRefs().get(digest);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * Adds a reference of one build to each digest, copying the content that is not stored yet.
+     *
+     * @param files
+     *      digest to a file with that content.
+     * @return number of files copied into the store.
+     */
+    public synchronized int add(Map<String, FilePath> files) throws IOException, InterruptedException {
+        Map<String, Integer> refs = getRefs();
+        int copied = 0;
+        for (Map.Entry<String, FilePath> file : files.entrySet()) {
+            File target = getFile(file.getKey());
+            if (!target.exists()) {
+                target.getParentFile().mkdirs();
+                File tmp = new File(target.getPath() + ".tmp");
+                file.getValue().copyTo(new FilePath(tmp));
+                if (!tmp.renameTo(target))
+                    throw new IOException("failed to store " + target);
+                copied++;
+            }
+            Integer count = refs.get(file.getKey());
+            refs.put(file.getKey(), count == null ? 1 : count + 1);
+        }
+        save();
+        return copied;
+    }
+
+    /**
+     * Removes a reference of one build from each digest, deleting the content nobody refers to anymore.
+     */
+    public synchronized void release(Collection<String> digests) throws IOException {
+        Map<String, Integer> refs = getRefs();
+        for (String digest : digests) {
+            Integer count = refs.get(digest);
+            if (count == null)
+                continue;
+            if (count > 1) {
+                refs.put(digest, count - 1);
+            } else {
+                refs.remove(digest);
+                File file = getFile(digest);
+                if (!file.delete() && file.exists())
+                    LOGGER.warning("failed to delete " + file);
+            }
+        }
+        save();
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Integer> getRefs() throws IOException {
+        if (refs == null) {
+            refs = new HashMap<String, Integer>();
+            if (refsFile.exists()) {
+                try {
+                    refs.putAll((Map<String, Integer>) refsFile.read());
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "failed to load " + refsFile, e);
+                }
+            }
+        }
+        return refs;
+    }
+
+    private void save() throws IOException {
+        dir.mkdirs();
+        refsFile.write(refs);
+    }
+
+    /**
+     * Digests of the files in a directory that are new or changed since a snapshot.
+     * Files and directories whose names start with '.' are skipped.
+     */
+    public static class DigestFiles implements FileCallable<Map<String, String>> {
+        private static final long serialVersionUID = 1L;
+
+        private final Map<String, Long> before;
+
+        /**
+         * @param before
+         *      {@link Snapshot} taken before the run, or an empty map to digest all files.
+         */
+        public DigestFiles(Map<String, Long> before) {
+            this.before = before;
+        }
+
+        public Map<String, String> invoke(File dir, VirtualChannel channel) throws IOException {
+            Map<String, String> result = new TreeMap<String, String>();
+            for (Map.Entry<String, File> file : listFiles(dir).entrySet()) {
+                Long modified = before.get(file.getKey());
+                if (modified != null && modified == file.getValue().lastModified())
+                    continue;
+                InputStream in = new FileInputStream(file.getValue());
+                try {
+                    result.put(file.getKey(), Util.getDigestOf(in));
+                } finally {
+                    in.close();
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Deletes the files of a directory that went into the store, and the directories they leave empty.
+     */
+    public static class DeleteFiles implements FileCallable<Integer> {
+        private static final long serialVersionUID = 1L;
+
+        private final Collection<String> paths;
+
+        /**
+         * @param paths
+         *      paths relative to the directory, with '/' as separator, as from {@link DigestFiles}.
+         */
+        public DeleteFiles(Collection<String> paths) {
+            this.paths = new ArrayList<String>(paths);
+        }
+
+        /**
+         * @return number of files deleted.
+         */
+        public Integer invoke(File dir, VirtualChannel channel) {
+            int deleted = 0;
+            for (String path : paths) {
+                File file = new File(dir, path);
+                if (!file.delete()) {
+                    if (file.exists())
+                        LOGGER.warning("failed to delete " + file);
+                    continue;
+                }
+                deleted++;
+                //only empty directories are deleted.
+                for (File parent = file.getParentFile(); !parent.equals(dir) && parent.delete();) {
+                    parent = parent.getParentFile();
+                }
+            }
+            return deleted;
+        }
+    }
+
+    /**
+     * Modification time of every file in a directory, to tell the files of a run from older ones.
+     */
+    public static class Snapshot implements FileCallable<Map<String, Long>> {
+        private static final long serialVersionUID = 1L;
+
+        public Map<String, Long> invoke(File dir, VirtualChannel channel) {
+            Map<String, Long> result = new HashMap<String, Long>();
+            for (Map.Entry<String, File> file : listFiles(dir).entrySet()) {
+                result.put(file.getKey(), file.getValue().lastModified());
+            }
+            return result;
+        }
+    }
+
+    /**
+     * @return files under dir by their path relative to dir, with '/' as separator.
+     */
+    static Map<String, File> listFiles(File dir) {
+        Map<String, File> result = new TreeMap<String, File>();
+        listFiles(dir, "", result);
+        return result;
+    }
+
+    private static void listFiles(File dir, String prefix, Map<String, File> result) {
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+        for (File file : files) {
+            if (file.getName().startsWith("."))
+                continue;
+            if (file.isDirectory()) {
+                listFiles(file, prefix + file.getName() + "/", result);
+            } else {
+                result.put(prefix + file.getName(), file);
+            }
+        }
+    }
+}
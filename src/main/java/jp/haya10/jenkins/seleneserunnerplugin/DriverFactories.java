@@ -0,0 +1,46 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+import java.util.Map;
+
+import jp.vmi.selenium.webdriver.ChromeDriverFactory;
+import jp.vmi.selenium.webdriver.DriverOptions;
+import jp.vmi.selenium.webdriver.FirefoxDriverFactory;
+import jp.vmi.selenium.webdriver.IEDriverFactory;
+import jp.vmi.selenium.webdriver.PhantomJSDriverFactory;
+import jp.vmi.selenium.webdriver.WebDriverFactory;
+import jp.vmi.selenium.webdriver.WebDriverManager;
+
+import org.openqa.selenium.WebDriver;
+
+/**
+ * Creates independent {@link WebDriver} instances.
+ *
+ * <p>
+ * {@link WebDriverManager#getInstance()} caches one driver per browser and options,
+ * so every caller that needs its own browser creates it through a fresh factory instead.
+ */
+public class DriverFactories {
+
+    private DriverFactories() {
+        // no operation
+    }
+
+    public static WebDriverFactory newFactory(String browser) {
+        if (WebDriverManager.FIREFOX.equals(browser))
+            return new FirefoxDriverFactory();
+        if (WebDriverManager.CHROME.equals(browser))
+            return new ChromeDriverFactory();
+        if (WebDriverManager.IE.equals(browser))
+            return new IEDriverFactory();
+        if (WebDriverManager.PHANTOMJS.equals(browser))
+            return new PhantomJSDriverFactory();
+        throw new IllegalArgumentException("Unknown browser: " + browser);
+    }
+
+    public static WebDriver newDriver(String browser, DriverOptions options, Map<String, String> env) {
+        WebDriverFactory factory = newFactory(browser);
+        factory.getEnvironmentVariables().clear();
+        factory.getEnvironmentVariables().putAll(env);
+        return factory.newInstance(options);
+    }
+}
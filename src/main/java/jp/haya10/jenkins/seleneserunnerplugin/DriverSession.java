@@ -0,0 +1,129 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import jp.vmi.selenium.webdriver.DriverOptions;
+
+import org.openqa.selenium.WebDriver;
+
+import com.google.common.base.Supplier;
+
+/**
+ * Driver lifecycle of one build on the agent.
+ *
+ * <p>
+ * Each build gets its own session with its own copy of the environment, and only ever quits
+ * the drivers it opened itself. Unlike the process-wide {@link jp.vmi.selenium.webdriver.WebDriverManager},
+ * this lets several executors on the same node run browsers at the same time.
+ */
+public class DriverSession {
+
+    private final String browser;
+
+    private final DriverOptions options;
+
+    private final String optionsKey;
+
+    private final Map<String, String> env;
+
+    private final WebDriverPool pool;
+
+    private final Set<WebDriver> drivers = Collections.newSetFromMap(new IdentityHashMap<WebDriver, Boolean>());
+
+    private boolean closed;
+
+    /**
+     * @param optionsKey
+     *      identifies {@code options}, pooled drivers are only reused for the same key.
+     * @param pool
+     *      pool to borrow drivers from, or null to start a new browser for every {@link #open()}
+     *      (or take one warmed by {@link SeleneseWarmupWrapper}).
+     */
+    public DriverSession(String browser, DriverOptions options, String optionsKey, Map<String, String> env,
+        WebDriverPool pool) {
+        this.browser = browser;
+        this.options = options;
+        this.optionsKey = optionsKey;
+        this.env = Collections.unmodifiableMap(new HashMap<String, String>(env));
+        this.pool = pool;
+    }
+
+    public WebDriver open() {
+        WebDriver driver;
+        if (pool == null) {
+            driver = WebDriverPool.getInstance().takeWarmed(getPoolKey());
+            if (driver == null)
+                driver = newDriver();
+        } else {
+            driver = pool.acquire(getPoolKey(), new Supplier<WebDriver>() {
+                public WebDriver get() {
+                    return newDriver();
+                }
+            });
+        }
+        synchronized (this) {
+            if (!closed) {
+                drivers.add(driver);
+                return driver;
+            }
+        }
+        quit(driver);
+        throw new IllegalStateException("driver session is already closed");
+    }
+
+    /**
+     * Gives the driver back.
+     *
+     * @param reusable
+     *      false if the run ended abnormally and the browser must not be handed to another build.
+     */
+    public void close(WebDriver driver, boolean reusable) {
+        synchronized (this) {
+            if (!drivers.remove(driver))
+                return;
+        }
+        if (pool != null && reusable) {
+            pool.release(driver);
+        } else {
+            quit(driver);
+        }
+    }
+
+    /**
+     * Quits every driver of this session that is still open. Drivers of other builds are left alone.
+     */
+    public void closeAll() {
+        WebDriver[] remaining;
+        synchronized (this) {
+            closed = true;
+            remaining = drivers.toArray(new WebDriver[drivers.size()]);
+            drivers.clear();
+        }
+        for (WebDriver driver : remaining) {
+            quit(driver);
+        }
+    }
+
+    /**
+     * Drivers are only shared between runs that would create them with the same options and display.
+     */
+    String getPoolKey() {
+        return browser + "|" + optionsKey + "|" + env.get("DISPLAY");
+    }
+
+    private WebDriver newDriver() {
+        return DriverFactories.newDriver(browser, options, env);
+    }
+
+    private void quit(WebDriver driver) {
+        if (pool != null) {
+            pool.discard(driver);
+        } else {
+            WebDriverPool.quitQuietly(driver);
+        }
+    }
+}
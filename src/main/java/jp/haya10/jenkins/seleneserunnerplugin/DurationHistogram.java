@@ -0,0 +1,130 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Histogram of durations in milliseconds with exponential buckets (each 25% wider than the previous one),
+ * so that percentiles can be estimated and histograms of shards and nodes can be merged.
+ */
+public class DurationHistogram implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Inclusive upper bound of each bucket, the last one catches everything.
+     */
+    static final long[] BOUNDS;
+
+    static {
+        List<Long> bounds = new ArrayList<Long>();
+        long bound = 1;
+        while (bound < TimeUnit.DAYS.toMillis(1)) {
+            bounds.add(bound);
+            bound = Math.max(bound + 1, (long) Math.ceil(bound * 1.25));
+        }
+        bounds.add(Long.MAX_VALUE);
+
+        BOUNDS = new long[bounds.size()];
+        for (int i = 0; i < BOUNDS.length; i++) {
+            BOUNDS[i] = bounds.get(i);
+        }
+    }
+
+    private final long[] counts = new long[BOUNDS.length];
+
+    private long count;
+
+    private long total;
+
+    private long max;
+
+    public synchronized void add(long millis) {
+        millis = Math.max(0, millis);
+        counts[bucketOf(millis)]++;
+        count++;
+        total += millis;
+        max = Math.max(max, millis);
+    }
+
+    public void merge(DurationHistogram other) {
+        long[] otherCounts;
+        long otherCount;
+        long otherTotal;
+        long otherMax;
+        synchronized (other) {
+            otherCounts = other.counts.clone();
+            otherCount = other.count;
+            otherTotal = other.total;
+            otherMax = other.max;
+        }
+        synchronized (this) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += otherCounts[i];
+            }
+            count += otherCount;
+            total += otherTotal;
+            max = Math.max(max, otherMax);
+        }
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getTotal() {
+        return total;
+    }
+
+    public synchronized long getMax() {
+        return max;
+    }
+
+    public synchronized long getMean() {
+        return count == 0 ? 0 : total / count;
+    }
+
+    /**
+     * @param percentile
+     *      0 to 100.
+     * @return upper bound of the bucket holding the percentile, never more than the maximum.
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (count == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank)
+                return Math.min(BOUNDS[i], max);
+        }
+        return max;
+    }
+
+    /**
+     * @return number of samples in each bucket, see {@link #getBucketBounds()}.
+     */
+    public synchronized long[] getBucketCounts() {
+        return counts.clone();
+    }
+
+    public static long[] getBucketBounds() {
+        return BOUNDS.clone();
+    }
+
+    static int bucketOf(long millis) {
+        int low = 0;
+        int high = BOUNDS.length - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (BOUNDS[mid] < millis) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,84 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+import hudson.EnvVars;
+import hudson.remoting.VirtualChannel;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+
+/**
+ * Difference between the environment of a build and the environment of the agent process,
+ * so that only the build specific variables are sent over the channel.
+ */
+public class EnvironmentDiff implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private static final Map<VirtualChannel, Map<String, String>> AGENT_ENVIRONMENTS = new WeakHashMap<VirtualChannel, Map<String, String>>();
+
+    private final Map<String, String> changed;
+
+    private final Set<String> removed;
+
+    private EnvironmentDiff(Map<String, String> changed, Set<String> removed) {
+        this.changed = changed;
+        this.removed = removed;
+    }
+
+    public static EnvironmentDiff of(Map<String, String> base, Map<String, String> target) {
+        Map<String, String> changed = new HashMap<String, String>();
+        for (Map.Entry<String, String> e : target.entrySet()) {
+            if (!e.getValue().equals(base.get(e.getKey())))
+                changed.put(e.getKey(), e.getValue());
+        }
+        Set<String> removed = new HashSet<String>();
+        for (String key : base.keySet()) {
+            if (!target.containsKey(key))
+                removed.add(key);
+        }
+        return new EnvironmentDiff(changed, removed);
+    }
+
+    /**
+     * Diff of the build environment against the environment of the agent process behind the channel.
+     * The agent environment is fetched once per channel.
+     */
+    public static EnvironmentDiff against(VirtualChannel channel, Map<String, String> target) throws IOException,
+        InterruptedException {
+        Map<String, String> base;
+        synchronized (AGENT_ENVIRONMENTS) {
+            base = AGENT_ENVIRONMENTS.get(channel);
+        }
+        if (base == null) {
+            base = new HashMap<String, String>(EnvVars.getRemote(channel));
+            synchronized (AGENT_ENVIRONMENTS) {
+                AGENT_ENVIRONMENTS.put(channel, base);
+            }
+        }
+        return of(base, target);
+    }
+
+    /**
+     * @return the build environment, given the environment this diff was taken against.
+     */
+    public Map<String, String> applyTo(Map<String, String> base) {
+        Map<String, String> result = new TreeMap<String, String>(base);
+        result.keySet().removeAll(removed);
+        result.putAll(changed);
+        return result;
+    }
+
+    public Map<String, String> getChanged() {
+        return Collections.unmodifiableMap(changed);
+    }
+
+    public Set<String> getRemoved() {
+        return Collections.unmodifiableSet(removed);
+    }
+}
@@ -0,0 +1,138 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Finds executables like chromedriver on the <tt>PATH</tt> of the agent.
+ *
+ * <p>
+ * Each <tt>PATH</tt> entry is probed directly for the candidate file names instead of listing
+ * the whole directory. Results (including "not found") are cached by name, and a cached result
+ * is only trusted while the <tt>PATH</tt> and the modification time of every directory probed
+ * for it are unchanged.
+ */
+public class ExecutableResolver {
+
+    private static final ExecutableResolver INSTANCE = new ExecutableResolver();
+
+    public static ExecutableResolver getInstance() {
+        return INSTANCE;
+    }
+
+    private static class Entry {
+        final String path;
+        final File file;
+        final Map<File, Long> probedDirs;
+
+        Entry(String path, File file, Map<File, Long> probedDirs) {
+            this.path = path;
+            this.file = file;
+            this.probedDirs = probedDirs;
+        }
+
+        boolean isValid(String currentPath) {
+            if (!path.equals(currentPath))
+                return false;
+            for (Map.Entry<File, Long> dir : probedDirs.entrySet()) {
+                if (dir.getKey().lastModified() != dir.getValue())
+                    return false;
+            }
+            return file == null || file.isFile();
+        }
+    }
+
+    private final Map<String, Entry> cache = new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * Resolves the executable on the <tt>PATH</tt> of this JVM.
+     *
+     * @return the first match, or null if not found.
+     */
+    public File resolve(String name) {
+        return resolve(name, StringUtils.defaultString(System.getenv("PATH")));
+    }
+
+    /**
+     * Resolves the executable on the given search path.
+     *
+     * @return the first match, or null if not found.
+     */
+    public File resolve(String name, String path) {
+        Entry entry = cache.get(name);
+        if (entry == null || !entry.isValid(path)) {
+            entry = lookup(name, path);
+            cache.put(name, entry);
+        }
+        return entry.file;
+    }
+
+    public void clear() {
+        cache.clear();
+    }
+
+    /**
+     * Lists every match on the given search path, in <tt>PATH</tt> order. Not cached.
+     */
+    public static List<File> findAll(String name, String path) {
+        List<File> result = new ArrayList<File>();
+        for (File dir : searchDirs(path)) {
+            for (String candidate : candidateNames(name)) {
+                File file = new File(dir, candidate);
+                if (isExecutable(file))
+                    result.add(file);
+            }
+        }
+        return result;
+    }
+
+    private static Entry lookup(String name, String path) {
+        Map<File, Long> probed = new LinkedHashMap<File, Long>();
+        for (File dir : searchDirs(path)) {
+            probed.put(dir, dir.lastModified());
+            for (String candidate : candidateNames(name)) {
+                File file = new File(dir, candidate);
+                if (isExecutable(file))
+                    return new Entry(path, file, probed);
+            }
+        }
+        return new Entry(path, null, probed);
+    }
+
+    private static List<File> searchDirs(String path) {
+        List<File> dirs = new ArrayList<File>();
+        for (String entry : path.split(Pattern.quote(File.pathSeparator))) {
+            if (entry.length() == 0)
+                continue;
+            File dir = new File(entry);
+            if (dir.isFile())
+                dir = dir.getAbsoluteFile().getParentFile();
+            dirs.add(dir);
+        }
+        return dirs;
+    }
+
+    private static List<String> candidateNames(String name) {
+        List<String> names = new ArrayList<String>();
+        names.add(name);
+        if (File.pathSeparatorChar == ';') {
+            String pathext = StringUtils.defaultIfEmpty(System.getenv("PATHEXT"), ".EXE;.BAT;.CMD");
+            for (String ext : pathext.split(";")) {
+                if (ext.length() > 0)
+                    names.add(name + ext.toLowerCase());
+            }
+        }
+        return names;
+    }
+
+    private static boolean isExecutable(File file) {
+        return file.isFile() && file.canExecute();
+    }
+}
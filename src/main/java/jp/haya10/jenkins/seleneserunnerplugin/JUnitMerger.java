@@ -0,0 +1,492 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+import hudson.FilePath.FileCallable;
+import hudson.remoting.VirtualChannel;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * Merges the JUnit result files of a directory into one <tt>testsuites</tt> document.
+ *
+ * <p>
+ * The files are streamed through StAX one event at a time, so memory does not grow with the number
+ * of test cases. The merged files are deleted, and a {@link JUnitSummary} of the results is written
+ * next to the merged file as <tt>selenese-summary.properties</tt>. The failures and errors of retried attempts
+ * (<tt>attempt-N</tt> directories) are added to the test case of the final result as the
+ * <tt>rerunFailure</tt>/<tt>rerunError</tt> elements of Maven Surefire, or <tt>flakyFailure</tt>/<tt>flakyError</tt>
+ * if the test case passed at last, and do not count in the summary. A merged file of an earlier selenese build step of the
+ * same build is merged again with the new results; the summary records the build, and
+ * {@link #clean(File, String)} removes the merged file and summary of other builds.
+ */
+public class JUnitMerger {
+
+    static final String MERGED = "TEST-selenese-merged.xml";
+
+    static final String SUMMARY = "selenese-summary.properties";
+
+    static final String BUILD = "build";
+
+    private JUnitMerger() {
+        // no operation
+    }
+
+    /**
+     * Deletes the merged file and summary unless they were written by the given build.
+     *
+     * @return true if they were deleted.
+     */
+    public static boolean clean(File dir, String build) throws IOException {
+        File summary = new File(dir, SUMMARY);
+        File merged = new File(dir, MERGED);
+        if (!summary.exists() && !merged.exists())
+            return false;
+        if (summary.exists() && build.equals(readSummary(summary).getProperty(BUILD)))
+            return false;
+        merged.delete();
+        summary.delete();
+        return true;
+    }
+
+    /**
+     * @param build
+     *      build the results belong to, recorded in the summary.
+     */
+    public static JUnitSummary merge(File dir, String build) throws IOException {
+        List<File> files = new ArrayList<File>();
+        List<File> attempts = new ArrayList<File>();
+        listResults(dir, files, attempts);
+        Collections.sort(files);
+        Collections.sort(attempts, ATTEMPT_ORDER);
+
+        JUnitSummary summary = new JUnitSummary();
+        File merged = new File(dir, MERGED);
+        File tmp = new File(dir, MERGED + ".tmp");
+        XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        XMLEventFactory events = XMLEventFactory.newInstance();
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp));
+        try {
+            Map<String, List<Rerun>> reruns = new HashMap<String, List<Rerun>>();
+            for (File attempt : attempts) {
+                List<File> attemptFiles = new ArrayList<File>();
+                listAll(attempt, attemptFiles);
+                Collections.sort(attemptFiles);
+                for (File file : attemptFiles) {
+                    readReruns(inputFactory, file, reruns);
+                }
+            }
+
+            XMLEventWriter writer = XMLOutputFactory.newInstance().createXMLEventWriter(out, "UTF-8");
+            writer.add(events.createStartDocument("UTF-8", "1.0"));
+            writer.add(events.createStartElement("", "", "testsuites"));
+            for (File file : files) {
+                copy(inputFactory, file, writer, summary, reruns);
+            }
+            writer.add(events.createEndElement("", "", "testsuites"));
+            writer.add(events.createEndDocument());
+            writer.close();
+        } catch (XMLStreamException e) {
+            throw new IOException("failed to merge JUnit results in " + dir + " : " + e.getMessage());
+        } finally {
+            out.close();
+        }
+
+        merged.delete();
+        if (!tmp.renameTo(merged))
+            throw new IOException("failed to rename " + tmp + " to " + merged);
+        for (File file : files) {
+            if (!file.equals(merged))
+                file.delete();
+        }
+        //the attempts are in the merged file now, and must not be added again by a later selenese step.
+        for (File attempt : attempts) {
+            deleteRecursive(attempt);
+        }
+        writeSummary(summary, build, new File(dir, SUMMARY));
+        return summary;
+    }
+
+    /**
+     * Copies the <tt>testsuite</tt> elements of a result file, whether it is a <tt>testsuite</tt>
+     * or a <tt>testsuites</tt> document.
+     */
+    private static void copy(XMLInputFactory inputFactory, File file, XMLEventWriter writer, JUnitSummary summary,
+        Map<String, List<Rerun>> reruns) throws IOException, XMLStreamException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            XMLEventReader reader = inputFactory.createXMLEventReader(in);
+            int depth = 0;
+            boolean wrapped = false;
+            String testCase = null;
+            long duration = 0;
+            boolean failure = false;
+            boolean error = false;
+            boolean skipped = false;
+            while (reader.hasNext()) {
+                XMLEvent event = reader.nextEvent();
+                if (event.isStartElement()) {
+                    StartElement start = event.asStartElement();
+                    String name = start.getName().getLocalPart();
+                    depth++;
+                    if (depth == 1 && name.equals("testsuites")) {
+                        wrapped = true;
+                        continue;
+                    }
+                    if (name.equals("testcase")) {
+                        testCase = attribute(start, "classname") + "." + attribute(start, "name");
+                        duration = parseTime(attribute(start, "time"));
+                        failure = error = skipped = false;
+                    } else if (testCase != null && name.equals("failure")) {
+                        failure = true;
+                    } else if (testCase != null && name.equals("error")) {
+                        error = true;
+                    } else if (testCase != null && name.equals("skipped")) {
+                        skipped = true;
+                    }
+                } else if (event.isEndElement()) {
+                    String name = event.asEndElement().getName().getLocalPart();
+                    depth--;
+                    if (depth == 0 && wrapped)
+                        continue;
+                    if (name.equals("testcase") && testCase != null) {
+                        summary.addCase(testCase, duration, failure, error, skipped);
+                        List<Rerun> earlier = reruns.remove(testCase);
+                        if (earlier != null)
+                            writeReruns(earlier, failure || error, writer);
+                        testCase = null;
+                    }
+                } else if (depth <= (wrapped ? 1 : 0)) {
+                    //declaration, doctype and whitespace around the suites.
+                    continue;
+                }
+                writer.add(event);
+            }
+            reader.close();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * A failure or error of a retried attempt of a test case.
+     */
+    private static class Rerun {
+        boolean error;
+        String message;
+        String type;
+        final StringBuilder text = new StringBuilder();
+    }
+
+    /**
+     * Adds the failures and errors of the test cases of an attempt's result file to the reruns, by test case.
+     */
+    private static void readReruns(XMLInputFactory inputFactory, File file, Map<String, List<Rerun>> reruns)
+        throws IOException, XMLStreamException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            XMLEventReader reader = inputFactory.createXMLEventReader(in);
+            String testCase = null;
+            Rerun rerun = null;
+            while (reader.hasNext()) {
+                XMLEvent event = reader.nextEvent();
+                if (event.isStartElement()) {
+                    StartElement start = event.asStartElement();
+                    String name = start.getName().getLocalPart();
+                    if (name.equals("testcase")) {
+                        testCase = attribute(start, "classname") + "." + attribute(start, "name");
+                    } else if (testCase != null && rerun == null
+                        && (name.equals("failure") || name.equals("error"))) {
+                        rerun = new Rerun();
+                        rerun.error = name.equals("error");
+                        rerun.message = attribute(start, "message");
+                        rerun.type = attribute(start, "type");
+                        List<Rerun> list = reruns.get(testCase);
+                        if (list == null) {
+                            list = new ArrayList<Rerun>();
+                            reruns.put(testCase, list);
+                        }
+                        list.add(rerun);
+                    }
+                } else if (event.isCharacters() && rerun != null) {
+                    rerun.text.append(event.asCharacters().getData());
+                } else if (event.isEndElement()) {
+                    String name = event.asEndElement().getName().getLocalPart();
+                    if (name.equals("testcase")) {
+                        testCase = null;
+                    } else if (name.equals("failure") || name.equals("error")) {
+                        rerun = null;
+                    }
+                }
+            }
+            reader.close();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @param failed
+     *      whether the final result of the test case failed, so that the attempts are reruns rather than flaky.
+     */
+    private static void writeReruns(List<Rerun> reruns, boolean failed, XMLEventWriter writer)
+        throws XMLStreamException {
+        XMLEventFactory events = XMLEventFactory.newInstance();
+        for (Rerun rerun : reruns) {
+            String name = (failed ? "rerun" : "flaky") + (rerun.error ? "Error" : "Failure");
+            List<Attribute> attributes = new ArrayList<Attribute>();
+            if (rerun.message.length() > 0)
+                attributes.add(events.createAttribute("message", rerun.message));
+            if (rerun.type.length() > 0)
+                attributes.add(events.createAttribute("type", rerun.type));
+            writer.add(events.createStartElement(new QName(name), attributes.iterator(), null));
+            writer.add(events.createCharacters(rerun.text.toString()));
+            writer.add(events.createEndElement(new QName(name), null));
+        }
+    }
+
+    /**
+     * Prefixes the <tt>testsuite</tt> names and <tt>testcase</tt> classnames of the result files in a directory,
+     * also those of retried attempts, with <tt>&lt;prefix&gt;.</tt>, e.g. the browser of a browser matrix.
+     * Names that already have the prefix are kept.
+     */
+    public static void qualify(File dir, String prefix) throws IOException {
+        List<File> files = new ArrayList<File>();
+        listAll(dir, files);
+        XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        for (File file : files) {
+            File tmp = new File(file.getPath() + ".tmp");
+            InputStream in = new BufferedInputStream(new FileInputStream(file));
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp));
+            try {
+                XMLEventReader reader = inputFactory.createXMLEventReader(in);
+                XMLEventWriter writer = XMLOutputFactory.newInstance().createXMLEventWriter(out, "UTF-8");
+                while (reader.hasNext()) {
+                    XMLEvent event = reader.nextEvent();
+                    if (event.isStartElement()) {
+                        StartElement start = event.asStartElement();
+                        String name = start.getName().getLocalPart();
+                        if (name.equals("testsuite")) {
+                            event = qualify(start, "name", prefix);
+                        } else if (name.equals("testcase")) {
+                            event = qualify(start, "classname", prefix);
+                        }
+                    }
+                    writer.add(event);
+                }
+                writer.close();
+                reader.close();
+            } catch (XMLStreamException e) {
+                throw new IOException("failed to qualify JUnit results in " + file + " : " + e.getMessage());
+            } finally {
+                in.close();
+                out.close();
+            }
+            file.delete();
+            if (!tmp.renameTo(file))
+                throw new IOException("failed to rename " + tmp + " to " + file);
+        }
+    }
+
+    private static StartElement qualify(StartElement start, String attributeName, String prefix) {
+        XMLEventFactory events = XMLEventFactory.newInstance();
+        List<Attribute> attributes = new ArrayList<Attribute>();
+        for (Iterator<?> it = start.getAttributes(); it.hasNext();) {
+            Attribute attribute = (Attribute) it.next();
+            String value = attribute.getValue();
+            if (attribute.getName().getLocalPart().equals(attributeName) && !value.startsWith(prefix + "."))
+                attribute = events.createAttribute(attribute.getName(), prefix + "." + value);
+            attributes.add(attribute);
+        }
+        return events.createStartElement(start.getName(), attributes.iterator(), start.getNamespaces());
+    }
+
+    private static String attribute(StartElement element, String name) {
+        Attribute attribute = element.getAttributeByName(new QName(name));
+        return attribute == null ? "" : attribute.getValue();
+    }
+
+    /**
+     * @return milliseconds of a JUnit time in seconds, 0 if it is not a number.
+     */
+    static long parseTime(String seconds) {
+        try {
+            return Math.round(Double.parseDouble(seconds.replace(",", "")) * 1000);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Orders <tt>attempt-N</tt> directories by N, then by path.
+     */
+    private static final Comparator<File> ATTEMPT_ORDER = new Comparator<File>() {
+        public int compare(File a, File b) {
+            int na = attemptNumber(a);
+            int nb = attemptNumber(b);
+            if (na != nb)
+                return na < nb ? -1 : 1;
+            return a.compareTo(b);
+        }
+    };
+
+    private static int attemptNumber(File attempt) {
+        try {
+            return Integer.parseInt(attempt.getName().substring("attempt-".length()));
+        } catch (NumberFormatException e) {
+            return Integer.MAX_VALUE;
+        }
+    }
+
+    private static void listResults(File dir, List<File> result, List<File> attempts) {
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(".") || name.equals(MERGED + ".tmp"))
+                continue;
+            if (file.isDirectory()) {
+                if (name.startsWith("attempt-")) {
+                    attempts.add(file);
+                } else {
+                    listResults(file, result, attempts);
+                }
+            } else if (name.endsWith(".xml")) {
+                result.add(file);
+            }
+        }
+    }
+
+    private static void deleteRecursive(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                deleteRecursive(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static Properties readSummary(File file) throws IOException {
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        return properties;
+    }
+
+    private static void listAll(File dir, List<File> result) {
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+        for (File file : files) {
+            if (file.isDirectory()) {
+                listAll(file, result);
+            } else if (file.getName().endsWith(".xml")) {
+                result.add(file);
+            }
+        }
+    }
+
+    private static void writeSummary(JUnitSummary summary, String build, File file) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(BUILD, build);
+        properties.setProperty("tests", String.valueOf(summary.getTests()));
+        properties.setProperty("failures", String.valueOf(summary.getFailures()));
+        properties.setProperty("errors", String.valueOf(summary.getErrors()));
+        properties.setProperty("skipped", String.valueOf(summary.getSkipped()));
+        properties.setProperty("duration", String.valueOf(summary.getDuration()));
+        List<String> failed = summary.getFailedCases();
+        for (int i = 0; i < failed.size(); i++) {
+            properties.setProperty("failed." + i, failed.get(i));
+        }
+        OutputStream out = new FileOutputStream(file);
+        try {
+            properties.store(out, "selenese JUnit summary");
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * {@link JUnitMerger#merge(File, String)} on the node holding the results.
+     */
+    public static class Merge implements FileCallable<JUnitSummary> {
+        private static final long serialVersionUID = 1L;
+
+        private final String build;
+
+        public Merge(String build) {
+            this.build = build;
+        }
+
+        public JUnitSummary invoke(File dir, VirtualChannel channel) throws IOException {
+            return merge(dir, build);
+        }
+    }
+
+    /**
+     * {@link JUnitMerger#qualify(File, String)} on the node holding the results.
+     */
+    public static class Qualify implements FileCallable<Void> {
+        private static final long serialVersionUID = 1L;
+
+        private final String prefix;
+
+        public Qualify(String prefix) {
+            this.prefix = prefix;
+        }
+
+        public Void invoke(File dir, VirtualChannel channel) throws IOException {
+            qualify(dir, prefix);
+            return null;
+        }
+    }
+
+    /**
+     * {@link JUnitMerger#clean(File, String)} on the node holding the results.
+     */
+    public static class Clean implements FileCallable<Boolean> {
+        private static final long serialVersionUID = 1L;
+
+        private final String build;
+
+        public Clean(String build) {
+            this.build = build;
+        }
+
+        public Boolean invoke(File dir, VirtualChannel channel) throws IOException {
+            return clean(dir, build);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Counts, duration and failed test cases of JUnit results, small enough to keep with the build
+ * so that the UI does not have to parse the result XML.
+ */
+public class JUnitSummary implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Failed test cases listed by name, the others are only counted.
+     */
+    static final int MAX_FAILED_CASES = 100;
+
+    private int tests;
+
+    private int failures;
+
+    private int errors;
+
+    private int skipped;
+
+    private long duration;
+
+    private final List<String> failedCases = new ArrayList<String>();
+
+    /**
+     * @param duration
+     *      milliseconds.
+     */
+    public synchronized void addCase(String name, long duration, boolean failure, boolean error, boolean skipped) {
+        tests++;
+        this.duration += duration;
+        if (failure)
+            failures++;
+        if (error)
+            errors++;
+        if (skipped)
+            this.skipped++;
+        if ((failure || error) && failedCases.size() < MAX_FAILED_CASES)
+            failedCases.add(name);
+    }
+
+    public synchronized int getTests() {
+        return tests;
+    }
+
+    public synchronized int getFailures() {
+        return failures;
+    }
+
+    public synchronized int getErrors() {
+        return errors;
+    }
+
+    public synchronized int getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * @return sum of the test case times in milliseconds.
+     */
+    public synchronized long getDuration() {
+        return duration;
+    }
+
+    /**
+     * @return names of the first {@link #MAX_FAILED_CASES} failed test cases.
+     */
+    public synchronized List<String> getFailedCases() {
+        return Collections.unmodifiableList(new ArrayList<String>(failedCases));
+    }
+}
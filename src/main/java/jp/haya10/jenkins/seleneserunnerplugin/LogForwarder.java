@@ -0,0 +1,210 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+import hudson.console.LineTransformationOutputStream;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Forwards the console log of a run on the agent to the build log in batches.
+ *
+ * <p>
+ * The build log of an agent is a remote stream, where every write is a round trip to the master.
+ * Writes here only append to a buffer, which a background thread sends once it holds
+ * {@link #BATCH_SIZE} bytes or every {@link #FLUSH_INTERVAL} milliseconds. If the buffer reaches
+ * {@link #MAX_BUFFER} bytes because the master cannot keep up, writers wait for it to drain
+ * instead of using ever more memory.
+ */
+public class LogForwarder extends OutputStream {
+
+    private static final Logger LOGGER = Logger.getLogger(LogForwarder.class.getName());
+
+    public static final int BATCH_SIZE = Integer.getInteger(LogForwarder.class.getName() + ".batchSize", 8192);
+
+    public static final long FLUSH_INTERVAL = Long.getLong(LogForwarder.class.getName() + ".flushInterval", 500);
+
+    public static final int MAX_BUFFER = Integer.getInteger(LogForwarder.class.getName() + ".maxBuffer", 1024 * 1024);
+
+    private final OutputStream out;
+
+    private final int batchSize;
+
+    private final long flushInterval;
+
+    private final int maxBuffer;
+
+    private byte[] buffer;
+
+    private int count;
+
+    private boolean closed;
+
+    private IOException failure;
+
+    private final Thread flusher;
+
+    public LogForwarder(OutputStream out) {
+        this(out, BATCH_SIZE, FLUSH_INTERVAL, MAX_BUFFER);
+    }
+
+    LogForwarder(OutputStream out, int batchSize, long flushInterval, int maxBuffer) {
+        this.out = out;
+        this.batchSize = batchSize;
+        this.flushInterval = flushInterval;
+        this.maxBuffer = Math.max(batchSize, maxBuffer);
+        this.buffer = new byte[batchSize];
+        this.flusher = new Thread("LogForwarder flusher") {
+            @Override
+            public void run() {
+                forward();
+            }
+        };
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        while (!closed && failure == null && count > 0 && count + len > maxBuffer) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for the build log");
+            }
+        }
+        if (failure != null)
+            return;
+        if (closed) {
+            //a late writer, e.g. a shard still stopping.
+            out.write(b, off, len);
+            return;
+        }
+        if (count + len > buffer.length) {
+            byte[] grown = new byte[Math.max(count + len, buffer.length * 2)];
+            System.arraycopy(buffer, 0, grown, 0, count);
+            buffer = grown;
+        }
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
+        if (count >= batchSize)
+            notifyAll();
+    }
+
+    /**
+     * Does not wait for the build log, the buffer is sent with the next batch.
+     */
+    @Override
+    public void flush() {
+        // no operation
+    }
+
+    /**
+     * Sends what is left and stops the background thread. The underlying stream is left open.
+     * If the build log failed, the rest of the log is dropped rather than failing the run.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while flushing the build log");
+        }
+    }
+
+    private void forward() {
+        while (true) {
+            byte[] batch;
+            int length;
+            boolean last;
+            synchronized (this) {
+                long deadline = System.currentTimeMillis() + flushInterval;
+                while (!closed && count < batchSize) {
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0)
+                        break;
+                    try {
+                        wait(wait);
+                    } catch (InterruptedException e) {
+                        closed = true;
+                    }
+                }
+                batch = buffer;
+                length = count;
+                last = closed;
+                buffer = new byte[batchSize];
+                count = 0;
+                notifyAll();
+            }
+
+            if (length > 0) {
+                try {
+                    out.write(batch, 0, length);
+                    out.flush();
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "failed to forward the build log", e);
+                    synchronized (this) {
+                        failure = e;
+                        notifyAll();
+                    }
+                    return;
+                }
+            }
+            if (last)
+                return;
+        }
+    }
+
+    /**
+     * Passes only the lines of failed commands and errors, for a quiet build log.
+     */
+    public static class QuietFilter extends LineTransformationOutputStream {
+
+        private static final Pattern FAILURE = Pattern.compile("\\[(Failure|Error|ERROR)\\]");
+
+        private static final Charset CHARSET = Charset.defaultCharset();
+
+        private final OutputStream out;
+
+        public QuietFilter(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        protected void eol(byte[] b, int len) throws IOException {
+            if (FAILURE.matcher(new String(b, 0, len, CHARSET)).find())
+                out.write(b, 0, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        /**
+         * Filters a pending partial line. The underlying stream is left open.
+         */
+        @Override
+        public void close() throws IOException {
+            forceEol();
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.Util;
+import hudson.XmlFile;
+import hudson.model.Job;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Per-job cache of successful selenese runs, keyed by a digest of the scripts and of everything else
+ * that decides the result: browsers, base URL, size, capabilities and the application version.
+ *
+ * <p>
+ * Each entry is a directory <tt>seleneserunner-cache/&lt;key&gt;</tt> in the job directory holding the
+ * {@link SeleneseRunReport} and a copy of the JUnit result directory. Only the {@link #MAX_ENTRIES}
+ * most recently used entries are kept.
+ */
+public class ResultCache {
+
+    private static final Logger LOGGER = Logger.getLogger(ResultCache.class.getName());
+
+    static final String DIRNAME = "seleneserunner-cache";
+
+    static final int MAX_ENTRIES = Integer.getInteger(ResultCache.class.getName() + ".maxEntries", 10);
+
+    public static ResultCache of(Job<?, ?> job) {
+        return new ResultCache(new File(job.getRootDir(), DIRNAME));
+    }
+
+    private final File dir;
+
+    ResultCache(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * @param files
+     *      selenese files and the test cases they include, on the workspace node.
+     * @param parts
+     *      the other inputs of the run.
+     */
+    public static String key(FilePath workspace, List<String> files, List<String> parts) throws IOException,
+        InterruptedException {
+        StringBuilder key = new StringBuilder();
+        for (String part : parts) {
+            key.append(part == null ? "" : part).append('\0');
+        }
+        for (Map.Entry<String, String> file : workspace.act(new DigestScripts(files)).entrySet()) {
+            key.append(file.getKey()).append('\0').append(file.getValue()).append('\0');
+        }
+        return Util.getDigestOf(key.toString());
+    }
+
+    /**
+     * Restores a cached run, copying its JUnit results into junitdir.
+     *
+     * @param junitdir
+     *      JUnit result directory of the build, or null.
+     * @return the report of the cached run, or null if there is none.
+     */
+    public synchronized SeleneseRunReport get(String key, FilePath junitdir) throws IOException,
+        InterruptedException {
+        File entry = new File(dir, key);
+        XmlFile reportFile = new XmlFile(Jenkins.XSTREAM, new File(entry, "report.xml"));
+        if (!reportFile.exists())
+            return null;
+        SeleneseRunReport report;
+        try {
+            report = (SeleneseRunReport) reportFile.read();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "failed to load " + reportFile, e);
+            return null;
+        }
+        File junit = new File(entry, "junit");
+        if (junitdir != null && junit.isDirectory())
+            new FilePath(junit).copyRecursiveTo(junitdir);
+        entry.setLastModified(System.currentTimeMillis());
+        return report;
+    }
+
+    /**
+     * Caches a successful run.
+     *
+     * @param junitdir
+     *      JUnit result directory of the build, or null.
+     */
+    public synchronized void put(String key, SeleneseRunReport report, FilePath junitdir) throws IOException,
+        InterruptedException {
+        File entry = new File(dir, key);
+        File tmp = new File(dir, key + ".tmp");
+        FileUtils.deleteDirectory(tmp);
+        tmp.mkdirs();
+        if (junitdir != null)
+            junitdir.copyRecursiveTo(new FilePath(new File(tmp, "junit")));
+        new XmlFile(Jenkins.XSTREAM, new File(tmp, "report.xml")).write(report);
+
+        FileUtils.deleteDirectory(entry);
+        if (!tmp.renameTo(entry))
+            throw new IOException("failed to rename " + tmp + " to " + entry);
+        evict();
+    }
+
+    private void evict() throws IOException {
+        File[] entries = dir.listFiles();
+        if (entries == null || entries.length <= MAX_ENTRIES)
+            return;
+        Arrays.sort(entries, new Comparator<File>() {
+            public int compare(File o1, File o2) {
+                return Long.valueOf(o2.lastModified()).compareTo(o1.lastModified());
+            }
+        });
+        for (int i = MAX_ENTRIES; i < entries.length; i++) {
+            FileUtils.deleteDirectory(entries[i]);
+        }
+    }
+
+    /**
+     * Digest of each file by its path, on the node holding the files.
+     */
+    static class DigestScripts implements FileCallable<Map<String, String>> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<String> files;
+
+        DigestScripts(List<String> files) {
+            this.files = files;
+        }
+
+        public Map<String, String> invoke(File workspace, VirtualChannel channel) throws IOException {
+            Map<String, String> result = new TreeMap<String, String>();
+            for (String file : files) {
+                InputStream in = new FileInputStream(file);
+                try {
+                    result.put(SeleneseRunnerBuilder.relativize(workspace.getPath(), file), Util.getDigestOf(in));
+                } finally {
+                    in.close();
+                }
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,488 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.PluginWrapper;
+import hudson.Util;
+import hudson.model.Node;
+import hudson.remoting.VirtualChannel;
+import hudson.remoting.Which;
+import hudson.util.StreamCopyThread;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+
+import com.google.common.base.Supplier;
+
+/**
+ * Runs selenese in a JVM kept on the node across builds, so that short runs skip loading selenese-runner and
+ * its dependencies through remoting and run on code the JIT has already compiled.
+ *
+ * <p>
+ * The master copies the jars of the plugin and the classes of Jenkins it uses into a directory per version of
+ * these jars under <tt>seleneserunner-daemon</tt> in the root directory of the node, so that an upgrade never
+ * touches the jars of a running daemon, and the daemon of the new version is started from another classpath
+ * than the old one. The agent JVM starts {@link RunnerDaemonServer} with them, sends it each
+ * run over a loopback socket and forwards the log and the report back to the build. A daemon that crashed is
+ * started again on the next run, and a daemon that served {@link #MAX_RUNS} runs is retired: it ends its running
+ * runs while a new one takes the next.
+ *
+ * <p>
+ * Options of the daemon JVM are set with the system property
+ * <tt>jp.haya10.jenkins.seleneserunnerplugin.RunnerDaemon.jvmOptions</tt> of the agent.
+ */
+public class RunnerDaemon {
+
+    private static final Logger LOGGER = Logger.getLogger(RunnerDaemon.class.getName());
+
+    static final String DIRNAME = "seleneserunner-daemon";
+
+    public static final int MAX_RUNS = Integer.getInteger(RunnerDaemon.class.getName() + ".maxRuns", 100);
+
+    public static final String JVM_OPTIONS = System.getProperty(RunnerDaemon.class.getName() + ".jvmOptions", "");
+
+    /**
+     * Classes of Jenkins and its libraries used by the run, found in the jars of the master.
+     */
+    private static final Class<?>[] CORE_CLASSES = { hudson.AbortException.class, hudson.remoting.Callable.class,
+        Supplier.class, StringUtils.class, FileUtils.class };
+
+    private static final RunnerDaemon INSTANCE = new RunnerDaemon(MAX_RUNS);
+
+    public static RunnerDaemon getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Jars of the daemon on the master, found once.
+     */
+    private static List<File> jars;
+
+    private final int maxRuns;
+
+    //the current daemon.
+    private Process process;
+
+    private Writer stdin;
+
+    private String classpath;
+
+    private int port;
+
+    private String token;
+
+    private int runs;
+
+    RunnerDaemon(int maxRuns) {
+        this.maxRuns = maxRuns;
+    }
+
+    /**
+     * Copies the jars of the daemon to the directory of their version on the node, if they are not there yet.
+     *
+     * @return directory of the daemon on the node, or null if the daemon cannot run there.
+     */
+    public static String install(Node node) throws IOException, InterruptedException {
+        FilePath root = node.getRootPath();
+        if (root == null)
+            return null;
+        Map<String, File> byName = new HashMap<String, File>();
+        try {
+            for (File jar : getJars()) {
+                byName.put(jar.getName(), jar);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "the runner daemon is not available", e);
+            return null;
+        }
+        Map<String, long[]> stamps = new HashMap<String, long[]>();
+        for (File jar : byName.values()) {
+            stamps.put(jar.getName(), new long[] { jar.length(), jar.lastModified() });
+        }
+
+        String version = version(stamps);
+        FilePath dir = root.child(DIRNAME).child(version);
+        synchronized (RunnerDaemon.class) {
+            for (String name : root.child(DIRNAME).act(new Sync(version, stamps))) {
+                File jar = byName.get(name);
+                FilePath tmp = dir.child(name + ".tmp");
+                tmp.copyFrom(new FilePath(jar));
+                tmp.touch(jar.lastModified());
+                tmp.renameTo(dir.child(name));
+            }
+        }
+        return dir.getRemote();
+    }
+
+    /**
+     * @return a name for the jars, which changes when any of them changes.
+     */
+    static String version(Map<String, long[]> stamps) {
+        StringBuilder key = new StringBuilder();
+        for (Map.Entry<String, long[]> stamp : new TreeMap<String, long[]>(stamps).entrySet()) {
+            key.append(stamp.getKey()).append(' ').append(stamp.getValue()[0]).append(' ')
+                .append(stamp.getValue()[1]).append('\n');
+        }
+        return Util.getDigestOf(key.toString()).substring(0, 12);
+    }
+
+    static synchronized List<File> getJars() throws IOException {
+        if (jars == null) {
+            Set<File> result = new LinkedHashSet<File>();
+            //plugin first, as the plugin class loader does.
+            result.add(jarOf(RunnerDaemon.class));
+            PluginWrapper plugin = Jenkins.getInstance().getPluginManager().whichPlugin(RunnerDaemon.class);
+            if (plugin != null) {
+                File[] files;
+                try {
+                    files = new File(new File(plugin.baseResourceURL.toURI()), "WEB-INF/lib").listFiles();
+                } catch (URISyntaxException e) {
+                    throw new IOException(e.getMessage());
+                }
+                if (files != null) {
+                    Arrays.sort(files);
+                    for (File file : files) {
+                        if (file.getName().endsWith(".jar"))
+                            result.add(file);
+                    }
+                }
+            }
+            for (Class<?> c : CORE_CLASSES) {
+                result.add(jarOf(c));
+            }
+            jars = new ArrayList<File>(result);
+        }
+        return jars;
+    }
+
+    private static File jarOf(Class<?> c) throws IOException {
+        try {
+            return Which.jarFile(c);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(c.getName() + " is not loaded from a jar : " + e.getMessage());
+        }
+    }
+
+    /**
+     * Runs the spec in the daemon of the node, starting one if needed.
+     *
+     * @param logger
+     *      build log.
+     */
+    public SeleneseRunReport run(SeleneseRunSpec spec, PrintStream logger) throws Exception {
+        File dir = new File(spec.getDaemonDir());
+        Socket socket = connect(dir, classpath(dir), logger);
+        try {
+            return run(socket, spec, logger);
+        } catch (EOFException e) {
+            throw new IOException("the runner daemon exited during the run, see " + new File(dir, "daemon.log"));
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Sends the spec over a connection whose token is already sent, and forwards the log of the run until its
+     * report comes back.
+     */
+    static SeleneseRunReport run(Socket socket, SeleneseRunSpec spec, PrintStream logger) throws Exception {
+        //reads time out now and then to notice an abort, closing the socket aborts the run in the daemon.
+        socket.setSoTimeout(1000);
+        ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+        out.writeObject(spec);
+        out.flush();
+
+        InputStream in = socket.getInputStream();
+        byte[] header = new byte[5];
+        while (true) {
+            readFully(in, header);
+            int length = ((header[1] & 0xff) << 24) | ((header[2] & 0xff) << 16) | ((header[3] & 0xff) << 8)
+                | (header[4] & 0xff);
+            byte[] payload = new byte[length];
+            readFully(in, payload);
+            switch (header[0]) {
+            case RunnerDaemonServer.LOG:
+                logger.write(payload);
+                break;
+            case RunnerDaemonServer.REPORT:
+                return (SeleneseRunReport) deserialize(payload);
+            case RunnerDaemonServer.ERROR:
+                Throwable t = (Throwable) deserialize(payload);
+                if (t instanceof Exception)
+                    throw (Exception) t;
+                throw new IOException("the runner daemon failed : " + t);
+            default:
+                throw new IOException("unknown frame from the runner daemon : " + header[0]);
+            }
+        }
+    }
+
+    /**
+     * Connects to the current daemon, after starting a new one if it crashed, served {@link #MAX_RUNS} runs or
+     * runs another version of the plugin. The token of the daemon is already sent.
+     *
+     * @param cp
+     *      classpath of the daemon, in the directory of its version.
+     */
+    synchronized Socket connect(File dir, String cp, PrintStream logger) throws IOException {
+        check(cp, logger);
+        for (int attempt = 1;; attempt++) {
+            if (process == null) {
+                start(dir, cp);
+                logger.println("runner daemon started.");
+            }
+            runs++;
+            try {
+                Socket socket = new Socket(InetAddress.getByName("127.0.0.1"), port);
+                new DataOutputStream(socket.getOutputStream()).writeUTF(token);
+                return socket;
+            } catch (IOException e) {
+                //it crashed meanwhile.
+                retire();
+                if (attempt > 1)
+                    throw e;
+            }
+        }
+    }
+
+    /**
+     * Retires the current daemon if it should not take the next run.
+     */
+    private void check(String cp, PrintStream logger) {
+        if (process != null && !isAlive(process)) {
+            logger.println("runner daemon exited with " + process.exitValue() + ", starting a new one.");
+            retire();
+        } else if (process != null && runs >= maxRuns) {
+            logger.println("runner daemon served " + runs + " runs, starting a new one.");
+            retire();
+        } else if (process != null && !cp.equals(classpath)) {
+            logger.println("runner daemon runs another version of the plugin, starting a new one.");
+            retire();
+        }
+    }
+
+    private void start(File dir, String cp) throws IOException {
+        List<String> command = new ArrayList<String>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        command.addAll(Arrays.asList(StringUtils.split(JVM_OPTIONS)));
+        command.add("-cp");
+        command.add(cp);
+        command.add(RunnerDaemonServer.class.getName());
+        Process started = new ProcessBuilder(command).directory(dir).redirectErrorStream(true).start();
+
+        String newToken = UUID.randomUUID().toString();
+        Writer newStdin = new OutputStreamWriter(started.getOutputStream(), "UTF-8");
+        newStdin.write(newToken + "\n");
+        newStdin.flush();
+
+        //the first line is the port, the rest goes to the log of the daemon.
+        String line = readLine(started.getInputStream());
+        OutputStream log = new FileOutputStream(new File(dir, "daemon.log"), true);
+        if (line == null || !line.startsWith("port ")) {
+            log.write((line + "\n").getBytes("UTF-8"));
+        }
+        new StreamCopyThread("RunnerDaemon log", started.getInputStream(), log, true).start();
+        if (line == null || !line.startsWith("port ")) {
+            started.destroy();
+            throw new IOException("the runner daemon failed to start, see " + new File(dir, "daemon.log"));
+        }
+
+        process = started;
+        stdin = newStdin;
+        classpath = cp;
+        port = Integer.parseInt(line.substring("port ".length()).trim());
+        token = newToken;
+        runs = 0;
+    }
+
+    /**
+     * @return the process of the current daemon, or null if none is running.
+     */
+    synchronized Process getProcess() {
+        return process;
+    }
+
+    /**
+     * Lets the current daemon end its running runs and exit.
+     */
+    synchronized void retire() {
+        if (stdin != null) {
+            try {
+                stdin.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "the runner daemon is already gone", e);
+            }
+        }
+        process = null;
+        stdin = null;
+    }
+
+    /**
+     * @return the jars of the directory in a stable order.
+     */
+    static String classpath(File dir) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null)
+            throw new IOException(dir + " is not found");
+        Arrays.sort(files);
+        List<String> jars = new ArrayList<String>();
+        for (File file : files) {
+            if (file.getName().endsWith(".jar"))
+                jars.add(file.getPath());
+        }
+        return StringUtils.join(jars, File.pathSeparator);
+    }
+
+    static boolean isAlive(Process process) {
+        try {
+            process.exitValue();
+            return false;
+        } catch (IllegalThreadStateException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Reads a line byte by byte, leaving the rest of the stream unread.
+     */
+    static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) >= 0 && b != '\n') {
+            if (b != '\r')
+                line.write(b);
+        }
+        if (b < 0 && line.size() == 0)
+            return null;
+        return line.toString("UTF-8");
+    }
+
+    /**
+     * Reads the whole buffer, waiting through read timeouts unless the thread is interrupted.
+     */
+    static void readFully(InputStream in, byte[] b) throws IOException, InterruptedException {
+        int off = 0;
+        while (off < b.length) {
+            try {
+                int n = in.read(b, off, b.length - off);
+                if (n < 0)
+                    throw new EOFException();
+                off += n;
+            } catch (SocketTimeoutException e) {
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+            }
+        }
+    }
+
+    private static Object deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes)) {
+            @Override
+            protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+                try {
+                    return Class.forName(desc.getName(), false, RunnerDaemon.class.getClassLoader());
+                } catch (ClassNotFoundException e) {
+                    return super.resolveClass(desc);
+                }
+            }
+        };
+        try {
+            return in.readObject();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Prepares the directory of a version of the daemon jars, and returns the names of the jars still to copy.
+     *
+     * <p>
+     * Directories of older versions are deleted, except the newest of them, which a daemon retiring after an
+     * upgrade may still run from. Jars a daemon JVM keeps open may not be deleted yet; a later install
+     * deletes them.
+     */
+    static class Sync implements FileCallable<List<String>> {
+        private static final long serialVersionUID = 1L;
+
+        private final String version;
+
+        /**
+         * Length and last modification time of each jar.
+         */
+        private final Map<String, long[]> stamps;
+
+        Sync(String version, Map<String, long[]> stamps) {
+            this.version = version;
+            this.stamps = stamps;
+        }
+
+        public List<String> invoke(File root, VirtualChannel channel) throws IOException {
+            File dir = new File(root, version);
+            if (!dir.isDirectory()) {
+                File[] versions = root.listFiles();
+                if (versions != null) {
+                    File previous = null;
+                    for (File other : versions) {
+                        if (other.isDirectory() && (previous == null || other.lastModified() > previous.lastModified()))
+                            previous = other;
+                    }
+                    for (File other : versions) {
+                        if (other.isDirectory() && !other.equals(previous))
+                            FileUtils.deleteQuietly(other);
+                    }
+                }
+                dir.mkdirs();
+            }
+
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (file.getName().endsWith(".jar") && !stamps.containsKey(file.getName()))
+                        file.delete();
+                }
+            }
+            List<String> outdated = new ArrayList<String>();
+            for (Map.Entry<String, long[]> stamp : stamps.entrySet()) {
+                File file = new File(dir, stamp.getKey());
+                //file systems keep modification times with different precisions.
+                if (file.length() != stamp.getValue()[0]
+                    || Math.abs(file.lastModified() - stamp.getValue()[1]) > 2000)
+                    outdated.add(stamp.getKey());
+            }
+            return outdated;
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Main class of the {@link RunnerDaemon} process.
+ *
+ * <p>
+ * The daemon reads a token from its standard input, listens on a loopback port and prints <tt>port &lt;n&gt;</tt>
+ * to its standard output. Each connection sends the token and a {@link SeleneseRunSpec}; the daemon answers with
+ * frames of the build log, then one frame with the {@link SeleneseRunReport} or the exception of the run. A client
+ * closing its connection aborts its run.
+ *
+ * <p>
+ * When its standard input is closed, by the agent retiring it or by the agent JVM exiting, the daemon stops
+ * accepting runs and exits once the running ones end.
+ */
+public class RunnerDaemonServer {
+
+    private static final Logger LOGGER = Logger.getLogger(RunnerDaemonServer.class.getName());
+
+    static final byte LOG = 'L';
+
+    static final byte REPORT = 'R';
+
+    static final byte ERROR = 'E';
+
+    private final String token;
+
+    private final ServerSocket server;
+
+    private int active;
+
+    RunnerDaemonServer(String token) throws IOException {
+        this.token = token;
+        this.server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        final BufferedReader stdin = new BufferedReader(new InputStreamReader(System.in, "UTF-8"));
+        String token = stdin.readLine();
+        if (token == null)
+            return;
+        final RunnerDaemonServer daemon = new RunnerDaemonServer(token);
+        System.out.println("port " + daemon.getPort());
+        System.out.flush();
+
+        Thread watcher = new Thread("RunnerDaemon stdin") {
+            @Override
+            public void run() {
+                try {
+                    while (stdin.readLine() != null) {
+                        //nothing else is sent.
+                    }
+                } catch (IOException e) {
+                    //the agent is gone.
+                }
+                daemon.retire();
+            }
+        };
+        watcher.setDaemon(true);
+        watcher.start();
+
+        daemon.serve();
+        WebDriverPool.getInstance().quitIdle();
+        System.exit(0);
+    }
+
+    int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * Accepts runs until the daemon is retired, then waits for the running ones.
+     */
+    void serve() throws InterruptedException {
+        while (true) {
+            final Socket socket;
+            try {
+                socket = server.accept();
+            } catch (IOException e) {
+                break;
+            }
+            synchronized (this) {
+                active++;
+            }
+            new Thread("RunnerDaemon run " + socket.getPort()) {
+                @Override
+                public void run() {
+                    try {
+                        handle(socket);
+                    } finally {
+                        synchronized (RunnerDaemonServer.this) {
+                            active--;
+                            RunnerDaemonServer.this.notifyAll();
+                        }
+                    }
+                }
+            }.start();
+        }
+        synchronized (this) {
+            while (active > 0) {
+                wait();
+            }
+        }
+    }
+
+    void retire() {
+        try {
+            server.close();
+        } catch (IOException e) {
+            //already closed.
+        }
+    }
+
+    private void handle(final Socket socket) {
+        try {
+            final DataInputStream in = new DataInputStream(socket.getInputStream());
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            if (!token.equals(in.readUTF()))
+                return;
+            SeleneseRunSpec spec = (SeleneseRunSpec) new ObjectInputStream(in).readObject();
+
+            //the client closes the connection to abort the run.
+            final Thread runner = Thread.currentThread();
+            Thread abort = new Thread("RunnerDaemon abort " + socket.getPort()) {
+                @Override
+                public void run() {
+                    try {
+                        while (in.read() >= 0) {
+                            //nothing else is sent.
+                        }
+                    } catch (IOException e) {
+                        //closed.
+                    }
+                    runner.interrupt();
+                }
+            };
+            abort.setDaemon(true);
+            abort.start();
+
+            PrintStream logger = new PrintStream(new FrameOutputStream(out), true, "UTF-8");
+            byte type;
+            Serializable result;
+            try {
+                result = run(spec, logger);
+                type = REPORT;
+            } catch (Throwable t) {
+                result = t;
+                type = ERROR;
+            }
+            logger.flush();
+            synchronized (out) {
+                writeFrame(out, type, serialize(result));
+                out.flush();
+            }
+        } catch (SocketException e) {
+            //the client is gone.
+        } catch (EOFException e) {
+            //the client is gone before sending its run.
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "failed to serve a run", e);
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                //ignore
+            }
+        }
+    }
+
+    /**
+     * Runs the spec in this JVM.
+     *
+     * @param logger
+     *      log of the run, sent to the client.
+     */
+    SeleneseRunReport run(SeleneseRunSpec spec, PrintStream logger) throws Exception {
+        return SeleneseRunnerCallable.runInDaemon(spec, logger);
+    }
+
+    static void writeFrame(DataOutputStream out, byte type, byte[] payload) throws IOException {
+        out.writeByte(type);
+        out.writeInt(payload.length);
+        out.write(payload);
+    }
+
+    /**
+     * @return the serialized object, or a serialized {@link IOException} describing it if it cannot be serialized.
+     */
+    static byte[] serialize(Serializable object) throws IOException {
+        try {
+            return toBytes(object);
+        } catch (IOException e) {
+            return toBytes(new IOException(String.valueOf(object)));
+        }
+    }
+
+    private static byte[] toBytes(Object object) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(object);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Sends each write as a log frame.
+     */
+    private static class FrameOutputStream extends OutputStream {
+        private final DataOutputStream out;
+
+        FrameOutputStream(DataOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            synchronized (out) {
+                out.writeByte(LOG);
+                out.writeInt(len);
+                out.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (out) {
+                out.flush();
+            }
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+import hudson.Util;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.imageio.ImageIO;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Moves the screenshots of a run from staging directories to the screenshot directory on a background thread.
+ *
+ * <p>
+ * {@link jp.vmi.selenium.selenese.Runner} writes each screenshot to the staging directory of its shard.
+ * The pipeline picks a file up once the next one has appeared (or when it is closed), drops it if it has
+ * the same content as the previous screenshot of the shard, downscales it to {@code scale} percent,
+ * keeps the smaller of the original and re-encoded PNG and writes it to the screenshot directory.
+ * The test thread goes on with the next command meanwhile.
+ *
+ * <p>
+ * Files are decoded, scaled and encoded without holding the lock of the pipeline, so that shards creating
+ * their staging directory and the counters of the build log do not wait for the encoding.
+ */
+public class ScreenshotPipeline {
+
+    private static final Logger LOGGER = Logger.getLogger(ScreenshotPipeline.class.getName());
+
+    static final long POLL_INTERVAL = 100;
+
+    private final File targetDir;
+
+    private final int scale;
+
+    /**
+     * Staging directory to the digest of the last screenshot taken from it.
+     */
+    private final Map<File, String> stagingDirs = new LinkedHashMap<File, String>();
+
+    private int kept;
+
+    private int dropped;
+
+    private long bytesIn;
+
+    private long bytesOut;
+
+    private boolean closed;
+
+    private Thread worker;
+
+    /**
+     * Held while screenshots are processed, by one thread at a time.
+     */
+    private final Object processing = new Object();
+
+    /**
+     * @param scale
+     *      percentage of the original width and height, 100 to keep the size.
+     */
+    public ScreenshotPipeline(File targetDir, int scale) {
+        this.targetDir = targetDir;
+        this.scale = Math.min(100, Math.max(1, scale));
+    }
+
+    /**
+     * @return a new, empty staging directory for the screenshots of one shard.
+     */
+    public synchronized File newStagingDir(String name) throws IOException {
+        File dir = new File(targetDir, ".staging-" + name);
+        FileUtils.deleteDirectory(dir);
+        if (!dir.mkdirs())
+            throw new IOException("failed to create " + dir);
+        stagingDirs.put(dir, null);
+        return dir;
+    }
+
+    public synchronized void start() {
+        if (worker != null)
+            return;
+        worker = new Thread("ScreenshotPipeline " + targetDir) {
+            @Override
+            public void run() {
+                while (!isClosed()) {
+                    processAll(false);
+                    try {
+                        Thread.sleep(POLL_INTERVAL);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        };
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Processes the remaining screenshots, stops the background thread and removes the staging directories.
+     */
+    public void close() throws InterruptedException {
+        Thread worker;
+        synchronized (this) {
+            closed = true;
+            worker = this.worker;
+        }
+        if (worker != null)
+            worker.join();
+        processAll(true);
+        synchronized (this) {
+            for (File dir : stagingDirs.keySet()) {
+                FileUtils.deleteQuietly(dir);
+            }
+        }
+    }
+
+    public synchronized int getKept() {
+        return kept;
+    }
+
+    public synchronized int getDropped() {
+        return dropped;
+    }
+
+    /**
+     * @return bytes saved by dropping and re-encoding screenshots.
+     */
+    public synchronized long getBytesSaved() {
+        return bytesIn - bytesOut;
+    }
+
+    private synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @param all
+     *      true to include the newest file of each staging directory, which may still be written otherwise.
+     */
+    void processAll(boolean all) {
+        synchronized (processing) {
+            Map<File, String> dirs;
+            synchronized (this) {
+                dirs = new LinkedHashMap<File, String>(stagingDirs);
+            }
+            for (Map.Entry<File, String> staging : dirs.entrySet()) {
+                String digest = processDir(staging.getKey(), staging.getValue(), all);
+                synchronized (this) {
+                    stagingDirs.put(staging.getKey(), digest);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param previous
+     *      digest of the last screenshot taken from the directory.
+     * @return digest of the last screenshot taken from the directory now.
+     */
+    private String processDir(File dir, String previous, boolean all) {
+        File[] files = dir.listFiles();
+        if (files == null)
+            return previous;
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File o1, File o2) {
+                int result = Long.valueOf(o1.lastModified()).compareTo(o2.lastModified());
+                return result != 0 ? result : o1.getName().compareTo(o2.getName());
+            }
+        });
+        List<File> ready = new ArrayList<File>(Arrays.asList(files));
+        if (!all && !ready.isEmpty())
+            ready.remove(ready.size() - 1);
+        for (File file : ready) {
+            try {
+                previous = process(file, previous);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "failed to process screenshot " + file, e);
+                FileUtils.deleteQuietly(file);
+            }
+        }
+        return previous;
+    }
+
+    /**
+     * @return digest of the file.
+     */
+    private String process(File file, String previous) throws IOException {
+        byte[] original = FileUtils.readFileToByteArray(file);
+        String digest = Util.getDigestOf(new ByteArrayInputStream(original));
+        if (digest.equals(previous)) {
+            FileUtils.forceDelete(file);
+            count(original.length, 0, false);
+            return digest;
+        }
+
+        byte[] encoded = file.getName().toLowerCase().endsWith(".png") ? encode(original, scale) : null;
+        File target = new File(targetDir, file.getName());
+        if (encoded != null && (encoded.length < original.length || scale < 100)) {
+            FileUtils.writeByteArrayToFile(target, encoded);
+            FileUtils.forceDelete(file);
+            count(original.length, encoded.length, true);
+        } else {
+            FileUtils.deleteQuietly(target);
+            FileUtils.moveFile(file, target);
+            count(original.length, original.length, true);
+        }
+        return digest;
+    }
+
+    private synchronized void count(long in, long out, boolean keep) {
+        bytesIn += in;
+        bytesOut += out;
+        if (keep) {
+            kept++;
+        } else {
+            dropped++;
+        }
+    }
+
+    /**
+     * @return the image downscaled to {@code scale} percent and encoded as PNG, or null if it cannot be read.
+     */
+    static byte[] encode(byte[] png, int scale) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(png));
+        if (image == null)
+            return null;
+        if (scale < 100) {
+            int width = Math.max(1, image.getWidth() * scale / 100);
+            int height = Math.max(1, image.getHeight() * scale / 100);
+            BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = scaled.createGraphics();
+            try {
+                g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                g.drawImage(image, 0, 0, width, height, null);
+            } finally {
+                g.dispose();
+            }
+            image = scaled;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,243 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+import hudson.FilePath.FileCallable;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.lang.StringUtils;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import com.thoughtworks.selenium.Selenium;
+
+/**
+ * Checks selenese scripts before a browser is started: that they parse, that every row of a test case
+ * has three cells, that the test cases of a suite exist and that the base URL is valid.
+ *
+ * <p>
+ * Commands that are not known are only warned about, since selenese-runner accepts more than this list, e.g.
+ * its own commands and aliases of later versions or user extensions. Known commands are the actions of {@link Selenium} with their <tt>AndWait</tt> variants, the
+ * <tt>store</tt>, <tt>assert</tt>, <tt>verify</tt> and <tt>waitFor</tt> forms of its accessors, and
+ * the commands of selenese-runner itself. More can be allowed with the system property
+ * <tt>jp.haya10.jenkins.seleneserunnerplugin.SeleneseLint.extraCommands</tt>, comma separated.
+ */
+public class SeleneseLint {
+
+    private static final List<String> BUILTIN_COMMANDS = Arrays.asList("echo", "pause", "store", "storeEval",
+        "include", "label", "gotoLabel", "gotoIf", "while", "endWhile", "captureEntirePageScreenshot", "rollup",
+        "assertErrorOnNext", "verifyErrorOnNext", "assertFailureOnNext", "verifyFailureOnNext");
+
+    static final Set<String> COMMANDS = Collections.unmodifiableSet(knownCommands());
+
+    private static final List<String> URL_SCHEMES = Arrays.asList("http", "https");
+
+    private SeleneseLint() {
+        // no operation
+    }
+
+    /**
+     * Problems that keep the scripts from running, and warnings about what may still run.
+     */
+    public static class Result implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final List<String> problems = new ArrayList<String>();
+
+        private final List<String> warnings = new ArrayList<String>();
+
+        /**
+         * @return the problems found, empty if the scripts look runnable.
+         */
+        public List<String> getProblems() {
+            return problems;
+        }
+
+        public List<String> getWarnings() {
+            return warnings;
+        }
+    }
+
+    /**
+     * @param baseUrl
+     *      base URL overriding the one of the scripts, or empty.
+     */
+    public static Result check(List<String> files, String baseUrl) {
+        Result result = new Result();
+        if (!StringUtils.isEmpty(baseUrl) && !isValidUrl(baseUrl))
+            result.problems.add("invalid baseUrl : " + baseUrl);
+
+        Set<File> checked = new HashSet<File>();
+        for (String file : files) {
+            check(new File(file), StringUtils.isEmpty(baseUrl), checked, result);
+        }
+        return result;
+    }
+
+    private static void check(File file, boolean checkBaseUrl, Set<File> checked, Result result) {
+        List<String> problems = result.problems;
+        if (!checked.add(file.getAbsoluteFile()))
+            return;
+        if (!file.isFile()) {
+            problems.add(file + " : file not found");
+            return;
+        }
+
+        Document document;
+        try {
+            document = SeleneseScripts.parse(file);
+        } catch (IOException e) {
+            problems.add(file + " : " + e.getMessage());
+            return;
+        }
+
+        Element suiteTable = SeleneseScripts.getSuiteTable(document);
+        if (suiteTable != null) {
+            List<File> testCases = SeleneseScripts.getTestCases(file, suiteTable);
+            if (testCases.isEmpty())
+                problems.add(file + " : test suite without test cases");
+            for (File testCase : testCases) {
+                check(testCase, checkBaseUrl, checked, result);
+            }
+        } else {
+            checkTestCase(file, document, checkBaseUrl, result);
+        }
+    }
+
+    /**
+     * Only checks the scheme and that there is a host: applications under test often run on
+     * <tt>localhost</tt>, on intranet hosts without a domain or on TLDs like <tt>.local</tt>.
+     */
+    static boolean isValidUrl(String url) {
+        try {
+            URI uri = new URI(url);
+            return uri.getScheme() != null && URL_SCHEMES.contains(uri.getScheme().toLowerCase())
+                && !StringUtils.isEmpty(uri.getHost());
+        } catch (URISyntaxException e) {
+            return false;
+        }
+    }
+
+    static void checkTestCase(File file, Document document, boolean checkBaseUrl, Result result) {
+        List<String> problems = result.problems;
+        if (checkBaseUrl) {
+            NodeList links = document.getElementsByTagName("link");
+            for (int i = 0; i < links.getLength(); i++) {
+                Element link = (Element) links.item(i);
+                String href = link.getAttribute("href");
+                if ("selenium.base".equals(link.getAttribute("rel")) && !isValidUrl(href))
+                    problems.add(file + " : invalid selenium.base " + href);
+            }
+        }
+
+        NodeList tables = document.getElementsByTagName("table");
+        if (tables.getLength() == 0) {
+            problems.add(file + " : no command table");
+            return;
+        }
+
+        NodeList rows = ((Element) tables.item(0)).getElementsByTagName("tr");
+        int number = 0;
+        for (int i = 0; i < rows.getLength(); i++) {
+            Element row = (Element) rows.item(i);
+            if (isInHead(row))
+                continue;
+            number++;
+            List<Element> cells = getCells(row);
+            if (cells.size() != 3) {
+                problems.add(file + " : row " + number + " has " + cells.size() + " cells instead of 3");
+                continue;
+            }
+            String command = cells.get(0).getTextContent().trim();
+            if (!COMMANDS.contains(command))
+                result.warnings.add(file + " : row " + number + " has unknown command '" + command + "'");
+        }
+        if (number == 0)
+            problems.add(file + " : no commands");
+    }
+
+    private static boolean isInHead(Element row) {
+        for (Node node = row.getParentNode(); node != null; node = node.getParentNode()) {
+            if ("thead".equalsIgnoreCase(node.getNodeName()))
+                return true;
+            if ("table".equalsIgnoreCase(node.getNodeName()))
+                return false;
+        }
+        return false;
+    }
+
+    private static List<Element> getCells(Element row) {
+        List<Element> cells = new ArrayList<Element>();
+        for (Node node = row.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node instanceof Element && "td".equalsIgnoreCase(node.getNodeName()))
+                cells.add((Element) node);
+        }
+        return cells;
+    }
+
+    private static Set<String> knownCommands() {
+        Set<String> commands = new HashSet<String>(BUILTIN_COMMANDS);
+        for (Method method : Selenium.class.getMethods()) {
+            String name = method.getName();
+            String accessor = null;
+            if (name.startsWith("get") && name.length() > 3) {
+                accessor = name.substring(3);
+            } else if (name.startsWith("is") && name.length() > 2) {
+                accessor = name.substring(2);
+            }
+
+            if (accessor != null) {
+                String negated = accessor.endsWith("Present")
+                    ? accessor.substring(0, accessor.length() - "Present".length()) + "NotPresent"
+                    : "Not" + accessor;
+                commands.add("store" + accessor);
+                for (String prefix : new String[] { "assert", "verify", "waitFor" }) {
+                    commands.add(prefix + accessor);
+                    commands.add(prefix + negated);
+                    commands.add(prefix + "Not" + accessor);
+                }
+            } else if (method.getReturnType() == void.class) {
+                commands.add(name);
+                commands.add(name + "AndWait");
+            }
+        }
+        for (String extra : StringUtils.split(
+            StringUtils.defaultString(System.getProperty(SeleneseLint.class.getName() + ".extraCommands")), ", ")) {
+            commands.add(extra);
+        }
+        return commands;
+    }
+
+    /**
+     * {@link SeleneseLint#check(List, String)} on the node holding the files.
+     */
+    public static class Check implements FileCallable<Result> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<String> files;
+
+        private final String baseUrl;
+
+        public Check(List<String> files, String baseUrl) {
+            this.files = files;
+            this.baseUrl = baseUrl;
+        }
+
+        public Result invoke(File workspace, VirtualChannel channel) {
+            return check(files, baseUrl);
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Metrics of the selenese runs of this Jenkins, per browser.
+ *
+ * <p>
+ * Each remote run adds its {@link SeleneseRunReport} and the duration of the remote call. The metrics
+ * are registered as MBeans <tt>jp.haya10.jenkins.seleneserunnerplugin:type=SeleneseMetrics,browser=...</tt>
+ * and written in the Prometheus text format by {@link SeleneseMetricsAction}.
+ */
+public class SeleneseMetrics {
+
+    private static final Logger LOGGER = Logger.getLogger(SeleneseMetrics.class.getName());
+
+    static final String DOMAIN = "jp.haya10.jenkins.seleneserunnerplugin";
+
+    private static final SeleneseMetrics INSTANCE = new SeleneseMetrics(true);
+
+    public static SeleneseMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Attributes of the MBean of one browser.
+     */
+    public interface BrowserMetricsMBean {
+        long getRuns();
+
+        long getRemoteCallMeanMillis();
+
+        long getRemoteCallMaxMillis();
+
+        long getDriverStartups();
+
+        long getDriverStartupMeanMillis();
+
+        long getDriverStartupP95Millis();
+
+        long getCommands();
+
+        long getCommandMeanMillis();
+
+        long getCommandP95Millis();
+
+        long getScreenshotBytes();
+    }
+
+    public static class BrowserMetrics implements BrowserMetricsMBean {
+        final DurationHistogram remoteCall = new DurationHistogram();
+
+        final DurationHistogram driverStartup = new DurationHistogram();
+
+        final DurationHistogram commands = new DurationHistogram();
+
+        final AtomicLong screenshotBytes = new AtomicLong();
+
+        public long getRuns() {
+            return remoteCall.getCount();
+        }
+
+        public long getRemoteCallMeanMillis() {
+            return remoteCall.getMean();
+        }
+
+        public long getRemoteCallMaxMillis() {
+            return remoteCall.getMax();
+        }
+
+        public long getDriverStartups() {
+            return driverStartup.getCount();
+        }
+
+        public long getDriverStartupMeanMillis() {
+            return driverStartup.getMean();
+        }
+
+        public long getDriverStartupP95Millis() {
+            return driverStartup.getPercentile(95);
+        }
+
+        public long getCommands() {
+            return commands.getCount();
+        }
+
+        public long getCommandMeanMillis() {
+            return commands.getMean();
+        }
+
+        public long getCommandP95Millis() {
+            return commands.getPercentile(95);
+        }
+
+        public long getScreenshotBytes() {
+            return screenshotBytes.get();
+        }
+    }
+
+    private final boolean registerMBeans;
+
+    private final Map<String, BrowserMetrics> browsers = new TreeMap<String, BrowserMetrics>();
+
+    SeleneseMetrics(boolean registerMBeans) {
+        this.registerMBeans = registerMBeans;
+    }
+
+    /**
+     * @param report
+     *      report of the run, or null if it failed.
+     * @param remoteCall
+     *      milliseconds the remote call took.
+     */
+    public void record(String browser, SeleneseRunReport report, long remoteCall) {
+        BrowserMetrics metrics = getBrowser(browser);
+        metrics.remoteCall.add(remoteCall);
+        if (report == null)
+            return;
+        metrics.driverStartup.merge(report.getDriverStartup());
+        for (DurationHistogram command : report.getCommands().values()) {
+            metrics.commands.merge(command);
+        }
+        metrics.screenshotBytes.addAndGet(report.getScreenshotBytes());
+    }
+
+    public synchronized Map<String, BrowserMetrics> getBrowsers() {
+        return new TreeMap<String, BrowserMetrics>(browsers);
+    }
+
+    private BrowserMetrics getBrowser(String browser) {
+        BrowserMetrics metrics;
+        synchronized (this) {
+            metrics = browsers.get(browser);
+            if (metrics != null)
+                return metrics;
+            metrics = new BrowserMetrics();
+            browsers.put(browser, metrics);
+        }
+        if (registerMBeans)
+            register("type=SeleneseMetrics,browser=" + ObjectName.quote(browser), metrics, BrowserMetricsMBean.class);
+        return metrics;
+    }
+
+    /**
+     * Writes the metrics in the Prometheus text format.
+     *
+     * @param sessions
+     *      active, idle and queued browser sessions of each node.
+     */
+    public void write(PrintWriter out, Map<String, long[]> sessions) {
+        Map<String, BrowserMetrics> browsers = getBrowsers();
+
+        line(out, "# HELP seleneserunner_remote_call_seconds Duration of the selenese run on a node.");
+        line(out, "# TYPE seleneserunner_remote_call_seconds histogram");
+        for (Map.Entry<String, BrowserMetrics> browser : browsers.entrySet()) {
+            writeHistogram(out, "seleneserunner_remote_call_seconds", browser.getKey(), browser.getValue().remoteCall);
+        }
+        line(out, "# HELP seleneserunner_driver_startup_seconds Time to start a browser.");
+        line(out, "# TYPE seleneserunner_driver_startup_seconds histogram");
+        for (Map.Entry<String, BrowserMetrics> browser : browsers.entrySet()) {
+            writeHistogram(out, "seleneserunner_driver_startup_seconds", browser.getKey(),
+                browser.getValue().driverStartup);
+        }
+        line(out, "# HELP seleneserunner_command_seconds Duration of a selenese command.");
+        line(out, "# TYPE seleneserunner_command_seconds histogram");
+        for (Map.Entry<String, BrowserMetrics> browser : browsers.entrySet()) {
+            writeHistogram(out, "seleneserunner_command_seconds", browser.getKey(), browser.getValue().commands);
+        }
+        line(out, "# HELP seleneserunner_screenshot_bytes_total Bytes of screenshots written.");
+        line(out, "# TYPE seleneserunner_screenshot_bytes_total counter");
+        for (Map.Entry<String, BrowserMetrics> browser : browsers.entrySet()) {
+            line(out, "seleneserunner_screenshot_bytes_total{browser=\"" + escape(browser.getKey()) + "\"} "
+                + browser.getValue().screenshotBytes.get());
+        }
+
+        line(out, "# HELP seleneserunner_browser_sessions Browser sessions on a node.");
+        line(out, "# TYPE seleneserunner_browser_sessions gauge");
+        String[] states = { "active", "idle", "queued" };
+        for (Map.Entry<String, long[]> node : sessions.entrySet()) {
+            for (int i = 0; i < states.length; i++) {
+                line(out, "seleneserunner_browser_sessions{node=\"" + escape(node.getKey()) + "\",state=\""
+                    + states[i] + "\"} " + node.getValue()[i]);
+            }
+        }
+    }
+
+    private static void writeHistogram(PrintWriter out, String name, String browser, DurationHistogram histogram) {
+        String label = "browser=\"" + escape(browser) + "\"";
+        long[] bounds = DurationHistogram.getBucketBounds();
+        long[] counts = histogram.getBucketCounts();
+        long cumulative = 0;
+        for (int i = 0; i < bounds.length; i++) {
+            cumulative += counts[i];
+            String le = bounds[i] == Long.MAX_VALUE ? "+Inf" : String.valueOf(bounds[i] / 1000.0);
+            line(out, name + "_bucket{" + label + ",le=\"" + le + "\"} " + cumulative);
+        }
+        line(out, name + "_sum{" + label + "} " + histogram.getTotal() / 1000.0);
+        line(out, name + "_count{" + label + "} " + cumulative);
+    }
+
+    /**
+     * The text format wants '\n' line ends, whatever the platform.
+     */
+    private static void line(PrintWriter out, String line) {
+        out.print(line);
+        out.print('\n');
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * Registers an MBean in the platform MBean server of this JVM, which is the agent's for the pools of agents.
+     */
+    static <T> void register(String properties, T mbean, Class<T> type) {
+        try {
+            ObjectName name = new ObjectName(DOMAIN + ":" + properties);
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name))
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(mbean, type), name);
+        } catch (JMException e) {
+            LOGGER.log(Level.WARNING, "failed to register " + properties, e);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.RootAction;
+import hudson.remoting.Callable;
+import hudson.remoting.VirtualChannel;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+import org.apache.commons.lang.StringUtils;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Serves {@link SeleneseMetrics} and the browser sessions of every online node at
+ * <tt>/seleneserunner-metrics/</tt>, in the Prometheus text format.
+ *
+ * @author Hayato Ito
+ */
+@Extension
+public class SeleneseMetricsAction implements RootAction {
+
+    private static final Logger LOGGER = Logger.getLogger(SeleneseMetricsAction.class.getName());
+
+    /**
+     * Milliseconds to wait for a node to answer, slow nodes are left out of the scrape.
+     */
+    static final long NODE_TIMEOUT = Long.getLong(SeleneseMetricsAction.class.getName() + ".nodeTimeout", 5000);
+
+    public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Jenkins.getInstance().checkPermission(Jenkins.READ);
+        rsp.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+        PrintWriter out = rsp.getWriter();
+        SeleneseMetrics.getInstance().write(out, getSessions());
+        out.flush();
+    }
+
+    /**
+     * @return active, idle and queued browser sessions of each online node.
+     */
+    static Map<String, long[]> getSessions() {
+        Map<String, Future<long[]>> futures = new TreeMap<String, Future<long[]>>();
+        for (Computer computer : Jenkins.getInstance().getComputers()) {
+            VirtualChannel channel = computer.getChannel();
+            if (channel == null)
+                continue;
+            try {
+                futures.put(StringUtils.defaultIfEmpty(computer.getName(), "master"), channel.callAsync(new PoolStats()));
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "failed to ask " + computer.getName() + " for its browser sessions", e);
+            }
+        }
+
+        Map<String, long[]> result = new TreeMap<String, long[]>();
+        long deadline = System.currentTimeMillis() + NODE_TIMEOUT;
+        for (Map.Entry<String, Future<long[]>> future : futures.entrySet()) {
+            try {
+                result.put(future.getKey(),
+                    future.getValue().get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS));
+            } catch (Exception e) {
+                future.getValue().cancel(true);
+                LOGGER.log(Level.FINE, "no browser sessions of " + future.getKey(), e);
+            }
+        }
+        return result;
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "Selenese Metrics";
+    }
+
+    public String getUrlName() {
+        return "seleneserunner-metrics";
+    }
+
+    /**
+     * Browser sessions of the node. Active browsers are counted by the slots of the {@link BrowserLimiter} they
+     * take, whether they are pooled or not and whether they run in the agent JVM or in the runner daemon.
+     */
+    static class PoolStats implements Callable<long[], RuntimeException> {
+        private static final long serialVersionUID = 1L;
+
+        public long[] call() {
+            BrowserLimiter limiter = BrowserLimiter.getInstance();
+            WebDriverPool pool = WebDriverPool.getInstance();
+            return new long[] { limiter.getUsed(), pool.getIdleCount(),
+                pool.getWaitingCount() + limiter.getQueueLength() };
+        }
+    }
+}
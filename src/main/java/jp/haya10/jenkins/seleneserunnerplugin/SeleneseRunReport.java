@@ -0,0 +1,223 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Outcome of a selenese run on a node: result and timings of every test case and command,
+ * driver startup and screenshots. Reports of shards and nodes are merged into one.
+ */
+public class SeleneseRunReport implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public static class CaseResult implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String name;
+
+        private final long duration;
+
+        private final boolean success;
+
+        private final int attempts;
+
+        private final String browser;
+
+        public CaseResult(String name, long duration, boolean success) {
+            this(name, duration, success, 1);
+        }
+
+        public CaseResult(String name, long duration, boolean success, int attempts) {
+            this(name, duration, success, attempts, null);
+        }
+
+        /**
+         * @param duration
+         *      milliseconds of all attempts together.
+         * @param success
+         *      result of the last attempt.
+         * @param browser
+         *      browser the test case ran on, or null if unknown.
+         */
+        public CaseResult(String name, long duration, boolean success, int attempts, String browser) {
+            this.name = name;
+            this.duration = duration;
+            this.success = success;
+            this.attempts = attempts;
+            this.browser = browser;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return milliseconds.
+         */
+        public long getDuration() {
+            return duration;
+        }
+
+        public boolean isSuccess() {
+            return success;
+        }
+
+        /**
+         * @return browser the test case ran on, null for results persisted before it was recorded.
+         */
+        public String getBrowser() {
+            return browser;
+        }
+
+        /**
+         * Results persisted before retries existed load as 0, which means 1.
+         */
+        public int getAttempts() {
+            return Math.max(1, attempts);
+        }
+
+        /**
+         * @return true if the test case passed only after a retry.
+         */
+        public boolean isFlaky() {
+            return success && getAttempts() > 1;
+        }
+    }
+
+    private boolean success = true;
+
+    private final List<CaseResult> cases = new ArrayList<CaseResult>();
+
+    private final Map<String, DurationHistogram> commands = new TreeMap<String, DurationHistogram>();
+
+    private final DurationHistogram driverStartup = new DurationHistogram();
+
+    private int screenshots;
+
+    private long screenshotBytes;
+
+    private long proxyHits;
+
+    private long proxyMisses;
+
+    private long proxyBytesSaved;
+
+    public synchronized boolean isSuccess() {
+        return success;
+    }
+
+    public synchronized void setSuccess(boolean success) {
+        this.success = success;
+    }
+
+    public void addCase(String name, long duration, boolean success) {
+        addCase(name, duration, success, 1);
+    }
+
+    public void addCase(String name, long duration, boolean success, int attempts) {
+        addCase(name, duration, success, attempts, null);
+    }
+
+    public synchronized void addCase(String name, long duration, boolean success, int attempts, String browser) {
+        cases.add(new CaseResult(name, duration, success, attempts, browser));
+        this.success &= success;
+    }
+
+    public synchronized void addCommand(String name, long duration) {
+        DurationHistogram histogram = commands.get(name);
+        if (histogram == null) {
+            histogram = new DurationHistogram();
+            commands.put(name, histogram);
+        }
+        histogram.add(duration);
+    }
+
+    public void addDriverStartup(long duration) {
+        driverStartup.add(duration);
+    }
+
+    public synchronized void addScreenshots(int count, long bytes) {
+        screenshots += count;
+        screenshotBytes += bytes;
+    }
+
+    /**
+     * @param bytesSaved
+     *      bytes served from the cache of the {@link CachingProxy}.
+     */
+    public synchronized void addProxy(long hits, long misses, long bytesSaved) {
+        proxyHits += hits;
+        proxyMisses += misses;
+        proxyBytesSaved += bytesSaved;
+    }
+
+    public synchronized List<CaseResult> getCases() {
+        return new ArrayList<CaseResult>(cases);
+    }
+
+    public synchronized Map<String, DurationHistogram> getCommands() {
+        return new TreeMap<String, DurationHistogram>(commands);
+    }
+
+    public DurationHistogram getDriverStartup() {
+        return driverStartup;
+    }
+
+    public synchronized int getScreenshots() {
+        return screenshots;
+    }
+
+    public synchronized long getScreenshotBytes() {
+        return screenshotBytes;
+    }
+
+    public synchronized long getProxyHits() {
+        return proxyHits;
+    }
+
+    public synchronized long getProxyMisses() {
+        return proxyMisses;
+    }
+
+    public synchronized long getProxyBytesSaved() {
+        return proxyBytesSaved;
+    }
+
+    public void merge(SeleneseRunReport other) {
+        boolean otherSuccess;
+        List<CaseResult> otherCases;
+        Map<String, DurationHistogram> otherCommands;
+        int otherScreenshots;
+        long otherScreenshotBytes;
+        long[] otherProxy;
+        synchronized (other) {
+            otherSuccess = other.success;
+            otherCases = new ArrayList<CaseResult>(other.cases);
+            otherCommands = new TreeMap<String, DurationHistogram>(other.commands);
+            otherScreenshots = other.screenshots;
+            otherScreenshotBytes = other.screenshotBytes;
+            otherProxy = new long[] { other.proxyHits, other.proxyMisses, other.proxyBytesSaved };
+        }
+        synchronized (this) {
+            success &= otherSuccess;
+            cases.addAll(otherCases);
+            for (Map.Entry<String, DurationHistogram> command : otherCommands.entrySet()) {
+                DurationHistogram histogram = commands.get(command.getKey());
+                if (histogram == null) {
+                    histogram = new DurationHistogram();
+                    commands.put(command.getKey(), histogram);
+                }
+                histogram.merge(command.getValue());
+            }
+            screenshots += otherScreenshots;
+            screenshotBytes += otherScreenshotBytes;
+            proxyHits += otherProxy[0];
+            proxyMisses += otherProxy[1];
+            proxyBytesSaved += otherProxy[2];
+        }
+        driverStartup.merge(other.driverStartup);
+    }
+}
@@ -0,0 +1,233 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * What the agent needs to run selenese: the settings of a {@link SeleneseRunnerBuilder} resolved for one node,
+ * with paths as plain strings and the environment as a diff against the agent's own environment.
+ *
+ * <p>
+ * This is what goes over the channel instead of the builder itself.
+ */
+public final class SeleneseRunSpec implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String browser;
+
+    private final String baseUrl;
+
+    private final boolean screenshotAll;
+
+    private final boolean screenshotOnFail;
+
+    private final String screenshotDir;
+
+    private final String junitDir;
+
+    private final String baseDir;
+
+    private final List<List<String>> shards;
+
+    private final int width;
+
+    private final int height;
+
+    private final List<String> capabilities;
+
+    private final List<String> proxyCacheRules;
+
+    private final boolean reuseBrowser;
+
+    private final int failFast;
+
+    private final int retries;
+
+    private final boolean xvfb;
+
+    private final boolean quietLog;
+
+    private final boolean optimizeScreenshots;
+
+    private final int screenshotScale;
+
+    private final String chromedriver;
+
+    private final String phantomjs;
+
+    private final int maxBrowsers;
+
+    private final String daemonDir;
+
+    private final EnvironmentDiff env;
+
+    /**
+     * @param screenshotDir
+     *      absolute screenshot directory on the node, or null if screenshots are not taken.
+     * @param junitDir
+     *      absolute JUnit result directory on the node, or null if no JUnit result is written.
+     * @param baseDir
+     *      directory test case names are made relative to.
+     * @param shards
+     *      test case files run at the same time, each shard on its own browser.
+     * @param maxBrowsers
+     *      browsers allowed at the same time on the node, 0 for its default.
+     * @param daemonDir
+     *      directory of the {@link RunnerDaemon} on the node, or null to run in the agent JVM.
+     */
+    public SeleneseRunSpec(SeleneseRunnerBuilder builder, String browser, String screenshotDir, String junitDir, String baseDir,
+        List<List<String>> shards, String chromedriver, String phantomjs, int maxBrowsers, String daemonDir,
+        EnvironmentDiff env) {
+        this.browser = browser;
+        this.baseUrl = builder.getBaseUrl();
+        this.screenshotAll = builder.isScreenshotAll();
+        this.screenshotOnFail = builder.isScreenshotOnFail();
+        this.screenshotDir = screenshotDir;
+        this.junitDir = junitDir;
+        this.baseDir = baseDir;
+        List<List<String>> copy = new ArrayList<List<String>>();
+        for (List<String> shard : shards) {
+            copy.add(Collections.unmodifiableList(new ArrayList<String>(shard)));
+        }
+        this.shards = Collections.unmodifiableList(copy);
+        this.width = builder.getWidth();
+        this.height = builder.getHeight();
+        List<String> capabilities = new ArrayList<String>();
+        if (builder.getCapabilities() != null) {
+            for (String capability : builder.getCapabilities().split("\n")) {
+                if (!StringUtils.isEmpty(capability))
+                    capabilities.add(capability);
+            }
+        }
+        this.capabilities = Collections.unmodifiableList(capabilities);
+        List<String> proxyCacheRules = new ArrayList<String>();
+        for (String rule : builder.getProxyCacheRules().split("\n")) {
+            if (!StringUtils.isBlank(rule))
+                proxyCacheRules.add(rule.trim());
+        }
+        this.proxyCacheRules = Collections.unmodifiableList(proxyCacheRules);
+        this.reuseBrowser = builder.isReuseBrowser();
+        this.failFast = builder.getFailFast();
+        this.retries = builder.getRetries();
+        this.xvfb = builder.isXvfb();
+        this.quietLog = builder.isQuietLog();
+        this.optimizeScreenshots = builder.isOptimizeScreenshots();
+        this.screenshotScale = builder.getScreenshotScale();
+        this.chromedriver = chromedriver;
+        this.phantomjs = phantomjs;
+        this.maxBrowsers = maxBrowsers;
+        this.daemonDir = daemonDir;
+        this.env = env;
+    }
+
+    public String getBrowser() {
+        return browser;
+    }
+
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
+    public boolean isScreenshotAll() {
+        return screenshotAll;
+    }
+
+    public boolean isScreenshotOnFail() {
+        return screenshotOnFail;
+    }
+
+    public String getScreenshotDir() {
+        return screenshotDir;
+    }
+
+    public String getJunitDir() {
+        return junitDir;
+    }
+
+    public String getBaseDir() {
+        return baseDir;
+    }
+
+    public List<List<String>> getShards() {
+        return shards;
+    }
+
+    public int getTestCaseCount() {
+        int count = 0;
+        for (List<String> shard : shards) {
+            count += shard.size();
+        }
+        return count;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public List<String> getCapabilities() {
+        return capabilities;
+    }
+
+    /**
+     * @return URL patterns of the responses kept by the {@link CachingProxy}, empty to run without the proxy.
+     */
+    public List<String> getProxyCacheRules() {
+        return proxyCacheRules;
+    }
+
+    public boolean isReuseBrowser() {
+        return reuseBrowser;
+    }
+
+    public int getFailFast() {
+        return failFast;
+    }
+
+    public int getRetries() {
+        return retries;
+    }
+
+    public boolean isXvfb() {
+        return xvfb;
+    }
+
+    public boolean isQuietLog() {
+        return quietLog;
+    }
+
+    public boolean isOptimizeScreenshots() {
+        return optimizeScreenshots;
+    }
+
+    public int getScreenshotScale() {
+        return screenshotScale;
+    }
+
+    public String getChromedriver() {
+        return chromedriver;
+    }
+
+    public String getPhantomjs() {
+        return phantomjs;
+    }
+
+    public int getMaxBrowsers() {
+        return maxBrowsers;
+    }
+
+    public String getDaemonDir() {
+        return daemonDir;
+    }
+
+    public EnvironmentDiff getEnv() {
+        return env;
+    }
+}
@@ -1,32 +1,54 @@
 package jp.haya10.jenkins.seleneserunnerplugin;
 
+import hudson.EnvVars;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
+import hudson.Util;
 import hudson.model.BuildListener;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
+import hudson.model.Action;
+import hudson.model.Computer;
 import hudson.model.Descriptor;
-import hudson.remoting.Callable;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.remoting.VirtualChannel;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
 import hudson.util.FormValidation;
 
-import java.io.File;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import javax.naming.directory.InvalidAttributesException;
 
-import jp.vmi.selenium.selenese.Runner;
-import jp.vmi.selenium.webdriver.DriverOptions;
-import jp.vmi.selenium.webdriver.DriverOptions.DriverOption;
-import jp.vmi.selenium.webdriver.WebDriverManager;
+import jenkins.model.Jenkins;
 import net.sf.json.JSONObject;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.commons.validator.routines.UrlValidator;
+import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
@@ -48,10 +70,9 @@ import org.kohsuke.stapler.StaplerRequest;
  *
  * @author Hayato Ito
  */
-public class SeleneseRunnerBuilder extends Builder implements Serializable {
+public class SeleneseRunnerBuilder extends Builder {
 
     private final String seleneseFile;
-    private static final long serialVersionUID = -6980802829735878901L;
 
     private final String browser;
 
@@ -73,97 +94,37 @@ public class SeleneseRunnerBuilder extends Builder implements Serializable {
 
     private final String capabilities;
 
-    private static class SeleneseRunnerCallable implements Callable<Boolean, Throwable> {
-        private static final long serialVersionUID = 2416651790883391162L;
+    private final int workers;
 
-        SeleneseRunnerBuilder builder;
-        BuildListener listener;
-        FilePath junitdir;
-        FilePath screenshotDirPath;
-        FilePath seleneseFilePath;
-        int height;
-        int width;
-        String[] capabilities;
-        Map<String, String> env;
+    private final boolean reuseBrowser;
 
-        public SeleneseRunnerCallable(SeleneseRunnerBuilder builder, BuildListener listener, FilePath junitdir,
-            FilePath screenshotDirPath, FilePath seleneseFilePath, int height, int width, String[] capabilities, Map<String, String> env) {
-            super();
-            this.builder = builder;
-            this.listener = listener;
-            this.junitdir = junitdir;
-            this.screenshotDirPath = screenshotDirPath;
-            this.seleneseFilePath = seleneseFilePath;
-            this.height = height;
-            this.width = width;
-            this.capabilities = capabilities;
-            this.env = env;
-        }
+    private final String distributeLabel;
 
-        public Boolean call() throws Throwable {
-            final Runner runner = new Runner();
-            //baseURL
-            if (!StringUtils.isEmpty(builder.getBaseUrl())) {
-                runner.setBaseURL(builder.getBaseUrl());
-            }
+    private final boolean reorderByHistory;
 
-            //console log
-            runner.setPrintStream(listener.getLogger());
+    private final int failFast;
 
-            //screenshot dir
-            if (builder.screenshotAll && !StringUtils.isEmpty(builder.screenshotDir)) {
-                runner.setScreenshotAllDir(screenshotDirPath.getRemote());
-            }
-            if (builder.screenshotOnFail && !StringUtils.isEmpty(builder.screenshotDir)) {
-                runner.setScreenshotOnFailDir(screenshotDirPath.getRemote());
-            }
-            if (!StringUtils.isEmpty(builder.screenshotDir)) {
-                runner.setScreenshotDir(screenshotDirPath.getRemote());
-            }
+    private final int retries;
 
-            if (junitdir != null) {
-                runner.setJUnitResultDir(junitdir.getRemote());
-            }
+    private final boolean xvfb;
 
-            //driver
-            final WebDriverManager manager = WebDriverManager.getInstance();
-            try {
-                manager.setWebDriverFactory(builder.browser);
-                listener.getLogger().println("browser:" + builder.browser);
-
-                DriverOptions opt = new DriverOptions();
-                if (builder.browser.equals(WebDriverManager.CHROME)) {
-                    opt.set(DriverOption.CHROMEDRIVER, PathUtils
-                        .searchExecutableFile("chromedriver").get(0).getAbsolutePath());
-                    listener.getLogger().println("chromedriver:" + opt.get(DriverOption.CHROMEDRIVER));
-                }
-                if (builder.browser.equals(WebDriverManager.PHANTOMJS)) {
-                    if (height != 0 && width != 0) {
-                        opt.set(DriverOption.HEIGHT, String.valueOf(height));
-                        opt.set(DriverOption.WIDTH, String.valueOf(width));
-                    }
-                }
+    private final boolean quietLog;
 
-                //add each defined capability
-                for (String capability : capabilities) {
-                    if (!StringUtils.isEmpty(capability)) {
-                        opt.set(DriverOption.DEFINE, capability);
-                    }
-                }
+    private final boolean optimizeScreenshots;
 
-                manager.setDriverOptions(opt);
-                manager.getEnvironmentVariables().clear();
-                manager.getEnvironmentVariables().putAll(env);
+    private final int screenshotScale;
 
-                runner.setDriver(manager.get());
+    private final boolean storeScreenshots;
 
-                return runner.run(seleneseFilePath.getRemote()).isSuccess();
-            } finally {
-                manager.quitAllDrivers();
-            }
-        }
+    private final String browserMatrix;
 
-    }
+    private final boolean mergeJUnit;
+
+    private final String cacheVersion;
+
+    private final boolean runnerDaemon;
+
+    private final String proxyCacheRules;
 
     // Fields in config.jelly must match the parameter names in the "DataBoundConstructor"
     /**
@@ -176,12 +137,33 @@ public class SeleneseRunnerBuilder extends Builder implements Serializable {
      * @param junitresult
      * @param size
      * @param capabilities
+     * @param workers
+     * @param reuseBrowser
+     * @param distributeLabel
+     * @param reorderByHistory
+     * @param failFast
+     * @param retries
+     * @param xvfb
+     * @param quietLog
+     * @param optimizeScreenshots
+     * @param screenshotScale
+     * @param storeScreenshots
+     * @param browserMatrix
+     * @param mergeJUnit
+     * @param cacheVersion
+     * @param runnerDaemon
+     * @param proxyCacheRules
      * @throws InvalidAttributesException 
      */
     @DataBoundConstructor
     public SeleneseRunnerBuilder(final String seleneseFile, final String browser, final boolean screenshotAll,
         final boolean screenshotOnFail,
-        final String screenshotDir, final String baseUrl, final String junitresult, final String size, final String capabilities)
+        final String screenshotDir, final String baseUrl, final String junitresult, final String size, final String capabilities,
+        final int workers, final boolean reuseBrowser, final String distributeLabel, final boolean reorderByHistory,
+        final int failFast, final int retries, final boolean xvfb, final boolean quietLog,
+        final boolean optimizeScreenshots, final int screenshotScale, final boolean storeScreenshots,
+        final String browserMatrix, final boolean mergeJUnit, final String cacheVersion,
+        final boolean runnerDaemon, final String proxyCacheRules)
         throws InvalidAttributesException {
         this.seleneseFile = seleneseFile;
         this.browser = browser;
@@ -199,6 +181,30 @@ public class SeleneseRunnerBuilder extends Builder implements Serializable {
             this.height = 0;
         }
         this.capabilities = capabilities;
+        this.workers = workers;
+        this.reuseBrowser = reuseBrowser;
+        this.distributeLabel = distributeLabel;
+        this.reorderByHistory = reorderByHistory;
+        this.failFast = failFast;
+        this.retries = retries;
+        this.xvfb = xvfb;
+        this.quietLog = quietLog;
+        this.optimizeScreenshots = optimizeScreenshots;
+        this.screenshotScale = screenshotScale;
+        this.storeScreenshots = storeScreenshots;
+        this.browserMatrix = browserMatrix;
+        this.mergeJUnit = mergeJUnit;
+        this.cacheVersion = cacheVersion;
+        this.runnerDaemon = runnerDaemon;
+        this.proxyCacheRules = proxyCacheRules;
+    }
+
+    public SeleneseRunnerBuilder(final String seleneseFile, final String browser, final boolean screenshotAll,
+        final boolean screenshotOnFail,
+        final String screenshotDir, final String baseUrl, final String junitresult, final String size, final String capabilities)
+        throws InvalidAttributesException {
+        this(seleneseFile, browser, screenshotAll, screenshotOnFail, screenshotDir, baseUrl, junitresult, size, capabilities, 1, false, null,
+            false, 0, 0, false, false, false, 100, false, null, false, null, false, null);
     }
 
     public String getSeleneseFile() {
@@ -237,8 +243,142 @@ public class SeleneseRunnerBuilder extends Builder implements Serializable {
         return capabilities;
     }
 
+    /**
+     * Number of shards run at the same time, each with its own browser.
+     * Configurations saved before this option existed load as 0, which means 1.
+     */
+    public int getWorkers() {
+        return Math.max(1, workers);
+    }
+
+    public boolean isReuseBrowser() {
+        return reuseBrowser;
+    }
+
+    /**
+     * Label of the nodes the test cases are distributed to, or empty to run on the build's node only.
+     */
+    public String getDistributeLabel() {
+        return StringUtils.trimToEmpty(distributeLabel);
+    }
+
+    /**
+     * Whether test cases that failed recently run first and the rest are balanced by their past durations.
+     */
+    public boolean isReorderByHistory() {
+        return reorderByHistory;
+    }
+
+    /**
+     * Number of failed test cases after which the run stops, or 0 to run all test cases.
+     */
+    public int getFailFast() {
+        return Math.max(0, failFast);
+    }
+
+    /**
+     * Number of times a failed test case is run again on a fresh browser.
+     */
+    public int getRetries() {
+        return Math.max(0, retries);
+    }
+
+    /**
+     * Whether each shard runs its browser on its own Xvfb display from {@link XvfbDisplayPool}.
+     */
+    public boolean isXvfb() {
+        return xvfb;
+    }
+
+    /**
+     * Whether only failures and a summary of the selenese log go to the build log.
+     */
+    public boolean isQuietLog() {
+        return quietLog;
+    }
+
+    /**
+     * Whether screenshots go through {@link ScreenshotPipeline}.
+     */
+    public boolean isOptimizeScreenshots() {
+        return optimizeScreenshots;
+    }
+
+    /**
+     * Size of optimized screenshots in percent of the browser window.
+     * Configurations saved before this option existed load as 0, which means 100.
+     */
+    public int getScreenshotScale() {
+        return screenshotScale <= 0 ? 100 : Math.min(100, screenshotScale);
+    }
+
+    /**
+     * Whether the screenshots of each build are kept in the {@link ContentStore} of the job.
+     */
+    public boolean isStoreScreenshots() {
+        return storeScreenshots;
+    }
+
+    /**
+     * Browsers to run the same test cases on in addition to {@link #getBrowser()}, comma separated.
+     */
+    public String getBrowserMatrix() {
+        return StringUtils.trimToEmpty(browserMatrix);
+    }
+
+    /**
+     * Whether the JUnit result files are merged into one file with a summary, see {@link JUnitMerger}.
+     */
+    public boolean isMergeJUnit() {
+        return mergeJUnit;
+    }
+
+    /**
+     * Version of the application under test, with build variables. If set, successful runs are kept in the
+     * {@link ResultCache} of the job and reused while neither the scripts nor the other settings change.
+     */
+    public String getCacheVersion() {
+        return StringUtils.trimToEmpty(cacheVersion);
+    }
+
+    /**
+     * Whether selenese runs in the {@link RunnerDaemon} of the node instead of in the agent JVM.
+     */
+    public boolean isRunnerDaemon() {
+        return runnerDaemon;
+    }
+
+    /**
+     * URL patterns of the responses the {@link CachingProxy} keeps, one regular expression per line.
+     * If empty, the browser connects to the application directly.
+     */
+    public String getProxyCacheRules() {
+        return StringUtils.trimToEmpty(proxyCacheRules);
+    }
+
+    /**
+     * Whether suites are run as their test cases, which the options working per test case need.
+     */
+    boolean isExpandSuites() {
+        return isReorderByHistory() || getWorkers() > 1 || !StringUtils.isEmpty(getDistributeLabel())
+            || !StringUtils.isEmpty(getCacheVersion()) || getRetries() > 0 || getFailFast() > 0;
+    }
+
+    /**
+     * @return {@link #getBrowser()} followed by the other browsers of the matrix, without duplicates.
+     */
+    public List<String> getBrowsers() {
+        Set<String> browsers = new LinkedHashSet<String>();
+        browsers.add(getBrowser());
+        for (String browser : StringUtils.split(getBrowserMatrix(), ", ")) {
+            browsers.add(browser);
+        }
+        return new ArrayList<String>(browsers);
+    }
+
     @Override
-    public boolean perform(final AbstractBuild build, Launcher launcher, final BuildListener listener) {
+    public boolean perform(final AbstractBuild build, Launcher launcher, final BuildListener listener)
+        throws InterruptedException {
         listener.getLogger().println("selenese start.");
 
         try {
@@ -253,8 +393,26 @@ public class SeleneseRunnerBuilder extends Builder implements Serializable {
             listener.getLogger().println("selenese file : " + getSeleneseFile());
             listener.getLogger().println("override baseUrl : " + baseUrl);
 
-            //selenese file
-            final FilePath seleneseFilePath = build.getWorkspace().child(getSeleneseFile());
+            //selenese files
+            final List<String> seleneseFiles = expandSeleneseFiles(build.getWorkspace(), getSeleneseFile());
+            if (seleneseFiles.isEmpty()) {
+                listener.getLogger().println("no selenese file matches : " + getSeleneseFile());
+                return false;
+            }
+
+            //pre-flight check, before any browser is started
+            SeleneseLint.Result lint = build.getWorkspace().act(new SeleneseLint.Check(seleneseFiles, getBaseUrl()));
+            for (String warning : lint.getWarnings()) {
+                listener.getLogger().println("WARNING: " + warning);
+            }
+            List<String> problems = lint.getProblems();
+            if (!problems.isEmpty()) {
+                for (String problem : problems) {
+                    listener.error(problem);
+                }
+                listener.getLogger().println("selenese scripts are not valid.");
+                return false;
+            }
 
             //junitdir
             FilePath junitdir = null;
@@ -262,25 +420,88 @@ public class SeleneseRunnerBuilder extends Builder implements Serializable {
                 junitdir = build.getWorkspace().child(getJunitresult());
                 junitdir.mkdirs();
                 listener.getLogger().println("output junitresult xml to :" + getJunitresult());
+                //results merged by earlier builds are not merged again.
+                if (isMergeJUnit() && junitdir.act(new JUnitMerger.Clean(getBuildId(build))))
+                    listener.getLogger().println("deleted the merged JUnit results of an earlier build.");
+            }
+
+            //screenshots already there are not the ones of this build.
+            Map<String, Long> screenshotsBefore = null;
+            if (isStoreScreenshots() && !StringUtils.isEmpty(getScreenshotDir())) {
+                screenshotsBefore = screenshotDirPath.act(new ContentStore.Snapshot());
+            }
+
+            //test cases, in the order of execution. Suites are only expanded when the test cases are
+            //reordered, split, hashed, retried or counted; otherwise selenese-runner runs the files as given.
+            List<String> testCases = seleneseFiles;
+            if (isExpandSuites()) {
+                testCases = build.getWorkspace().act(new SeleneseScripts.ExpandSuites(seleneseFiles));
             }
 
-            //size
-            int height = parseSize(size).getRight();
-            int width = parseSize(size).getLeft();
+            //a cached run of the same scripts and settings is reused instead of starting the browsers.
+            String cacheKey = null;
+            if (!StringUtils.isEmpty(getCacheVersion())) {
+                List<String> scripts = new ArrayList<String>(seleneseFiles);
+                scripts.addAll(testCases);
+                cacheKey = ResultCache.key(build.getWorkspace(), scripts, Arrays.asList(
+                    StringUtils.join(getBrowsers(), ","), getBaseUrl(), getSize(), getCapabilities(),
+                    Util.replaceMacro(getCacheVersion(), env)));
+                SeleneseRunReport cached = ResultCache.of(build.getProject()).get(cacheKey, junitdir);
+                if (cached != null) {
+                    listener.getLogger().println("result cache hit : " + cacheKey + ", selenese is not run.");
+                    addPerformanceAction(build, cached);
+                    build.getAction(SeleneseRunnerPerformanceAction.class).setCached(true);
+                    if (junitdir != null && isMergeJUnit())
+                        mergeJUnit(build, junitdir, listener);
+                    recordTimings(build, listener);
+                    return cached.isSuccess();
+                }
+                listener.getLogger().println("result cache miss : " + cacheKey);
+            }
+
+            Map<String, Long> durations = new HashMap<String, Long>();
+            if (isReorderByHistory()) {
+                testCases = orderByHistory(TestCaseHistory.load(build.getProject()), build.getWorkspace(), testCases,
+                    durations);
+                listener.getLogger().println("test cases are ordered by history.");
+            }
 
-            //capabilities
-            String[] capabilities = null;
-            if (getCapabilities() == null) {
-                capabilities = new String[] {};
+            List<String> browsers = getBrowsers();
+            SeleneseRunReport report;
+            if (browsers.size() == 1) {
+                report = performBrowser(build, launcher, listener, getBrowser(), testCases, durations, junitdir,
+                    screenshotDirPath, env);
             } else {
-                capabilities = getCapabilities().split("\n");
+                report = performMatrix(build, launcher, listener, browsers, testCases, durations, junitdir,
+                    screenshotDirPath, env);
             }
+            if (report == null)
+                return false;
 
-            //boot selenese-runner on the target.
-            SeleneseRunnerCallable callable = new SeleneseRunnerCallable(this, listener, junitdir, screenshotDirPath, seleneseFilePath,
-                height, width, capabilities,
-                env);
-            return launcher.getChannel().call(callable);
+            addPerformanceAction(build, report);
+            if (junitdir != null && isMergeJUnit()) {
+                mergeJUnit(build, junitdir, listener);
+            }
+            if (screenshotsBefore != null) {
+                storeScreenshots(build, screenshotDirPath, screenshotsBefore, listener);
+            }
+            try {
+                TestCaseHistory.record(build.getProject(), build.getNumber(), report.getCases());
+            } catch (IOException e) {
+                e.printStackTrace(listener.error("failed to save test case history"));
+            }
+            recordTimings(build, listener);
+            if (cacheKey != null && report.isSuccess()) {
+                try {
+                    ResultCache.of(build.getProject()).put(cacheKey, report, junitdir);
+                } catch (IOException e) {
+                    e.printStackTrace(listener.error("failed to cache the result"));
+                }
+            }
+            return report.isSuccess();
+        } catch (InterruptedException e) {
+            listener.getLogger().println("selenese aborted.");
+            throw e;
         } catch (Throwable t) {
             t.printStackTrace(listener.getLogger());
             return false;
@@ -289,6 +510,367 @@ public class SeleneseRunnerBuilder extends Builder implements Serializable {
         }
     }
 
+    /**
+     * Runs the test cases on every browser at the same time. JUnit results and screenshots
+     * go to a sub directory per browser, and the JUnit suites and classes are prefixed with the browser.
+     */
+    private SeleneseRunReport performMatrix(final AbstractBuild build, final Launcher launcher,
+        final BuildListener listener, List<String> browsers, final List<String> testCases,
+        final Map<String, Long> durations, final FilePath junitdir, final FilePath screenshotDirPath,
+        final Map<String, String> env) throws Exception {
+        listener.getLogger().println("run on browsers : " + StringUtils.join(browsers, ", "));
+        ExecutorService executor = Executors.newFixedThreadPool(browsers.size());
+        try {
+            List<Future<SeleneseRunReport>> futures = new ArrayList<Future<SeleneseRunReport>>();
+            for (final String browser : browsers) {
+                final FilePath browserJunitdir = junitdir == null ? null : junitdir.child(browser);
+                if (browserJunitdir != null)
+                    browserJunitdir.mkdirs();
+                final FilePath browserScreenshotDir = screenshotDirPath.child(browser);
+                browserScreenshotDir.mkdirs();
+                futures.add(executor.submit(new java.util.concurrent.Callable<SeleneseRunReport>() {
+                    public SeleneseRunReport call() throws Exception {
+                        try {
+                            return performBrowser(build, launcher, listener, browser, testCases, durations,
+                                browserJunitdir, browserScreenshotDir, env);
+                        } finally {
+                            //also the partial results of an aborted run.
+                            boolean interrupted = Thread.interrupted();
+                            try {
+                                if (browserJunitdir != null)
+                                    browserJunitdir.act(new JUnitMerger.Qualify(browser));
+                            } finally {
+                                if (interrupted)
+                                    Thread.currentThread().interrupt();
+                            }
+                        }
+                    }
+                }));
+            }
+
+            SeleneseRunReport report = new SeleneseRunReport();
+            for (Future<SeleneseRunReport> future : futures) {
+                try {
+                    SeleneseRunReport browserReport = future.get();
+                    if (browserReport == null)
+                        return null;
+                    report.merge(browserReport);
+                } catch (ExecutionException e) {
+                    throw unwrap(e);
+                }
+            }
+            return report;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private SeleneseRunReport performBrowser(AbstractBuild build, Launcher launcher, BuildListener listener,
+        String browser, List<String> testCases, Map<String, Long> durations, FilePath junitdir,
+        FilePath screenshotDirPath, Map<String, String> env) throws Exception {
+        if (!StringUtils.isEmpty(getDistributeLabel()))
+            return performDistributed(build, listener, browser, testCases, durations, junitdir, screenshotDirPath);
+
+        //boot selenese-runner on the target.
+        SeleneseRunnerCallable callable = newCallable(browser, build.getBuiltOn(), launcher.getChannel(), listener,
+            junitdir, screenshotDirPath, build.getWorkspace(), shard(testCases, getWorkers(), durations), env);
+        return run(launcher.getChannel(), callable);
+    }
+
+    /**
+     * Splits the test cases across the online nodes of {@link #distributeLabel} and runs them in parallel.
+     * Scripts are copied to each node, and JUnit results and screenshots are copied back into the build
+     * workspace, under a sub directory per node.
+     */
+    private SeleneseRunReport performDistributed(final AbstractBuild build, final BuildListener listener,
+        final String browser, List<String> testCases, final Map<String, Long> durations,
+        final FilePath junitdir, final FilePath screenshotDirPath) throws Exception {
+        final FilePath workspace = build.getWorkspace();
+
+        List<Node> nodes = new ArrayList<Node>();
+        Label label = Jenkins.getInstance().getLabel(getDistributeLabel());
+        if (label != null) {
+            for (Node node : label.getNodes()) {
+                Computer computer = node.toComputer();
+                if (computer != null && computer.isOnline() && computer.getChannel() != null)
+                    nodes.add(node);
+            }
+        }
+        if (nodes.isEmpty()) {
+            listener.getLogger().println("no online node matches label : " + getDistributeLabel());
+            return null;
+        }
+
+        final List<List<String>> shards = shard(testCases, nodes.size(), durations);
+        listener.getLogger().println("distribute " + testCases.size() + " test cases to " + shards.size() + " nodes.");
+
+        ExecutorService executor = Executors.newFixedThreadPool(shards.size());
+        try {
+            List<Future<SeleneseRunReport>> futures = new ArrayList<Future<SeleneseRunReport>>();
+            for (int i = 0; i < shards.size(); i++) {
+                final Node node = nodes.get(i);
+                final List<String> shard = shards.get(i);
+                futures.add(executor.submit(new java.util.concurrent.Callable<SeleneseRunReport>() {
+                    public SeleneseRunReport call() throws Exception {
+                        return performOnNode(build, listener, browser, node, workspace, shard, durations, junitdir,
+                            screenshotDirPath);
+                    }
+                }));
+            }
+
+            SeleneseRunReport report = new SeleneseRunReport();
+            for (Future<SeleneseRunReport> future : futures) {
+                try {
+                    report.merge(future.get());
+                } catch (ExecutionException e) {
+                    throw unwrap(e);
+                }
+            }
+            return report;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private SeleneseRunReport performOnNode(AbstractBuild build, BuildListener listener, String browser, Node node,
+        FilePath workspace,
+        List<String> testCases, Map<String, Long> durations, FilePath junitdir, FilePath screenshotDirPath)
+        throws Exception {
+        String nodeName = StringUtils.defaultIfEmpty(node.getNodeName(), "master");
+        Computer computer = node.toComputer();
+
+        //the build's own node runs in place.
+        if (node == build.getBuiltOn()) {
+            listener.getLogger().println(nodeName + " : " + testCases.size() + " test cases.");
+            Map<String, String> env = build.getEnvironment(listener).descendingMap();
+            return run(computer.getChannel(),
+                newCallable(browser, node, computer.getChannel(), listener, junitdir, screenshotDirPath, workspace,
+                    shard(testCases, getWorkers(), durations), env));
+        }
+
+        //a directory of the build, so that concurrent builds of the job on the node keep their own files.
+        FilePath remoteWorkspace = node.getRootPath().child("seleneserunner")
+            .child(Util.rawEncode(build.getProject().getFullName())).child(build.getNumber() + "-" + browser);
+        remoteWorkspace.deleteRecursive();
+        remoteWorkspace.mkdirs();
+
+        //copy test cases, keeping their path relative to the workspace.
+        List<String> remoteCases = new ArrayList<String>();
+        Map<String, Long> remoteDurations = new HashMap<String, Long>();
+        for (String testCase : testCases) {
+            FilePath source = new FilePath(workspace.getChannel(), testCase);
+            String relative = relativize(workspace.getRemote(), testCase);
+            FilePath target = remoteWorkspace.child("scripts").child(relative);
+            target.getParent().mkdirs();
+            source.copyTo(target);
+            remoteCases.add(target.getRemote());
+            if (durations.containsKey(testCase))
+                remoteDurations.put(target.getRemote(), durations.get(testCase));
+        }
+
+        FilePath remoteJunitdir = null;
+        if (junitdir != null) {
+            remoteJunitdir = remoteWorkspace.child("junitresult");
+            remoteJunitdir.mkdirs();
+        }
+        FilePath remoteScreenshotDir = remoteWorkspace.child("screenshot");
+        remoteScreenshotDir.mkdirs();
+
+        Map<String, String> env = new EnvVars(computer.getEnvironment());
+        env.putAll(build.getBuildVariables());
+
+        listener.getLogger().println(nodeName + " : " + testCases.size() + " test cases.");
+        try {
+            return run(computer.getChannel(),
+                newCallable(browser, node, computer.getChannel(), listener, remoteJunitdir, remoteScreenshotDir,
+                    remoteWorkspace.child("scripts"), shard(remoteCases, getWorkers(), remoteDurations), env));
+        } finally {
+            //bring the results back to the build workspace, also the partial ones of an aborted build.
+            boolean interrupted = Thread.interrupted();
+            try {
+                if (remoteJunitdir != null) {
+                    remoteJunitdir.copyRecursiveTo(junitdir.child(nodeName));
+                }
+                remoteScreenshotDir.copyRecursiveTo(screenshotDirPath.child(nodeName));
+            } finally {
+                try {
+                    remoteWorkspace.deleteRecursive();
+                } catch (IOException e) {
+                    e.printStackTrace(listener.error("failed to delete " + remoteWorkspace + " on " + nodeName));
+                }
+                if (interrupted)
+                    Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Runs selenese on the channel and adds the run to {@link SeleneseMetrics}.
+     */
+    static SeleneseRunReport run(VirtualChannel channel, SeleneseRunnerCallable callable) throws Exception {
+        long start = System.currentTimeMillis();
+        SeleneseRunReport report = null;
+        try {
+            report = call(channel, callable);
+            return report;
+        } finally {
+            SeleneseMetrics.getInstance().record(callable.getBrowser(), report, System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * Runs the callable on the channel. If the build is aborted meanwhile, the remote run is cancelled,
+     * which stops the browsers on the node, instead of waiting for it to end.
+     */
+    static <V> V call(VirtualChannel channel, hudson.remoting.Callable<V, Exception> callable) throws Exception {
+        Future<V> future = channel.callAsync(callable);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        }
+    }
+
+    private SeleneseRunnerCallable newCallable(String browser, Node node, VirtualChannel channel, BuildListener listener,
+        FilePath junitdir, FilePath screenshotDirPath, FilePath baseDir, List<List<String>> shards,
+        Map<String, String> env) throws IOException, InterruptedException {
+        SeleneseRunSpec spec = newSpec(browser, node, channel, junitdir, screenshotDirPath, baseDir, shards, env);
+        listener.getLogger().println("payload : " + payloadSize(spec) + " bytes");
+        if (isRunnerDaemon() && spec.getDaemonDir() == null)
+            listener.getLogger().println("the runner daemon is not available, running in the agent JVM.");
+        return new SeleneseRunnerCallable(spec, listener);
+    }
+
+    /**
+     * @param screenshotDirPath
+     *      screenshot directory on the node, or null if screenshots are not taken.
+     */
+    SeleneseRunSpec newSpec(String browser, Node node, VirtualChannel channel, FilePath junitdir,
+        FilePath screenshotDirPath, FilePath baseDir, List<List<String>> shards, Map<String, String> env)
+        throws IOException, InterruptedException {
+        //tool locations of the node
+        SeleneseRunnerNodeProperty tools = getNodeProperty(node);
+
+        return new SeleneseRunSpec(this, browser,
+            StringUtils.isEmpty(getScreenshotDir()) || screenshotDirPath == null ? null : screenshotDirPath.getRemote(),
+            junitdir == null ? null : junitdir.getRemote(),
+            baseDir.getRemote(), shards,
+            tools == null ? null : tools.getChromedriver(), tools == null ? null : tools.getPhantomjs(),
+            tools == null ? 0 : tools.getMaxBrowsers(), isRunnerDaemon() ? RunnerDaemon.install(node) : null,
+            EnvironmentDiff.against(channel, env));
+    }
+
+    static int payloadSize(Serializable payload) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(payload);
+        out.close();
+        return bytes.size();
+    }
+
+    /**
+     * Merges the JUnit results of the build so far, see {@link JUnitMerger}.
+     */
+    private static void mergeJUnit(AbstractBuild<?, ?> build, FilePath junitdir, BuildListener listener)
+        throws IOException, InterruptedException {
+        JUnitSummary summary = junitdir.act(new JUnitMerger.Merge(getBuildId(build)));
+        listener.getLogger().println("merged JUnit results : " + summary.getTests() + " tests, "
+            + summary.getFailures() + " failures, " + summary.getErrors() + " errors.");
+        build.getAction(SeleneseRunnerPerformanceAction.class).setJUnitSummary(summary);
+    }
+
+    /**
+     * Adds the timings of the build so far to the {@link CaseHistoryStore}, for the trend of the job.
+     */
+    private static void recordTimings(AbstractBuild<?, ?> build, BuildListener listener) {
+        SeleneseRunnerPerformanceAction action = build.getAction(SeleneseRunnerPerformanceAction.class);
+        try {
+            CaseHistoryStore.of(build.getProject()).appendTiming(new CaseHistoryStore.Timing(build.getNumber(),
+                action.getCaseDuration(), action.getDriverStartup().getTotal(), action.getAllCommands().getP90()));
+        } catch (IOException e) {
+            e.printStackTrace(listener.error("failed to save the timings of the build"));
+        }
+    }
+
+    static String getBuildId(AbstractBuild<?, ?> build) {
+        return build.getProject().getFullName() + "#" + build.getNumber();
+    }
+
+    private static void addPerformanceAction(AbstractBuild<?, ?> build, SeleneseRunReport report) {
+        synchronized (build) {
+            SeleneseRunnerPerformanceAction action = build.getAction(SeleneseRunnerPerformanceAction.class);
+            if (action == null) {
+                build.addAction(new SeleneseRunnerPerformanceAction(build, report));
+            } else {
+                action.add(report);
+            }
+        }
+    }
+
+    /**
+     * Adds the screenshots of the build to the content store of the job, links them from the build, and deletes
+     * them from the screenshot directory.
+     */
+    private static void storeScreenshots(AbstractBuild<?, ?> build, FilePath screenshotDirPath,
+        Map<String, Long> before, BuildListener listener) throws IOException, InterruptedException {
+        Map<String, String> files = screenshotDirPath.act(new ContentStore.DigestFiles(before));
+        synchronized (build) {
+            SeleneseScreenshotsAction action = build.getAction(SeleneseScreenshotsAction.class);
+            if (action == null) {
+                action = new SeleneseScreenshotsAction(build);
+                build.addAction(action);
+            }
+
+            //one reference per build and digest.
+            Set<String> referenced = new HashSet<String>(action.getFiles().values());
+            Map<String, FilePath> contents = new HashMap<String, FilePath>();
+            for (Map.Entry<String, String> file : files.entrySet()) {
+                if (!referenced.contains(file.getValue()) && !contents.containsKey(file.getValue()))
+                    contents.put(file.getValue(), screenshotDirPath.child(file.getKey()));
+            }
+            int copied = ContentStore.of(build.getProject()).add(contents);
+            action.addFiles(files);
+            listener.getLogger().println("screenshots stored : " + files.size() + " files, " + contents.size()
+                + " distinct, " + copied + " new in the store.");
+        }
+        //the build serves them from the store, the copies would only pile up in the workspace.
+        int deleted = screenshotDirPath.act(new ContentStore.DeleteFiles(files.keySet()));
+        listener.getLogger().println("screenshots deleted from the workspace : " + deleted + " files.");
+    }
+
+    @Override
+    public Collection<? extends Action> getProjectActions(AbstractProject<?, ?> project) {
+        return Collections.singleton(new SeleneseRunnerTrendAction(project));
+    }
+
+    /**
+     * @return the exception thrown by a parallel task, errors are rethrown as they are.
+     */
+    static Exception unwrap(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof Error)
+            throw (Error) cause;
+        if (cause instanceof Exception)
+            return (Exception) cause;
+        return e;
+    }
+
+    /**
+     * @return path of file relative to dir, or its file name when it is outside of dir.
+     */
+    static String relativize(String dir, String file) {
+        String normalizedDir = dir.replace('\\', '/');
+        String normalizedFile = file.replace('\\', '/');
+        if (!normalizedDir.endsWith("/"))
+            normalizedDir += "/";
+        if (normalizedFile.startsWith(normalizedDir))
+            return normalizedFile.substring(normalizedDir.length());
+        return normalizedFile.substring(normalizedFile.lastIndexOf('/') + 1);
+    }
+
     int getHeight() {
         return height;
     }
@@ -317,6 +899,111 @@ public class SeleneseRunnerBuilder extends Builder implements Serializable {
         return Pair.of(width, height);
     }
 
+    /**
+     * @return the settings of the node, falling back to the global node properties for the master.
+     */
+    static SeleneseRunnerNodeProperty getNodeProperty(Node node) {
+        SeleneseRunnerNodeProperty property = null;
+        if (node != null) {
+            property = node.getNodeProperties().get(SeleneseRunnerNodeProperty.class);
+        }
+        if (property == null && (node == null || node instanceof Jenkins)) {
+            property = Jenkins.getInstance().getGlobalNodeProperties().get(SeleneseRunnerNodeProperty.class);
+        }
+        return property;
+    }
+
+    /**
+     * Resolves the 'seleneseFile' field against the workspace.
+     * The field holds one entry per line or comma separated, and each entry is a path or an Ant style glob.
+     */
+    public static List<String> expandSeleneseFiles(FilePath workspace, String seleneseFile) throws IOException,
+        InterruptedException {
+        Set<String> result = new LinkedHashSet<String>();
+        for (String entry : StringUtils.split(StringUtils.defaultString(seleneseFile), ",\n")) {
+            entry = entry.trim();
+            if (entry.length() == 0)
+                continue;
+            if (StringUtils.containsAny(entry, "*?")) {
+                List<String> matches = new ArrayList<String>();
+                for (FilePath file : workspace.list(entry)) {
+                    matches.add(file.getRemote());
+                }
+                Collections.sort(matches);
+                result.addAll(matches);
+            } else {
+                result.add(workspace.child(entry).getRemote());
+            }
+        }
+        return new ArrayList<String>(result);
+    }
+
+    /**
+     * Splits files round-robin into at most {@code workers} non-empty shards.
+     */
+    public static List<List<String>> shard(List<String> files, int workers) {
+        return shard(files, workers, Collections.<String, Long> emptyMap());
+    }
+
+    /**
+     * Splits files into at most {@code workers} non-empty shards with about the same expected duration.
+     * Each file goes to the shard with the least work so far, so the order of the files is kept within a shard.
+     * Files without a known duration count as the average, which makes this round-robin without any durations.
+     */
+    public static List<List<String>> shard(List<String> files, int workers, Map<String, Long> durations) {
+        int count = Math.max(1, Math.min(workers, files.size()));
+        List<List<String>> shards = new ArrayList<List<String>>(count);
+        for (int i = 0; i < count; i++) {
+            shards.add(new ArrayList<String>());
+        }
+
+        long average = 1;
+        if (!durations.isEmpty()) {
+            long total = 0;
+            for (Long duration : durations.values()) {
+                total += duration;
+            }
+            average = Math.max(1, total / durations.size());
+        }
+
+        long[] loads = new long[count];
+        for (String file : files) {
+            int target = 0;
+            for (int i = 1; i < count; i++) {
+                if (loads[i] < loads[target])
+                    target = i;
+            }
+            shards.get(target).add(file);
+            Long duration = durations.get(file);
+            loads[target] += duration == null ? average : Math.max(1, duration);
+        }
+        return shards;
+    }
+
+    /**
+     * Orders the test cases by {@link TestCaseHistory#order(Collection)}.
+     *
+     * @param durations
+     *      receives the expected duration of each test case with history.
+     */
+    static List<String> orderByHistory(TestCaseHistory history, FilePath workspace, List<String> testCases,
+        Map<String, Long> durations) {
+        Map<String, String> byName = new LinkedHashMap<String, String>();
+        for (String testCase : testCases) {
+            byName.put(relativize(workspace.getRemote(), testCase), testCase);
+        }
+
+        List<String> result = new ArrayList<String>();
+        for (String name : history.order(byName.keySet())) {
+            String testCase = byName.get(name);
+            result.add(testCase);
+            Long duration = history.getDuration(name);
+            if (duration != null)
+                durations.put(testCase, duration);
+        }
+        return result;
+    }
+
     // Overridden for better type safety.
     // If your plugin doesn't really define any property on Descriptor,
     // you don't have to do this.
@@ -344,11 +1031,26 @@ public class SeleneseRunnerBuilder extends Builder implements Serializable {
          * @return
          *      Indicates the outcome of the validation. This is sent to the browser.
          */
-        public FormValidation doCheckSeleneseFile(@QueryParameter String value) {
+        public FormValidation doCheckSeleneseFile(@AncestorInPath AbstractProject<?, ?> project,
+            @QueryParameter String value) throws IOException, InterruptedException {
             if (StringUtils.isEmpty(value))
                 return FormValidation.error("Please set a selenese script filename");
-            if (!new File(value).exists())
-                return FormValidation.warning("File is not exixts.");
+            //files are relative to the workspace, which may be on an agent or not exist yet.
+            FilePath workspace = project == null ? null : project.getSomeWorkspace();
+            if (workspace == null)
+                return FormValidation.ok();
+            for (String entry : StringUtils.split(value, ",\n")) {
+                entry = entry.trim();
+                if (entry.length() == 0)
+                    continue;
+                if (StringUtils.containsAny(entry, "*?")) {
+                    String message = workspace.validateAntFileMask(entry);
+                    if (message != null)
+                        return FormValidation.warning(message);
+                } else if (!workspace.child(entry).exists()) {
+                    return FormValidation.warning("File does not exist in the workspace : " + entry);
+                }
+            }
             return FormValidation.ok();
         }
 
@@ -362,6 +1064,69 @@ public class SeleneseRunnerBuilder extends Builder implements Serializable {
             }
         }
 
+        public FormValidation doCheckWorkers(@QueryParameter String value) {
+            if (StringUtils.isEmpty(value))
+                return FormValidation.ok();
+            try {
+                if (Integer.parseInt(value) >= 1)
+                    return FormValidation.ok();
+            } catch (NumberFormatException e) {
+                // fall through
+            }
+            return FormValidation.error("must be a positive number.");
+        }
+
+        public FormValidation doCheckBrowserMatrix(@QueryParameter String value) {
+            for (String browser : StringUtils.split(StringUtils.defaultString(value), ", ")) {
+                try {
+                    DriverFactories.newFactory(browser);
+                } catch (IllegalArgumentException e) {
+                    return FormValidation.error(e.getMessage());
+                }
+            }
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckProxyCacheRules(@QueryParameter String value) {
+            for (String rule : StringUtils.defaultString(value).split("\n")) {
+                try {
+                    Pattern.compile(rule.trim());
+                } catch (PatternSyntaxException e) {
+                    return FormValidation.error(e.getDescription() + " : " + rule);
+                }
+            }
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckScreenshotScale(@QueryParameter String value) {
+            if (StringUtils.isEmpty(value))
+                return FormValidation.ok();
+            try {
+                int scale = Integer.parseInt(value);
+                if (scale >= 1 && scale <= 100)
+                    return FormValidation.ok();
+            } catch (NumberFormatException e) {
+                // fall through
+            }
+            return FormValidation.error("must be a percentage from 1 to 100.");
+        }
+
+        public FormValidation doCheckRetries(@QueryParameter String value) {
+            return doCheckFailFast(value);
+        }
+
+        public FormValidation doCheckFailFast(@QueryParameter String value) {
+            if (StringUtils.isEmpty(value))
+                return FormValidation.ok();
+            try {
+                if (Integer.parseInt(value) >= 0)
+                    return FormValidation.ok();
+            } catch (NumberFormatException e) {
+                // fall through
+            }
+            return FormValidation.error("must be 0 or a positive number.");
+        }
+
         public FormValidation doCheckSize(@QueryParameter String value) {
             try {
                 SeleneseRunnerBuilder.parseSize(value);
@@ -0,0 +1,523 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+import hudson.AbortException;
+import hudson.model.BuildListener;
+import hudson.remoting.Callable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jp.haya10.jenkins.seleneserunnerplugin.SeleneseRunReport.CaseResult;
+import jp.vmi.selenium.selenese.Runner;
+import jp.vmi.selenium.webdriver.DriverOptions;
+import jp.vmi.selenium.webdriver.DriverOptions.DriverOption;
+import jp.vmi.selenium.webdriver.WebDriverManager;
+
+import org.apache.commons.lang.StringUtils;
+import org.openqa.selenium.WebDriver;
+
+/**
+ * Runs selenese on the node as described by a {@link SeleneseRunSpec}.
+ *
+ * <p>
+ * The run stops early when the build is aborted (the calling thread is interrupted by the cancelled
+ * remote call) or when {@link SeleneseRunSpec#getFailFast()} test cases have failed. Stopping quits the
+ * browsers of the run, which ends the test cases in progress. JUnit results and screenshots of the test
+ * cases completed so far are kept.
+ */
+public class SeleneseRunnerCallable implements Callable<SeleneseRunReport, Exception> {
+    private static final long serialVersionUID = 2416651790883391162L;
+
+    private final SeleneseRunSpec spec;
+
+    private final BuildListener listener;
+
+    private transient volatile boolean stopped;
+
+    private transient AtomicInteger failures;
+
+    private transient List<DriverSession> sessions;
+
+    private transient ExecutorService executor;
+
+    /**
+     * Build log of the run, batched by {@link LogForwarder}.
+     */
+    private transient PrintStream logger;
+
+    private transient ScreenshotPipeline screenshots;
+
+    public SeleneseRunnerCallable(SeleneseRunSpec spec, BuildListener listener) {
+        this.spec = spec;
+        this.listener = listener;
+    }
+
+    public String getBrowser() {
+        return spec.getBrowser();
+    }
+
+    public SeleneseRunReport call() throws Exception {
+        LogForwarder forwarder = new LogForwarder(listener.getLogger());
+        logger = new PrintStream(forwarder, true);
+        try {
+            SeleneseRunReport report = spec.getDaemonDir() == null ? run() : runDaemon();
+            if (spec.isQuietLog())
+                printSummary(report);
+            return report;
+        } finally {
+            logger.flush();
+            forwarder.close();
+        }
+    }
+
+    /**
+     * Runs the spec in the {@link RunnerDaemon}, which sends the log itself.
+     */
+    static SeleneseRunReport runInDaemon(SeleneseRunSpec spec, PrintStream logger) throws Exception {
+        SeleneseRunnerCallable callable = new SeleneseRunnerCallable(spec, null);
+        callable.logger = logger;
+        return callable.run();
+    }
+
+    /**
+     * Takes the browser slots of the run in this JVM before handing it to the {@link RunnerDaemon}, so that the
+     * runs of the daemon and of this JVM share the limit of the node.
+     */
+    private SeleneseRunReport runDaemon() throws Exception {
+        BrowserLimiter limiter = BrowserLimiter.getInstance();
+        limiter.setLimit(spec.getMaxBrowsers());
+        long start = System.currentTimeMillis();
+        int taken = limiter.acquire(spec.getShards().size());
+        try {
+            logger.println("waited " + (System.currentTimeMillis() - start) + " ms for " + taken
+                + " browser slots (" + limiter.getLimit() + " browsers at the same time on the node).");
+            return RunnerDaemon.getInstance().run(spec, logger);
+        } finally {
+            limiter.release(taken);
+        }
+    }
+
+    private SeleneseRunReport run() throws Exception {
+        if (spec.getProxyCacheRules().isEmpty())
+            return run(null);
+
+        //the requests of the run are counted on a port of the proxy leased by the run.
+        CachingProxy proxy = CachingProxy.of(spec.getProxyCacheRules());
+        CachingProxy.Port port = proxy.lease();
+        try {
+            SeleneseRunReport report = run(port.getAddress());
+            long[] stats = port.getStats();
+            report.addProxy(stats[0], stats[1], stats[2]);
+            logger.println("proxy cache : " + stats[0] + " hits, " + stats[1] + " misses ("
+                + (stats[0] + stats[1] == 0 ? 0 : stats[0] * 100 / (stats[0] + stats[1])) + "% hit ratio), "
+                + stats[2] + " bytes served from the cache.");
+            return report;
+        } finally {
+            proxy.release(port);
+        }
+    }
+
+    /**
+     * @param proxy
+     *      address of the caching proxy, or null to run without it.
+     */
+    private SeleneseRunReport run(String proxy) throws Exception {
+        logger.println("browser:" + spec.getBrowser());
+        BrowserLimiter.getInstance().setLimit(spec.getMaxBrowsers());
+        final DriverOptions opt = newDriverOptions(spec, proxy, logger);
+        final Map<String, String> env = spec.getEnv().applyTo(System.getenv());
+        final SeleneseRunReport report = new SeleneseRunReport();
+        failures = new AtomicInteger();
+        sessions = new ArrayList<DriverSession>();
+        List<String> displays = new ArrayList<String>();
+        XvfbDisplayPool displayPool = spec.isXvfb() ? getDisplayPool() : null;
+        long[] screenshotsBefore = measureScreenshots();
+        if (spec.getScreenshotDir() != null && spec.isOptimizeScreenshots()) {
+            screenshots = new ScreenshotPipeline(new File(spec.getScreenshotDir()), spec.getScreenshotScale());
+            screenshots.start();
+        }
+        try {
+            //each shard gets its own session, and its own display if Xvfb is used.
+            for (int i = 0; i < spec.getShards().size(); i++) {
+                Map<String, String> shardEnv = env;
+                if (displayPool != null) {
+                    String display = displayPool.acquire();
+                    displays.add(display);
+                    shardEnv = new HashMap<String, String>(env);
+                    shardEnv.put("DISPLAY", display);
+                    logger.println("DISPLAY=" + display + " for shard " + (i + 1));
+                }
+                synchronized (sessions) {
+                    sessions.add(new DriverSession(spec.getBrowser(), opt, optionsKey(spec, opt), shardEnv,
+                        spec.isReuseBrowser() ? WebDriverPool.getInstance() : null));
+                }
+            }
+            runShards(report);
+        } finally {
+            closeSessions();
+            for (String display : displays) {
+                displayPool.release(display);
+            }
+            if (screenshots != null) {
+                screenshots.close();
+                logger.println("screenshots : " + screenshots.getKept() + " kept, " + screenshots.getDropped()
+                    + " identical dropped, " + screenshots.getBytesSaved() + " bytes saved.");
+            }
+        }
+        long[] screenshotsAfter = measureScreenshots();
+        report.addScreenshots((int) (screenshotsAfter[0] - screenshotsBefore[0]), screenshotsAfter[1] - screenshotsBefore[1]);
+        return report;
+    }
+
+    private void runShards(final SeleneseRunReport report) throws Exception {
+        final List<List<String>> shards = spec.getShards();
+        if (shards.size() > 1) {
+            logger.println("run " + spec.getTestCaseCount() + " test cases in " + shards.size() + " shards.");
+        }
+
+        //shards always run on their own threads, so that this one can stop them when it is interrupted.
+        executor = Executors.newFixedThreadPool(shards.size());
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int i = 0; i < shards.size(); i++) {
+                final int index = i;
+                final List<String> shard = shards.get(i);
+                final DriverSession session = sessions.get(i);
+                futures.add(executor.submit(new java.util.concurrent.Callable<Void>() {
+                    public Void call() throws Exception {
+                        runShard(session, index, shard, report);
+                        return null;
+                    }
+                }));
+            }
+
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    stop();
+                    throw SeleneseRunnerBuilder.unwrap(e);
+                } catch (InterruptedException e) {
+                    logger.println("selenese aborted, stopping the browsers.");
+                    stop();
+                    throw e;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void printSummary(SeleneseRunReport report) {
+        int failed = 0;
+        int flaky = 0;
+        for (CaseResult result : report.getCases()) {
+            if (!result.isSuccess()) {
+                failed++;
+                logger.println("failed : " + result.getName());
+            }
+            if (result.isFlaky())
+                flaky++;
+        }
+        logger.println(report.getCases().size() + " test cases, " + failed + " failed, " + flaky + " flaky.");
+    }
+
+    private void stop() {
+        stopped = true;
+        //wakes up the shards waiting for a browser slot.
+        executor.shutdownNow();
+        closeSessions();
+    }
+
+    private void closeSessions() {
+        DriverSession[] all;
+        synchronized (sessions) {
+            all = sessions.toArray(new DriverSession[sessions.size()]);
+        }
+        for (DriverSession session : all) {
+            session.closeAll();
+        }
+    }
+
+    /**
+     * @return the Xvfb display pool, or null to use the display of the node.
+     */
+    private XvfbDisplayPool getDisplayPool() {
+        if (WebDriverManager.PHANTOMJS.equals(spec.getBrowser()))
+            return null;
+        XvfbDisplayPool pool = XvfbDisplayPool.getInstance();
+        if (pool == null)
+            logger.println("Xvfb is not found, using the display of the node.");
+        return pool;
+    }
+
+    private void runShard(DriverSession session, int index, List<String> testCases, SeleneseRunReport report)
+        throws IOException, InterruptedException {
+        if (!acquireSlot(index))
+            return;
+        try {
+            runShard(session, index, testCases, report, openDriver(session, report));
+        } finally {
+            BrowserLimiter.getInstance().release();
+        }
+    }
+
+    /**
+     * Waits for a browser slot of the node, behind the builds that asked for one earlier. {@link #stop()}
+     * interrupts the wait.
+     *
+     * @return false if the run was stopped meanwhile.
+     */
+    private boolean acquireSlot(int index) throws InterruptedException {
+        BrowserLimiter limiter = BrowserLimiter.getInstance();
+        long start = System.currentTimeMillis();
+        limiter.acquire();
+        if (stopped) {
+            limiter.release();
+            return false;
+        }
+        String shard = spec.getShards().size() > 1 ? "shard " + (index + 1) + " " : "";
+        logger.println(shard + "waited " + (System.currentTimeMillis() - start) + " ms for a browser slot ("
+            + limiter.getLimit() + " browsers at the same time on the node).");
+        return true;
+    }
+
+    private void runShard(DriverSession session, int index, List<String> testCases, SeleneseRunReport report,
+        WebDriver driver) throws IOException {
+        if (driver == null)
+            return;
+
+        //JUnit results are written to a directory of the shard, and moved once it is known whether the attempt is retried.
+        File junitDir = spec.getJunitDir() == null ? null : new File(spec.getJunitDir(), ".shard-" + index);
+        LogForwarder.QuietFilter quiet = spec.isQuietLog() ? new LogForwarder.QuietFilter(logger) : null;
+        CommandTimingStream log = new CommandTimingStream(quiet == null ? logger : quiet, report);
+        boolean completed = false;
+        try {
+            File screenshotDir = null;
+            if (screenshots != null) {
+                screenshotDir = screenshots.newStagingDir(String.valueOf(index));
+            } else if (spec.getScreenshotDir() != null) {
+                screenshotDir = new File(spec.getScreenshotDir());
+            }
+            final Runner runner = newRunner(new PrintStream(log, true), junitDir, screenshotDir);
+            runner.setDriver(driver);
+            for (String testCase : testCases) {
+                if (stopped)
+                    break;
+                String name = SeleneseRunnerBuilder.relativize(spec.getBaseDir(), testCase);
+                long caseStart = System.currentTimeMillis();
+                boolean success = false;
+                int attempt = 0;
+                while (true) {
+                    attempt++;
+                    log.startCase();
+                    try {
+                        success = runner.run(testCase).isSuccess();
+                    } catch (RuntimeException e) {
+                        if (stopped)
+                            break;
+                        throw e;
+                    }
+                    if (stopped)
+                        break;
+                    if (success || attempt > spec.getRetries()) {
+                        moveJUnitResults(junitDir, spec.getJunitDir() == null ? null : new File(spec.getJunitDir()));
+                        break;
+                    }
+
+                    moveJUnitResults(junitDir, new File(spec.getJunitDir(), "attempt-" + attempt));
+                    logger.println("retry " + name + " : attempt " + (attempt + 1) + " on a new browser.");
+                    session.close(driver, false);
+                    driver = openDriver(session, report);
+                    if (driver == null)
+                        break;
+                    runner.setDriver(driver);
+                }
+                //a test case cut short by the stop is not a result.
+                if (stopped)
+                    break;
+                report.addCase(name, System.currentTimeMillis() - caseStart, success, attempt, spec.getBrowser());
+                if (success && attempt > 1)
+                    logger.println("flaky : " + name + " passed on attempt " + attempt + ".");
+
+                if (!success && spec.getFailFast() > 0 && failures.incrementAndGet() >= spec.getFailFast()) {
+                    logger.println("fail fast : stop after " + spec.getFailFast() + " failed test cases.");
+                    stop();
+                }
+            }
+            completed = !stopped;
+        } finally {
+            log.close();
+            if (quiet != null)
+                quiet.close();
+            if (driver != null)
+                session.close(driver, completed);
+            if (junitDir != null) {
+                moveJUnitResults(junitDir, new File(spec.getJunitDir()));
+                junitDir.delete();
+            }
+        }
+    }
+
+    /**
+     * @return a driver of the session, or null if the run was stopped meanwhile.
+     */
+    private WebDriver openDriver(DriverSession session, SeleneseRunReport report) {
+        long start = System.currentTimeMillis();
+        WebDriver driver;
+        try {
+            driver = session.open();
+        } catch (RuntimeException e) {
+            if (stopped)
+                return null;
+            throw e;
+        }
+        report.addDriverStartup(System.currentTimeMillis() - start);
+        return driver;
+    }
+
+    private static void moveJUnitResults(File from, File to) throws IOException {
+        if (from == null)
+            return;
+        File[] files = from.listFiles();
+        if (files == null || files.length == 0)
+            return;
+        to.mkdirs();
+        for (File file : files) {
+            File target = new File(to, file.getName());
+            target.delete();
+            if (!file.renameTo(target))
+                throw new IOException("failed to move " + file + " to " + to);
+        }
+    }
+
+    /**
+     * @return number and total bytes of the files in the screenshot directory.
+     */
+    private long[] measureScreenshots() {
+        long[] result = new long[2];
+        if (spec.getScreenshotDir() == null)
+            return result;
+        File[] files = new File(spec.getScreenshotDir()).listFiles();
+        if (files == null)
+            return result;
+        for (File file : files) {
+            if (file.isFile()) {
+                result[0]++;
+                result[1] += file.length();
+            }
+        }
+        return result;
+    }
+
+    static String optionsKey(SeleneseRunSpec spec, DriverOptions opt) {
+        return opt.get(DriverOption.CHROMEDRIVER) + "|" + opt.get(DriverOption.PROXY) + "|" + spec.getWidth() + "x"
+            + spec.getHeight() + "|" + StringUtils.join(spec.getCapabilities(), "|");
+    }
+
+    private Runner newRunner(PrintStream log, File junitDir, File screenshotDir) {
+        final Runner runner = new Runner();
+        //baseURL
+        if (!StringUtils.isEmpty(spec.getBaseUrl())) {
+            runner.setBaseURL(spec.getBaseUrl());
+        }
+
+        //console log
+        runner.setPrintStream(log);
+
+        //screenshot dir
+        if (screenshotDir != null) {
+            if (spec.isScreenshotAll()) {
+                runner.setScreenshotAllDir(screenshotDir.getPath());
+            }
+            if (spec.isScreenshotOnFail()) {
+                runner.setScreenshotOnFailDir(screenshotDir.getPath());
+            }
+            runner.setScreenshotDir(screenshotDir.getPath());
+        }
+
+        if (junitDir != null) {
+            runner.setJUnitResultDir(junitDir.getPath());
+        }
+        return runner;
+    }
+
+    /**
+     * @param proxy
+     *      address of the caching proxy, or null.
+     */
+    static DriverOptions newDriverOptions(SeleneseRunSpec spec, String proxy, PrintStream logger) throws IOException {
+        DriverOptions opt = new DriverOptions();
+        if (spec.getBrowser().equals(WebDriverManager.CHROME)) {
+            opt.set(DriverOption.CHROMEDRIVER, resolveTool("chromedriver", spec.getChromedriver()));
+            logger.println("chromedriver:" + opt.get(DriverOption.CHROMEDRIVER));
+        }
+        if (spec.getBrowser().equals(WebDriverManager.PHANTOMJS)) {
+            if (spec.getPhantomjs() != null) {
+                opt.set(DriverOption.PHANTOMJS, resolveTool("phantomjs", spec.getPhantomjs()));
+                logger.println("phantomjs:" + opt.get(DriverOption.PHANTOMJS));
+            }
+            if (spec.getHeight() != 0 && spec.getWidth() != 0) {
+                opt.set(DriverOption.HEIGHT, String.valueOf(spec.getHeight()));
+                opt.set(DriverOption.WIDTH, String.valueOf(spec.getWidth()));
+            }
+        }
+
+        //the browser goes through the caching proxy of this JVM
+        if (proxy != null) {
+            opt.set(DriverOption.PROXY, proxy);
+            logger.println("proxy:" + opt.get(DriverOption.PROXY));
+            if (isLoopback(spec.getBaseUrl()))
+                logger.println("browsers do not use a proxy for " + spec.getBaseUrl()
+                    + ", use another host name of the node in the base URL to cache its responses.");
+        }
+
+        //add each defined capability
+        for (String capability : spec.getCapabilities()) {
+            opt.set(DriverOption.DEFINE, capability);
+        }
+        return opt;
+    }
+
+    /**
+     * @return whether the URL is on <tt>localhost</tt> or a loopback address.
+     */
+    static boolean isLoopback(String url) {
+        String host;
+        try {
+            host = new URI(url).getHost();
+        } catch (URISyntaxException e) {
+            return false;
+        }
+        return host != null && (host.equalsIgnoreCase("localhost") || host.startsWith("127.")
+            || host.equals("[::1]"));
+    }
+
+    /**
+     * @param location
+     *      path configured on the node, or null to search the PATH.
+     */
+    private static String resolveTool(String name, String location) throws AbortException {
+        if (location != null) {
+            if (!new File(location).isFile())
+                throw new AbortException(name + " is not found at " + location);
+            return location;
+        }
+        File file = ExecutableResolver.getInstance().resolve(name);
+        if (file == null)
+            throw new AbortException(name + " is not found in PATH");
+        return file.getAbsolutePath();
+    }
+}
@@ -0,0 +1,63 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+import hudson.Extension;
+import hudson.model.Node;
+import hudson.slaves.NodeProperty;
+import hudson.slaves.NodePropertyDescriptor;
+
+import org.apache.commons.lang.StringUtils;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Per-node settings of the selenese runner, configured on the node (or global) configuration page.
+ *
+ * @author Hayato Ito
+ */
+public class SeleneseRunnerNodeProperty extends NodeProperty<Node> {
+
+    private final String chromedriver;
+
+    private final String phantomjs;
+
+    private final int maxBrowsers;
+
+    @DataBoundConstructor
+    public SeleneseRunnerNodeProperty(String chromedriver, String phantomjs, int maxBrowsers) {
+        this.chromedriver = StringUtils.trimToNull(chromedriver);
+        this.phantomjs = StringUtils.trimToNull(phantomjs);
+        this.maxBrowsers = maxBrowsers;
+    }
+
+    public SeleneseRunnerNodeProperty(String chromedriver, String phantomjs) {
+        this(chromedriver, phantomjs, 0);
+    }
+
+    /**
+     * @return absolute path of chromedriver on the node, or null to search the <tt>PATH</tt>.
+     */
+    public String getChromedriver() {
+        return chromedriver;
+    }
+
+    /**
+     * @return absolute path of phantomjs on the node, or null to search the <tt>PATH</tt>.
+     */
+    public String getPhantomjs() {
+        return phantomjs;
+    }
+
+    /**
+     * @return browsers allowed to run at the same time on the node, 0 to derive it from its processors and memory.
+     */
+    public int getMaxBrowsers() {
+        return Math.max(0, maxBrowsers);
+    }
+
+    @Extension
+    public static class DescriptorImpl extends NodePropertyDescriptor {
+        @Override
+        public String getDisplayName() {
+            return "Selenese runner";
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+import hudson.model.AbstractBuild;
+import hudson.model.Action;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import jp.haya10.jenkins.seleneserunnerplugin.SeleneseRunReport.CaseResult;
+
+import org.kohsuke.stapler.Stapler;
+import org.kohsuke.stapler.StaplerRequest;
+
+/**
+ * Timings of the selenese runs of a build: percentiles per command, the slowest test cases,
+ * driver startup and screenshots.
+ *
+ * <p>
+ * Only the summary is persisted with the build. The raw report is kept while the build runs,
+ * so that several selenese build steps of one build add up to one summary.
+ *
+ * @author Hayato Ito
+ */
+public class SeleneseRunnerPerformanceAction implements Action {
+
+    static final int SLOWEST_CASES = 20;
+
+    public static class CommandStats {
+        private final String name;
+        private final long count;
+        private final long total;
+        private final long mean;
+        private final long p50;
+        private final long p90;
+        private final long p99;
+        private final long max;
+
+        public CommandStats(String name, DurationHistogram histogram) {
+            this.name = name;
+            this.count = histogram.getCount();
+            this.total = histogram.getTotal();
+            this.mean = histogram.getMean();
+            this.p50 = histogram.getPercentile(50);
+            this.p90 = histogram.getPercentile(90);
+            this.p99 = histogram.getPercentile(99);
+            this.max = histogram.getMax();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getTotal() {
+            return total;
+        }
+
+        public long getMean() {
+            return mean;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP90() {
+            return p90;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getMax() {
+            return max;
+        }
+    }
+
+    /**
+     * Not persisted, the build persists its actions itself.
+     */
+    private transient AbstractBuild<?, ?> build;
+
+    private transient SeleneseRunReport report;
+
+    private List<CommandStats> commands;
+
+    private CommandStats allCommands;
+
+    private CommandStats driverStartup;
+
+    private List<CaseResult> slowestCases;
+
+    private List<CaseResult> flakyCases;
+
+    private int caseCount;
+
+    private int failedCaseCount;
+
+    private long caseDuration;
+
+    private int screenshots;
+
+    private long screenshotBytes;
+
+    private long proxyHits;
+
+    private long proxyMisses;
+
+    private long proxyBytesSaved;
+
+    private JUnitSummary junitSummary;
+
+    private boolean cached;
+
+    public SeleneseRunnerPerformanceAction(AbstractBuild<?, ?> build, SeleneseRunReport report) {
+        this.build = build;
+        add(report);
+    }
+
+    /**
+     * Records the report of one more selenese build step.
+     */
+    public synchronized void add(SeleneseRunReport other) {
+        if (report == null) {
+            report = new SeleneseRunReport();
+        }
+        report.merge(other);
+
+        DurationHistogram all = new DurationHistogram();
+        List<CommandStats> commands = new ArrayList<CommandStats>();
+        for (Map.Entry<String, DurationHistogram> command : report.getCommands().entrySet()) {
+            commands.add(new CommandStats(command.getKey(), command.getValue()));
+            all.merge(command.getValue());
+        }
+        Collections.sort(commands, new Comparator<CommandStats>() {
+            public int compare(CommandStats o1, CommandStats o2) {
+                return Long.valueOf(o2.getTotal()).compareTo(o1.getTotal());
+            }
+        });
+
+        List<CaseResult> cases = report.getCases();
+        caseCount = cases.size();
+        failedCaseCount = 0;
+        caseDuration = 0;
+        List<CaseResult> flakyCases = new ArrayList<CaseResult>();
+        for (CaseResult c : cases) {
+            caseDuration += c.getDuration();
+            if (!c.isSuccess())
+                failedCaseCount++;
+            if (c.isFlaky())
+                flakyCases.add(c);
+        }
+        Collections.sort(cases, new Comparator<CaseResult>() {
+            public int compare(CaseResult o1, CaseResult o2) {
+                return Long.valueOf(o2.getDuration()).compareTo(o1.getDuration());
+            }
+        });
+
+        this.commands = commands;
+        this.allCommands = new CommandStats("all commands", all);
+        this.driverStartup = new CommandStats("driver startup", report.getDriverStartup());
+        this.slowestCases = new ArrayList<CaseResult>(cases.subList(0, Math.min(SLOWEST_CASES, cases.size())));
+        this.flakyCases = flakyCases;
+        this.screenshots = report.getScreenshots();
+        this.screenshotBytes = report.getScreenshotBytes();
+        this.proxyHits = report.getProxyHits();
+        this.proxyMisses = report.getProxyMisses();
+        this.proxyBytesSaved = report.getProxyBytesSaved();
+    }
+
+    /**
+     * @return the build, or null outside of a request to its page once the build is loaded from the disk.
+     */
+    public AbstractBuild<?, ?> getBuild() {
+        if (build == null) {
+            StaplerRequest req = Stapler.getCurrentRequest();
+            if (req != null)
+                build = req.findAncestorObject(AbstractBuild.class);
+        }
+        return build;
+    }
+
+    /**
+     * @return statistics per command, the most time consuming first.
+     */
+    public List<CommandStats> getCommands() {
+        return commands;
+    }
+
+    public CommandStats getAllCommands() {
+        return allCommands;
+    }
+
+    public CommandStats getDriverStartup() {
+        return driverStartup;
+    }
+
+    public List<CaseResult> getSlowestCases() {
+        return slowestCases;
+    }
+
+    /**
+     * @return test cases that passed only after a retry.
+     */
+    public List<CaseResult> getFlakyCases() {
+        return flakyCases == null ? Collections.<CaseResult> emptyList() : flakyCases;
+    }
+
+    public int getCaseCount() {
+        return caseCount;
+    }
+
+    public int getFailedCaseCount() {
+        return failedCaseCount;
+    }
+
+    /**
+     * @return sum of the durations of all test cases in milliseconds.
+     */
+    public long getCaseDuration() {
+        return caseDuration;
+    }
+
+    public int getScreenshots() {
+        return screenshots;
+    }
+
+    public long getScreenshotBytes() {
+        return screenshotBytes;
+    }
+
+    /**
+     * @return requests served from the cache of the {@link CachingProxy}.
+     */
+    public long getProxyHits() {
+        return proxyHits;
+    }
+
+    /**
+     * @return cacheable requests that went to the application.
+     */
+    public long getProxyMisses() {
+        return proxyMisses;
+    }
+
+    public long getProxyBytesSaved() {
+        return proxyBytesSaved;
+    }
+
+    /**
+     * @return percentage of the cacheable requests served from the cache.
+     */
+    public long getProxyHitRatio() {
+        long requests = proxyHits + proxyMisses;
+        return requests == 0 ? 0 : proxyHits * 100 / requests;
+    }
+
+    /**
+     * @return true if a result of the build was reused from the {@link ResultCache} instead of being run.
+     */
+    public synchronized boolean isCached() {
+        return cached;
+    }
+
+    public synchronized void setCached(boolean cached) {
+        this.cached = cached;
+    }
+
+    /**
+     * @return summary of the merged JUnit results, or null if they were not merged.
+     */
+    public synchronized JUnitSummary getJUnitSummary() {
+        return junitSummary;
+    }
+
+    /**
+     * The summary covers all the results merged so far, so it replaces the previous one.
+     */
+    public synchronized void setJUnitSummary(JUnitSummary junitSummary) {
+        this.junitSummary = junitSummary;
+    }
+
+    public String getIconFileName() {
+        return "graph.png";
+    }
+
+    public String getDisplayName() {
+        return "Selenese Performance";
+    }
+
+    public String getUrlName() {
+        return "seleneserunnerPerformance";
+    }
+}
@@ -0,0 +1,121 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+import hudson.util.DataSetBuilder;
+import hudson.util.Graph;
+
+import java.io.IOException;
+import java.util.List;
+
+import jp.haya10.jenkins.seleneserunnerplugin.CaseHistoryStore.CaseStats;
+import jp.haya10.jenkins.seleneserunnerplugin.CaseHistoryStore.Timing;
+
+import org.jfree.chart.ChartFactory;
+import org.jfree.chart.JFreeChart;
+import org.jfree.chart.plot.PlotOrientation;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Trend of the selenese run timings across the builds of a project.
+ *
+ * @author Hayato Ito
+ */
+public class SeleneseRunnerTrendAction implements Action {
+
+    /**
+     * Builds with selenese runs the trend shows, read from the {@link CaseHistoryStore} without loading them.
+     */
+    static final int MAX_BUILDS = 50;
+
+    /**
+     * Builds the test case statistics are computed over.
+     */
+    static final int HISTORY_BUILDS = 500;
+
+    static final int SLOWEST_CASES = 20;
+
+    private final AbstractProject<?, ?> project;
+
+    public SeleneseRunnerTrendAction(AbstractProject<?, ?> project) {
+        this.project = project;
+    }
+
+    public AbstractProject<?, ?> getProject() {
+        return project;
+    }
+
+    /**
+     * @return the timings of the last build that ran selenese, or null. Only that build is loaded.
+     */
+    public SeleneseRunnerPerformanceAction getLastPerformance() throws IOException {
+        List<Timing> timings = CaseHistoryStore.of(project).readTimings(1);
+        if (timings.isEmpty())
+            return null;
+        AbstractBuild<?, ?> build = project.getBuildByNumber(timings.get(0).getBuild());
+        return build == null ? null : build.getAction(SeleneseRunnerPerformanceAction.class);
+    }
+
+    /**
+     * @return whether a build recorded its timings, without loading any build.
+     */
+    public boolean isTrendAvailable() throws IOException {
+        return !CaseHistoryStore.of(project).readTimings(1).isEmpty();
+    }
+
+    /**
+     * @return the slowest test cases of the last {@link #HISTORY_BUILDS} builds, from the {@link CaseHistoryStore}.
+     */
+    public List<CaseStats> getSlowestCases() throws IOException {
+        return CaseHistoryStore.of(project).getSlowest(HISTORY_BUILDS, SLOWEST_CASES);
+    }
+
+    /**
+     * @return the flaky test cases of the last {@link #HISTORY_BUILDS} builds, from the {@link CaseHistoryStore}.
+     */
+    public List<CaseStats> getFlakyCases() throws IOException {
+        return CaseHistoryStore.of(project).getFlaky(HISTORY_BUILDS);
+    }
+
+    public int getHistoryBuilds() {
+        return HISTORY_BUILDS;
+    }
+
+    public void doTrend(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        final List<Timing> timings = CaseHistoryStore.of(project).readTimings(MAX_BUILDS);
+        final AbstractBuild<?, ?> lastBuild = project.getLastBuild();
+        if (timings.isEmpty() || lastBuild == null) {
+            rsp.sendError(StaplerResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        new Graph(lastBuild.getTimestamp(), 500, 200) {
+            @Override
+            protected JFreeChart createGraph() {
+                DataSetBuilder<String, Integer> data = new DataSetBuilder<String, Integer>();
+                for (Timing timing : timings) {
+                    Integer label = timing.getBuild();
+                    data.add(timing.getCaseDuration() / 1000.0, "test cases", label);
+                    data.add(timing.getDriverStartup() / 1000.0, "driver startup", label);
+                    data.add(timing.getCommandP90() / 1000.0, "command p90", label);
+                }
+                return ChartFactory.createLineChart(null, "build", "seconds", data.build(), PlotOrientation.VERTICAL,
+                    true, true, false);
+            }
+        }.doPng(req, rsp);
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "Selenese Performance Trend";
+    }
+
+    public String getUrlName() {
+        return "seleneserunnerTrend";
+    }
+}
@@ -0,0 +1,116 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.Action;
+import hudson.model.listeners.RunListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletException;
+
+import org.kohsuke.stapler.Stapler;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Screenshots of a build kept in the {@link ContentStore} of the job.
+ * The build only records the digest of each file, and the files are served from the store.
+ *
+ * @author Hayato Ito
+ */
+public class SeleneseScreenshotsAction implements Action {
+
+    private static final Logger LOGGER = Logger.getLogger(SeleneseScreenshotsAction.class.getName());
+
+    /**
+     * Not persisted, the build persists its actions itself.
+     */
+    private transient AbstractBuild<?, ?> build;
+
+    /**
+     * Path relative to the screenshot directory to digest.
+     */
+    private final Map<String, String> files = new TreeMap<String, String>();
+
+    public SeleneseScreenshotsAction(AbstractBuild<?, ?> build) {
+        this.build = build;
+    }
+
+    /**
+     * @return the build, or null outside of a request to its page once the build is loaded from the disk.
+     */
+    public AbstractBuild<?, ?> getBuild() {
+        if (build == null) {
+            StaplerRequest req = Stapler.getCurrentRequest();
+            if (req != null)
+                build = req.findAncestorObject(AbstractBuild.class);
+        }
+        return build;
+    }
+
+    public synchronized Map<String, String> getFiles() {
+        return new TreeMap<String, String>(files);
+    }
+
+    synchronized void addFiles(Map<String, String> files) {
+        this.files.putAll(files);
+    }
+
+    /**
+     * Serves a screenshot by its path.
+     */
+    public void doDynamic(StaplerRequest req, StaplerResponse rsp) throws IOException, ServletException {
+        String path = req.getRestOfPath();
+        if (path.startsWith("/"))
+            path = path.substring(1);
+        String digest = getFiles().get(path);
+        File file = digest == null ? null : ContentStore.of(getBuild().getProject()).getFile(digest);
+        if (file == null || !file.isFile()) {
+            rsp.sendError(StaplerResponse.SC_NOT_FOUND);
+            return;
+        }
+        rsp.serveFile(req, file.toURI().toURL());
+    }
+
+    public String getIconFileName() {
+        return "folder.png";
+    }
+
+    public String getDisplayName() {
+        return "Selenese Screenshots";
+    }
+
+    public String getUrlName() {
+        return "seleneserunnerScreenshots";
+    }
+
+    /**
+     * Releases the stored screenshots of deleted builds.
+     */
+    @Extension
+    public static class DeletionListener extends RunListener<AbstractBuild> {
+
+        public DeletionListener() {
+            super(AbstractBuild.class);
+        }
+
+        @Override
+        public void onDeleted(AbstractBuild build) {
+            SeleneseScreenshotsAction action = build.getAction(SeleneseScreenshotsAction.class);
+            if (action == null)
+                return;
+            try {
+                ContentStore.of(build.getProject()).release(new HashSet<String>(action.getFiles().values()));
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "failed to release the screenshots of " + build, e);
+            }
+        }
+    }
+}
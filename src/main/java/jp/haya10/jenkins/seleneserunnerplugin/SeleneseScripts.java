@@ -0,0 +1,103 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+import hudson.FilePath.FileCallable;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang.StringUtils;
+import org.cyberneko.html.parsers.DOMParser;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * Reads selenese HTML files.
+ */
+public class SeleneseScripts {
+
+    private SeleneseScripts() {
+        // no operation
+    }
+
+    public static Document parse(File file) throws IOException {
+        DOMParser parser = new DOMParser();
+        try {
+            parser.setFeature("http://xml.org/sax/features/namespaces", false);
+            parser.setProperty("http://cyberneko.org/html/properties/names/elems", "lower");
+            parser.parse(file.toURI().toString());
+        } catch (SAXException e) {
+            throw new IOException(file + " is not a valid selenese script: " + e.getMessage());
+        }
+        return parser.getDocument();
+    }
+
+    /**
+     * @return the table element with id "suiteTable", or null if the document is a test case.
+     */
+    public static Element getSuiteTable(Document document) {
+        NodeList tables = document.getElementsByTagName("table");
+        for (int i = 0; i < tables.getLength(); i++) {
+            Element table = (Element) tables.item(i);
+            if ("suiteTable".equals(table.getAttribute("id")))
+                return table;
+        }
+        return null;
+    }
+
+    /**
+     * @return the test case files linked from the suite, in suite order.
+     */
+    public static List<File> getTestCases(File suite, Element suiteTable) {
+        List<File> cases = new ArrayList<File>();
+        NodeList links = suiteTable.getElementsByTagName("a");
+        for (int i = 0; i < links.getLength(); i++) {
+            String href = StringUtils.trimToEmpty(((Element) links.item(i)).getAttribute("href"));
+            if (href.length() == 0)
+                continue;
+            File file = new File(href);
+            cases.add(file.isAbsolute() ? file : new File(suite.getAbsoluteFile().getParentFile(), href));
+        }
+        return cases;
+    }
+
+    /**
+     * Replaces each test suite by the test cases it links to. Test cases are kept as they are.
+     */
+    public static List<String> expandSuites(List<String> files) throws IOException {
+        List<String> result = new ArrayList<String>();
+        for (String path : files) {
+            File file = new File(path);
+            Element suiteTable = getSuiteTable(parse(file));
+            if (suiteTable == null) {
+                result.add(path);
+            } else {
+                for (File testCase : getTestCases(file, suiteTable)) {
+                    result.add(testCase.getPath());
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * {@link #expandSuites(List)} on the node holding the files.
+     */
+    public static class ExpandSuites implements FileCallable<List<String>> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<String> files;
+
+        public ExpandSuites(List<String> files) {
+            this.files = files;
+        }
+
+        public List<String> invoke(File workspace, VirtualChannel channel) throws IOException {
+            return expandSuites(files);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+import hudson.Extension;
+import hudson.Launcher;
+import hudson.model.BuildListener;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Project;
+import hudson.remoting.Callable;
+import hudson.tasks.BuildWrapper;
+import hudson.tasks.BuildWrapperDescriptor;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import jp.vmi.selenium.webdriver.DriverOptions;
+
+import org.apache.commons.lang.StringUtils;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.openqa.selenium.WebDriver;
+
+import com.google.common.base.Supplier;
+
+/**
+ * Starts the browsers of the selenese build step on the node as soon as the build begins,
+ * so that the browser start overlaps with the checkout and the earlier build steps.
+ *
+ * <p>
+ * The browsers are put into the {@link WebDriverPool} of the node, keyed like the drivers of the
+ * build step, which then takes them instead of starting its own. One browser is warmed per browser of the
+ * step, whatever its number of workers: the other workers start theirs as usual.
+ *
+ * <p>
+ * Unless the step reuses its browsers, a warmed browser belongs to its build: if the build ends without the
+ * step taking it, e.g. because an earlier step failed, it is quit when the build ends.
+ *
+ * @author Hayato Ito
+ */
+public class SeleneseWarmupWrapper extends BuildWrapper {
+
+    @DataBoundConstructor
+    public SeleneseWarmupWrapper() {
+        // no configuration
+    }
+
+    @Override
+    public Environment setUp(AbstractBuild build, final Launcher launcher, BuildListener listener)
+        throws IOException, InterruptedException {
+        final List<String> warmed = new ArrayList<String>();
+        final SeleneseRunnerBuilder builder = findBuilder(build.getProject());
+        if (builder == null) {
+            listener.getLogger().println("no selenese build step, no browser to warm up.");
+        } else if (!StringUtils.isEmpty(builder.getDistributeLabel())) {
+            listener.getLogger().println("selenese runs on other nodes, no browser to warm up.");
+        } else if (builder.isXvfb()) {
+            //the displays are only known once the shards take them.
+            listener.getLogger().println("selenese runs on Xvfb displays, no browser to warm up.");
+        } else if (builder.isRunnerDaemon()) {
+            listener.getLogger().println("selenese runs in the runner daemon, no browser to warm up.");
+        } else {
+            Map<String, String> env = build.getEnvironment(listener).descendingMap();
+            List<List<String>> shards = Collections.emptyList();
+            for (String browser : builder.getBrowsers()) {
+                SeleneseRunSpec spec = builder.newSpec(browser, build.getBuiltOn(), launcher.getChannel(), null, null,
+                    build.getWorkspace(), shards, env);
+                warmed.add(launcher.getChannel().call(new Warmup(spec, listener)));
+            }
+        }
+        return new Environment() {
+            @Override
+            public boolean tearDown(AbstractBuild build, BuildListener listener) throws IOException,
+                InterruptedException {
+                if (!builder.isReuseBrowser()) {
+                    for (String key : warmed) {
+                        launcher.getChannel().call(new Cooldown(key, listener));
+                    }
+                }
+                return true;
+            }
+        };
+    }
+
+    static SeleneseRunnerBuilder findBuilder(AbstractProject<?, ?> project) {
+        if (!(project instanceof Project))
+            return null;
+        return ((Project<?, ?>) project).getBuildersList().get(SeleneseRunnerBuilder.class);
+    }
+
+    /**
+     * Starts the warmup on the node and returns without waiting for the browser.
+     * Returns the pool key of the browser.
+     */
+    static class Warmup implements Callable<String, Exception> {
+        private static final long serialVersionUID = 1L;
+
+        private final SeleneseRunSpec spec;
+
+        private final BuildListener listener;
+
+        Warmup(SeleneseRunSpec spec, BuildListener listener) {
+            this.spec = spec;
+            this.listener = listener;
+        }
+
+        public String call() throws Exception {
+            PrintStream logger = listener.getLogger();
+            //the next run leases the port of the proxy released last, and finds the browser warmed up for it.
+            String proxy = spec.getProxyCacheRules().isEmpty() ? null : CachingProxy.of(spec.getProxyCacheRules())
+                .getNextAddress();
+            final DriverOptions opt = SeleneseRunnerCallable.newDriverOptions(spec, proxy, logger);
+            final Map<String, String> env = spec.getEnv().applyTo(System.getenv());
+            String key = new DriverSession(spec.getBrowser(), opt, SeleneseRunnerCallable.optionsKey(spec, opt), env,
+                null).getPoolKey();
+            boolean started = WebDriverPool.getInstance().warm(key, new Supplier<WebDriver>() {
+                public WebDriver get() {
+                    return DriverFactories.newDriver(spec.getBrowser(), opt, env);
+                }
+            });
+            logger.println(started ? "warming up " + spec.getBrowser() + "." : spec.getBrowser()
+                + " is already warming up.");
+            return key;
+        }
+    }
+
+    /**
+     * Quits the browser warmed for the key on the node, if the build did not take it.
+     */
+    static class Cooldown implements Callable<Void, IOException> {
+        private static final long serialVersionUID = 1L;
+
+        private final String key;
+
+        private final BuildListener listener;
+
+        Cooldown(String key, BuildListener listener) {
+            this.key = key;
+            this.listener = listener;
+        }
+
+        public Void call() {
+            WebDriver driver = WebDriverPool.getInstance().takeWarmed(key);
+            if (driver == null)
+                return null;
+            WebDriverPool.quitQuietly(driver);
+            listener.getLogger().println("quit the browser warmed up for " + key + ", it was not used.");
+            return null;
+        }
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends BuildWrapperDescriptor {
+
+        @Override
+        public boolean isApplicable(AbstractProject<?, ?> item) {
+            return true;
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Start the selenese browser when the build starts";
+        }
+    }
+}
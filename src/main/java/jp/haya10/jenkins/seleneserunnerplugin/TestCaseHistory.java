@@ -0,0 +1,176 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+import hudson.XmlFile;
+import hudson.model.AbstractProject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+import jp.haya10.jenkins.seleneserunnerplugin.SeleneseRunReport.CaseResult;
+
+/**
+ * Result and duration of each test case in the previous builds of a project,
+ * used to run recently failed test cases first and to balance shards.
+ *
+ * <p>
+ * Built from the last {@link #EXPIRE_BUILDS} builds of the {@link CaseHistoryStore} of the project.
+ * Projects without a store yet fall back to the <tt>seleneserunner-history.xml</tt> of earlier versions,
+ * which is deleted once the first build is stored.
+ */
+public class TestCaseHistory {
+
+    private static final Logger LOGGER = Logger.getLogger(TestCaseHistory.class.getName());
+
+    static final String FILENAME = "seleneserunner-history.xml";
+
+    /**
+     * A test case counts as recently failed if it failed in one of this many last builds.
+     */
+    static final int RECENT_BUILDS = 5;
+
+    /**
+     * Test cases not run in this many builds are forgotten.
+     */
+    static final int EXPIRE_BUILDS = 100;
+
+    public static class Entry {
+        /**
+         * Moving average of the duration in milliseconds.
+         */
+        long duration;
+
+        int lastRun;
+
+        int lastFailure;
+    }
+
+    private final Map<String, Entry> cases = new HashMap<String, Entry>();
+
+    private int lastBuild;
+
+    /**
+     * Loads the history of the project, or an empty one.
+     */
+    public static TestCaseHistory load(AbstractProject<?, ?> project) {
+        CaseHistoryStore store = CaseHistoryStore.of(project);
+        if (store.isEmpty())
+            return loadLegacy(project);
+
+        TestCaseHistory history = new TestCaseHistory();
+        try {
+            List<CaseResult> results = new ArrayList<CaseResult>();
+            int build = 0;
+            for (CaseHistoryStore.Record record : store.read(EXPIRE_BUILDS)) {
+                if (record.getBuild() != build && !results.isEmpty()) {
+                    history.update(build, results);
+                    results.clear();
+                }
+                build = record.getBuild();
+                results.add(new CaseResult(record.getName(), record.getDuration(),
+                    record.getStatus() != CaseHistoryStore.Status.FAILED,
+                    record.getStatus() == CaseHistoryStore.Status.FLAKY ? 2 : 1, record.getBrowser()));
+            }
+            if (!results.isEmpty())
+                history.update(build, results);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "failed to load the test case history of " + project, e);
+        }
+        return history;
+    }
+
+    private static TestCaseHistory loadLegacy(AbstractProject<?, ?> project) {
+        XmlFile file = getLegacyFile(project);
+        if (file.exists()) {
+            try {
+                return (TestCaseHistory) file.read();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "failed to load " + file, e);
+            }
+        }
+        return new TestCaseHistory();
+    }
+
+    /**
+     * Adds the results of a build to the {@link CaseHistoryStore} of the project.
+     */
+    public static void record(AbstractProject<?, ?> project, int buildNumber, Collection<CaseResult> results)
+        throws IOException {
+        CaseHistoryStore.of(project).append(buildNumber, null, results);
+        XmlFile legacy = getLegacyFile(project);
+        if (legacy.exists())
+            legacy.getFile().delete();
+    }
+
+    private static XmlFile getLegacyFile(AbstractProject<?, ?> project) {
+        return new XmlFile(Jenkins.XSTREAM, new File(project.getRootDir(), FILENAME));
+    }
+
+    void update(int buildNumber, Collection<CaseResult> results) {
+        for (CaseResult result : results) {
+            Entry entry = cases.get(result.getName());
+            if (entry == null) {
+                entry = new Entry();
+                entry.duration = result.getDuration();
+                cases.put(result.getName(), entry);
+            } else {
+                entry.duration = (entry.duration + result.getDuration()) / 2;
+            }
+            entry.lastRun = Math.max(entry.lastRun, buildNumber);
+            if (!result.isSuccess())
+                entry.lastFailure = Math.max(entry.lastFailure, buildNumber);
+        }
+        lastBuild = Math.max(lastBuild, buildNumber);
+
+        for (Iterator<Entry> it = cases.values().iterator(); it.hasNext();) {
+            if (it.next().lastRun <= lastBuild - EXPIRE_BUILDS)
+                it.remove();
+        }
+    }
+
+    /**
+     * @return expected duration in milliseconds, or null if the test case has no history.
+     */
+    public Long getDuration(String name) {
+        Entry entry = cases.get(name);
+        return entry == null ? null : entry.duration;
+    }
+
+    public boolean isRecentlyFailed(String name) {
+        Entry entry = cases.get(name);
+        return entry != null && entry.lastFailure > 0 && entry.lastFailure > lastBuild - RECENT_BUILDS;
+    }
+
+    /**
+     * Orders test cases for execution: recently failed ones first (the latest failure first),
+     * then test cases without history, then the others longest first.
+     */
+    public List<String> order(Collection<String> names) {
+        List<String> result = new ArrayList<String>(names);
+        Collections.sort(result, new Comparator<String>() {
+            public int compare(String o1, String o2) {
+                return Long.valueOf(rank(o2)).compareTo(rank(o1));
+            }
+
+            private long rank(String name) {
+                Entry entry = cases.get(name);
+                if (entry == null)
+                    return Long.MAX_VALUE / 2;
+                if (isRecentlyFailed(name))
+                    return Long.MAX_VALUE / 2 + entry.lastFailure;
+                return entry.duration;
+            }
+        });
+        return result;
+    }
+}
@@ -0,0 +1,395 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openqa.selenium.JavascriptExecutor;
+import org.openqa.selenium.WebDriver;
+
+import com.google.common.base.Supplier;
+
+/**
+ * Pool of live {@link WebDriver}s kept in the agent JVM, so that builds on the same node
+ * can skip the browser cold start.
+ *
+ * <p>
+ * Drivers are pooled per key (browser and driver options). A driver is reset
+ * (cookies, storage, extra windows) and health-checked before it is handed out again,
+ * and it is quit once it has been idle for {@link #IDLE_TIMEOUT} milliseconds
+ * or used {@link #MAX_USES} times. At most {@link #MAX_IDLE} drivers are kept idle; returning one more quits
+ * the driver idle for the longest time, whatever its key.
+ *
+ * <p>
+ * A driver can also be started ahead of its build with {@link #warm(String, Supplier)}; acquiring a key that
+ * is still warming waits for that browser instead of starting a second one.
+ *
+ * <p>
+ * The pool of each JVM is registered as the MBean <tt>jp.haya10.jenkins.seleneserunnerplugin:type=WebDriverPool</tt>.
+ */
+public class WebDriverPool implements WebDriverPoolMBean {
+
+    private static final Logger LOGGER = Logger.getLogger(WebDriverPool.class.getName());
+
+    public static final long IDLE_TIMEOUT = Long.getLong(WebDriverPool.class.getName() + ".idleTimeout",
+        TimeUnit.MINUTES.toMillis(10));
+
+    public static final int MAX_USES = Integer.getInteger(WebDriverPool.class.getName() + ".maxUses", 50);
+
+    public static final int MAX_IDLE = Integer.getInteger(WebDriverPool.class.getName() + ".maxIdle", 4);
+
+    private static final WebDriverPool INSTANCE = new WebDriverPool(IDLE_TIMEOUT, MAX_USES, MAX_IDLE);
+
+    static {
+        SeleneseMetrics.register("type=WebDriverPool", INSTANCE, WebDriverPoolMBean.class);
+    }
+
+    public static WebDriverPool getInstance() {
+        return INSTANCE;
+    }
+
+    private static class Entry {
+        final String key;
+        final WebDriver driver;
+        int uses;
+        long lastUsed;
+
+        Entry(String key, WebDriver driver) {
+            this.key = key;
+            this.driver = driver;
+        }
+    }
+
+    private final long idleTimeout;
+
+    private final int maxUses;
+
+    private final int maxIdle;
+
+    private final Map<String, LinkedList<Entry>> idle = new HashMap<String, LinkedList<Entry>>();
+
+    private final Map<WebDriver, Entry> leased = new IdentityHashMap<WebDriver, Entry>();
+
+    private final Map<String, Future<?>> warming = new HashMap<String, Future<?>>();
+
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    private Thread reaper;
+
+    WebDriverPool(long idleTimeout, int maxUses) {
+        this(idleTimeout, maxUses, Integer.MAX_VALUE);
+    }
+
+    WebDriverPool(long idleTimeout, int maxUses, int maxIdle) {
+        this.idleTimeout = idleTimeout;
+        this.maxUses = maxUses;
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * Returns a reset, healthy pooled driver for the key, or a new one from the factory.
+     */
+    public WebDriver acquire(String key, Supplier<WebDriver> factory) {
+        awaitWarming(key);
+        Entry entry;
+        while ((entry = pollIdle(key)) != null) {
+            if (isHealthy(entry.driver) && reset(entry.driver)) {
+                return lease(entry);
+            }
+            quitQuietly(entry.driver);
+        }
+        return lease(new Entry(key, factory.get()));
+    }
+
+    /**
+     * Returns the driver to the pool. Drivers that reached {@link #MAX_USES} are quit, and so is the oldest idle
+     * driver if the pool is full.
+     */
+    public void release(WebDriver driver) {
+        WebDriver quit = driver;
+        synchronized (this) {
+            Entry entry = leased.remove(driver);
+            if (entry != null && entry.uses < maxUses) {
+                Entry evicted = addIdle(entry);
+                if (evicted == null)
+                    return;
+                quit = evicted.driver;
+            }
+        }
+        quitQuietly(quit);
+    }
+
+    /**
+     * Starts a driver for the key on a background thread and adds it to the idle drivers.
+     *
+     * @return false if a driver is already warming for the key.
+     */
+    public synchronized boolean warm(final String key, final Supplier<WebDriver> factory) {
+        if (warming.containsKey(key))
+            return false;
+        FutureTask<Void> task = new FutureTask<Void>(new Runnable() {
+            public void run() {
+                try {
+                    WebDriver driver = factory.get();
+                    Entry evicted;
+                    synchronized (WebDriverPool.this) {
+                        evicted = addIdle(new Entry(key, driver));
+                    }
+                    if (evicted != null)
+                        quitQuietly(evicted.driver);
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "failed to warm a driver for " + key, e);
+                } finally {
+                    synchronized (WebDriverPool.this) {
+                        warming.remove(key);
+                    }
+                }
+            }
+        }, null);
+        warming.put(key, task);
+        Thread thread = new Thread(task, "WebDriverPool warmup " + key);
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    /**
+     * Takes a driver started by {@link #warm(String, Supplier)} and never used, for a run that does not
+     * return its drivers to the pool. The caller quits it.
+     *
+     * @return the driver, or null if none was warmed for the key.
+     */
+    public WebDriver takeWarmed(String key) {
+        awaitWarming(key);
+        Entry entry;
+        while ((entry = pollWarmed(key)) != null) {
+            if (isHealthy(entry.driver))
+                return entry.driver;
+            quitQuietly(entry.driver);
+        }
+        return null;
+    }
+
+    /**
+     * Quits the driver instead of returning it, e.g. after the run failed unexpectedly.
+     */
+    public void discard(WebDriver driver) {
+        synchronized (this) {
+            leased.remove(driver);
+        }
+        quitQuietly(driver);
+    }
+
+    public synchronized int getIdleCount() {
+        int count = 0;
+        for (LinkedList<Entry> entries : idle.values()) {
+            count += entries.size();
+        }
+        return count;
+    }
+
+    public synchronized int getLeasedCount() {
+        return leased.size();
+    }
+
+    /**
+     * @return number of threads waiting for a driver that is still starting.
+     */
+    public int getWaitingCount() {
+        return waiting.get();
+    }
+
+    /**
+     * Quits all idle drivers whose idle timeout has passed.
+     */
+    public void evictExpired() {
+        evict(System.currentTimeMillis() - idleTimeout);
+    }
+
+    /**
+     * Quits all idle drivers, before the JVM exits.
+     */
+    public void quitIdle() {
+        evict(Long.MAX_VALUE);
+    }
+
+    private void evict(long deadline) {
+        LinkedList<Entry> expired = new LinkedList<Entry>();
+        synchronized (this) {
+            for (Iterator<LinkedList<Entry>> it = idle.values().iterator(); it.hasNext();) {
+                LinkedList<Entry> entries = it.next();
+                for (Iterator<Entry> e = entries.iterator(); e.hasNext();) {
+                    Entry entry = e.next();
+                    if (entry.lastUsed < deadline) {
+                        expired.add(entry);
+                        e.remove();
+                    }
+                }
+                if (entries.isEmpty())
+                    it.remove();
+            }
+        }
+        for (Entry entry : expired) {
+            quitQuietly(entry.driver);
+        }
+    }
+
+    private void awaitWarming(String key) {
+        Future<?> future;
+        synchronized (this) {
+            future = warming.get(key);
+        }
+        if (future == null)
+            return;
+        waiting.incrementAndGet();
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            LOGGER.log(Level.FINE, "driver warmup failed", e);
+        } finally {
+            waiting.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return the driver removed to keep at most {@link #maxIdle} idle drivers, to be quit by the caller, or null.
+     */
+    private Entry addIdle(Entry entry) {
+        entry.lastUsed = System.currentTimeMillis();
+        LinkedList<Entry> entries = idle.get(entry.key);
+        if (entries == null) {
+            entries = new LinkedList<Entry>();
+            idle.put(entry.key, entries);
+        }
+        entries.addFirst(entry);
+        startReaper();
+        if (getIdleCount() <= maxIdle)
+            return null;
+
+        //the last entry of each key is the one idle the longest.
+        Map.Entry<String, LinkedList<Entry>> oldest = null;
+        for (Map.Entry<String, LinkedList<Entry>> e : idle.entrySet()) {
+            if (oldest == null || e.getValue().getLast().lastUsed < oldest.getValue().getLast().lastUsed)
+                oldest = e;
+        }
+        Entry evicted = oldest.getValue().removeLast();
+        if (oldest.getValue().isEmpty())
+            idle.remove(oldest.getKey());
+        return evicted;
+    }
+
+    private synchronized Entry pollWarmed(String key) {
+        LinkedList<Entry> entries = idle.get(key);
+        if (entries == null)
+            return null;
+        for (Iterator<Entry> it = entries.iterator(); it.hasNext();) {
+            Entry entry = it.next();
+            if (entry.uses == 0) {
+                it.remove();
+                if (entries.isEmpty())
+                    idle.remove(key);
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private synchronized Entry pollIdle(String key) {
+        LinkedList<Entry> entries = idle.get(key);
+        if (entries == null)
+            return null;
+        Entry entry = entries.poll();
+        if (entries.isEmpty())
+            idle.remove(key);
+        return entry;
+    }
+
+    private synchronized WebDriver lease(Entry entry) {
+        entry.uses++;
+        leased.put(entry.driver, entry);
+        return entry.driver;
+    }
+
+    private synchronized void startReaper() {
+        if (reaper != null)
+            return;
+        reaper = new Thread("WebDriverPool reaper") {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(Math.max(1000, idleTimeout / 2));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    evictExpired();
+                }
+            }
+        };
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+
+    static boolean isHealthy(WebDriver driver) {
+        try {
+            return !driver.getWindowHandles().isEmpty();
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.FINE, "pooled driver is not healthy", e);
+            return false;
+        }
+    }
+
+    /**
+     * Closes the windows but the first one, clears the storage and cookies of its page, and leaves it on
+     * <tt>about:blank</tt>, whose cookies are deleted again since some drivers only delete them for the current page.
+     *
+     * <p>
+     * WebDriver only reaches the storage and cookies of the origin the window is on, so those of the other origins
+     * the last run visited survive the reset. Jobs that need a clean browser should not reuse their browsers.
+     *
+     * @return false if the driver failed, and must be quit.
+     */
+    static boolean reset(WebDriver driver) {
+        try {
+            Set<String> handles = driver.getWindowHandles();
+            String first = handles.iterator().next();
+            for (String handle : handles) {
+                if (!handle.equals(first)) {
+                    driver.switchTo().window(handle).close();
+                }
+            }
+            driver.switchTo().window(first);
+            if (driver instanceof JavascriptExecutor) {
+                ((JavascriptExecutor) driver).executeScript(
+                    "try { window.localStorage.clear(); window.sessionStorage.clear(); } catch (e) {}");
+            }
+            driver.manage().deleteAllCookies();
+            driver.get("about:blank");
+            driver.manage().deleteAllCookies();
+            return true;
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.FINE, "failed to reset pooled driver", e);
+            return false;
+        }
+    }
+
+    static void quitQuietly(WebDriver driver) {
+        try {
+            driver.quit();
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.FINE, "failed to quit driver", e);
+        }
+    }
+}
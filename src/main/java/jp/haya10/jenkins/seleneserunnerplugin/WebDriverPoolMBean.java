@@ -0,0 +1,13 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+/**
+ * Attributes of the {@link WebDriverPool} MBean.
+ */
+public interface WebDriverPoolMBean {
+
+    int getIdleCount();
+
+    int getLeasedCount();
+
+    int getWaitingCount();
+}
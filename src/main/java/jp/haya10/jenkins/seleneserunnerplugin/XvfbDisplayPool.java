@@ -0,0 +1,275 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+import hudson.util.StreamCopyThread;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.output.NullOutputStream;
+
+/**
+ * Pool of Xvfb virtual displays kept running in the agent JVM, so that runs on the same Linux node
+ * can each have their own display without wrapper scripts.
+ *
+ * <p>
+ * A display is handed to one run at a time and goes back to the pool afterwards. Displays are
+ * numbered from {@link #BASE_DISPLAY} up, skipping numbers used by other X servers, and are shut down
+ * once they have been idle for {@link #IDLE_TIMEOUT} milliseconds or when the agent JVM exits.
+ */
+public class XvfbDisplayPool {
+
+    private static final Logger LOGGER = Logger.getLogger(XvfbDisplayPool.class.getName());
+
+    public static final long IDLE_TIMEOUT = Long.getLong(XvfbDisplayPool.class.getName() + ".idleTimeout",
+        TimeUnit.MINUTES.toMillis(10));
+
+    public static final int BASE_DISPLAY = Integer.getInteger(XvfbDisplayPool.class.getName() + ".baseDisplay", 99);
+
+    public static final String SCREEN = System.getProperty(XvfbDisplayPool.class.getName() + ".screen", "1280x1024x24");
+
+    static final long STARTUP_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+
+    private static final int MAX_START_ATTEMPTS = 10;
+
+    private static XvfbDisplayPool instance;
+
+    /**
+     * @return the pool of this JVM, or null if Xvfb is not found on the <tt>PATH</tt> (e.g. not on Linux).
+     */
+    public static synchronized XvfbDisplayPool getInstance() {
+        if (instance == null) {
+            if (File.pathSeparatorChar != ':')
+                return null;
+            File xvfb = ExecutableResolver.getInstance().resolve("Xvfb");
+            if (xvfb == null)
+                return null;
+            instance = new XvfbDisplayPool(xvfb.getPath(), new File("/tmp"), BASE_DISPLAY, IDLE_TIMEOUT);
+            //only the pool of the JVM, other pools (e.g. of tests) are shut down by their owner.
+            final XvfbDisplayPool pool = instance;
+            Runtime.getRuntime().addShutdownHook(new Thread("XvfbDisplayPool shutdown") {
+                @Override
+                public void run() {
+                    pool.shutdown();
+                }
+            });
+        }
+        return instance;
+    }
+
+    private static class Display {
+        final int number;
+        final Process process;
+        long lastUsed;
+
+        Display(int number, Process process) {
+            this.number = number;
+            this.process = process;
+        }
+
+        String getName() {
+            return ":" + number;
+        }
+
+        boolean isAlive() {
+            try {
+                process.exitValue();
+                return false;
+            } catch (IllegalThreadStateException e) {
+                return true;
+            }
+        }
+    }
+
+    private final String executable;
+
+    private final File tmpDir;
+
+    private final int baseDisplay;
+
+    private final long idleTimeout;
+
+    private final LinkedList<Display> idle = new LinkedList<Display>();
+
+    private final Map<String, Display> leased = new HashMap<String, Display>();
+
+    private final Object startLock = new Object();
+
+    private Thread reaper;
+
+    /**
+     * @param tmpDir
+     *      directory holding the X lock files and the <tt>.X11-unix</tt> socket directory.
+     */
+    XvfbDisplayPool(String executable, File tmpDir, int baseDisplay, long idleTimeout) {
+        this.executable = executable;
+        this.tmpDir = tmpDir;
+        this.baseDisplay = baseDisplay;
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * @return name of an idle display like ":99", or of a newly started one.
+     */
+    public String acquire() throws IOException, InterruptedException {
+        Display display;
+        while ((display = pollIdle()) != null) {
+            if (display.isAlive())
+                return lease(display);
+        }
+        return lease(start());
+    }
+
+    /**
+     * Returns the display to the pool.
+     */
+    public synchronized void release(String name) {
+        Display display = leased.remove(name);
+        if (display == null || !display.isAlive())
+            return;
+        display.lastUsed = System.currentTimeMillis();
+        idle.addFirst(display);
+        startReaper();
+    }
+
+    public synchronized int getIdleCount() {
+        return idle.size();
+    }
+
+    public synchronized int getLeasedCount() {
+        return leased.size();
+    }
+
+    /**
+     * Shuts down all idle displays whose idle timeout has passed.
+     */
+    public void evictExpired() {
+        List<Display> expired = new ArrayList<Display>();
+        synchronized (this) {
+            long deadline = System.currentTimeMillis() - idleTimeout;
+            for (Iterator<Display> it = idle.iterator(); it.hasNext();) {
+                Display display = it.next();
+                if (display.lastUsed < deadline) {
+                    expired.add(display);
+                    it.remove();
+                }
+            }
+        }
+        for (Display display : expired) {
+            LOGGER.fine("shut down idle display " + display.getName());
+            display.process.destroy();
+        }
+    }
+
+    /**
+     * Shuts down every display, including the leased ones.
+     */
+    public void shutdown() {
+        List<Display> all = new ArrayList<Display>();
+        synchronized (this) {
+            all.addAll(idle);
+            all.addAll(leased.values());
+            idle.clear();
+            leased.clear();
+        }
+        for (Display display : all) {
+            display.process.destroy();
+        }
+    }
+
+    private Display start() throws IOException, InterruptedException {
+        //one at a time, so that a display is never taken for the socket of another starting Xvfb.
+        synchronized (startLock) {
+            return doStart();
+        }
+    }
+
+    private Display doStart() throws IOException, InterruptedException {
+        int number = baseDisplay;
+        for (int attempt = 0; attempt < MAX_START_ATTEMPTS; attempt++) {
+            number = nextFreeNumber(number);
+            Process process = new ProcessBuilder(executable, ":" + number, "-screen", "0", SCREEN, "-nolisten", "tcp")
+                .redirectErrorStream(true).start();
+            new StreamCopyThread("Xvfb :" + number, process.getInputStream(), new NullOutputStream()).start();
+
+            Display display = new Display(number, process);
+            if (waitForSocket(display))
+                return display;
+            //another X server took the number meanwhile, or Xvfb failed to start.
+            process.destroy();
+            number++;
+        }
+        throw new IOException("failed to start " + executable + " after " + MAX_START_ATTEMPTS + " attempts");
+    }
+
+    private boolean waitForSocket(Display display) throws InterruptedException {
+        File socket = getSocket(display.number);
+        long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT;
+        while (System.currentTimeMillis() < deadline) {
+            if (!display.isAlive())
+                return false;
+            if (socket.exists())
+                return true;
+            Thread.sleep(50);
+        }
+        return false;
+    }
+
+    private synchronized int nextFreeNumber(int from) {
+        int number = from;
+        while (isUsed(number)) {
+            number++;
+        }
+        return number;
+    }
+
+    private boolean isUsed(int number) {
+        if (leased.containsKey(":" + number))
+            return true;
+        for (Display display : idle) {
+            if (display.number == number)
+                return true;
+        }
+        return getSocket(number).exists() || new File(tmpDir, ".X" + number + "-lock").exists();
+    }
+
+    private File getSocket(int number) {
+        return new File(new File(tmpDir, ".X11-unix"), "X" + number);
+    }
+
+    private synchronized Display pollIdle() {
+        return idle.poll();
+    }
+
+    private synchronized String lease(Display display) {
+        leased.put(display.getName(), display);
+        return display.getName();
+    }
+
+    private synchronized void startReaper() {
+        if (reaper != null)
+            return;
+        reaper = new Thread("XvfbDisplayPool reaper") {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(Math.max(1000, idleTimeout / 2));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    evictExpired();
+                }
+            }
+        };
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+}
@@ -0,0 +1,142 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class BrowserLimiterTest {
+
+    @Test
+    public void testLimit() throws Exception {
+        BrowserLimiter limiter = new BrowserLimiter(2);
+        assertThat(limiter.tryAcquire(0, TimeUnit.MILLISECONDS), is(true));
+        assertThat(limiter.tryAcquire(0, TimeUnit.MILLISECONDS), is(true));
+        assertThat(limiter.tryAcquire(10, TimeUnit.MILLISECONDS), is(false));
+
+        limiter.release();
+        assertThat(limiter.tryAcquire(0, TimeUnit.MILLISECONDS), is(true));
+    }
+
+    @Test
+    public void testUsed() throws Exception {
+        BrowserLimiter limiter = new BrowserLimiter(3);
+        assertThat(limiter.getUsed(), is(0));
+        limiter.acquire();
+        limiter.acquire();
+        assertThat(limiter.getUsed(), is(2));
+
+        //sessions over a lowered limit are still counted.
+        limiter.setLimit(1);
+        assertThat(limiter.getUsed(), is(2));
+        limiter.release();
+        assertThat(limiter.getUsed(), is(1));
+    }
+
+    @Test
+    public void testSetLimit() throws Exception {
+        BrowserLimiter limiter = new BrowserLimiter(2);
+        limiter.tryAcquire(0, TimeUnit.MILLISECONDS);
+        limiter.tryAcquire(0, TimeUnit.MILLISECONDS);
+
+        limiter.setLimit(3);
+        assertThat(limiter.getLimit(), is(3));
+        assertThat(limiter.tryAcquire(0, TimeUnit.MILLISECONDS), is(true));
+
+        //the running sessions keep their slots, and the next one waits until only 1 is left.
+        limiter.setLimit(1);
+        limiter.release();
+        limiter.release();
+        assertThat(limiter.tryAcquire(0, TimeUnit.MILLISECONDS), is(false));
+        limiter.release();
+        assertThat(limiter.tryAcquire(0, TimeUnit.MILLISECONDS), is(true));
+    }
+
+    @Test
+    public void testDefaultLimit() {
+        BrowserLimiter limiter = new BrowserLimiter(1);
+        limiter.setLimit(0);
+        assertThat(limiter.getLimit(), is(BrowserLimiter.getDefaultLimit()));
+        assertThat(BrowserLimiter.getDefaultLimit() >= 1, is(true));
+    }
+
+    @Test
+    public void testFairQueue() throws Exception {
+        final BrowserLimiter limiter = new BrowserLimiter(1);
+        limiter.tryAcquire(0, TimeUnit.MILLISECONDS);
+
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch done = new CountDownLatch(3);
+        for (int i = 0; i < 3; i++) {
+            final int id = i;
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        limiter.acquire();
+                        order.add(id);
+                        limiter.release();
+                    } catch (InterruptedException e) {
+                        //ignore
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+            //queue the threads in order.
+            while (limiter.getQueueLength() < i + 1) {
+                Thread.sleep(1);
+            }
+        }
+        assertThat(limiter.getQueueLength(), is(3));
+
+        limiter.release();
+        assertThat(done.await(10, TimeUnit.SECONDS), is(true));
+        assertThat(order.toString(), is("[0, 1, 2]"));
+        assertThat(limiter.getQueueLength(), is(0));
+    }
+
+    @Test
+    public void testAcquireSeveral() throws Exception {
+        BrowserLimiter limiter = new BrowserLimiter(3);
+        //never more than the limit, so a run with more shards than slots does not wait forever.
+        assertThat(limiter.acquire(5), is(3));
+        assertThat(limiter.tryAcquire(0, TimeUnit.MILLISECONDS), is(false));
+        limiter.release(3);
+        assertThat(limiter.acquire(2), is(2));
+        assertThat(limiter.tryAcquire(0, TimeUnit.MILLISECONDS), is(true));
+        assertThat(limiter.tryAcquire(0, TimeUnit.MILLISECONDS), is(false));
+    }
+
+    @Test
+    public void testAcquireInterrupted() throws Exception {
+        final BrowserLimiter limiter = new BrowserLimiter(1);
+        limiter.acquire();
+
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        Thread waiting = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    limiter.acquire();
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                }
+            }
+        };
+        waiting.start();
+        while (limiter.getQueueLength() < 1) {
+            Thread.sleep(1);
+        }
+        waiting.interrupt();
+        assertThat(interrupted.await(10, TimeUnit.SECONDS), is(true));
+        assertThat(limiter.getQueueLength(), is(0));
+    }
+}
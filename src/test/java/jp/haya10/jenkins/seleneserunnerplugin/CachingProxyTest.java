@@ -0,0 +1,253 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.matchers.JUnitMatchers.containsString;
+
+import java.io.IOException;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import jp.vmi.selenium.webdriver.DriverOptions;
+import jp.vmi.selenium.webdriver.DriverOptions.DriverOption;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+@SuppressWarnings("javadoc")
+public class CachingProxyTest {
+
+    private HttpServer app;
+
+    private final Map<String, AtomicInteger> requests = new ConcurrentHashMap<String, AtomicInteger>();
+
+    private CachingProxy proxy;
+
+    private CachingProxy.Port port;
+
+    @Before
+    public void setUp() throws IOException {
+        app = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        app.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                String path = exchange.getRequestURI().getPath();
+                requests.putIfAbsent(path, new AtomicInteger());
+                int count = requests.get(path).incrementAndGet();
+                if (path.equals("/missing.css")) {
+                    exchange.sendResponseHeaders(404, -1);
+                    exchange.close();
+                    return;
+                }
+                if (path.equals("/nostore.css"))
+                    exchange.getResponseHeaders().add("Cache-Control", "no-store");
+                if (path.equals("/vary.css"))
+                    exchange.getResponseHeaders().add("Vary", "Accept-Language");
+                byte[] body = (path + " " + count).getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        app.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (proxy != null)
+            proxy.close();
+        app.stop(0);
+    }
+
+    @Test
+    public void testCache() throws Exception {
+        proxy = start(1024 * 1024, 60000);
+
+        assertThat(get("/app.css"), is("/app.css 1"));
+        assertThat(get("/app.css"), is("/app.css 1"));
+        assertThat(requests.get("/app.css").get(), is(1));
+
+        //pages do not match the rules.
+        assertThat(get("/index.html"), is("/index.html 1"));
+        assertThat(get("/index.html"), is("/index.html 2"));
+
+        assertThat(port.getStats()[0], is(1L));
+        assertThat(port.getStats()[1], is(1L));
+        assertThat(port.getStats()[2], is((long) "/app.css 1".length()));
+    }
+
+    @Test
+    public void testNotStored() throws Exception {
+        proxy = start(1024 * 1024, 60000);
+
+        assertThat(get("/nostore.css"), is("/nostore.css 1"));
+        assertThat(get("/nostore.css"), is("/nostore.css 2"));
+
+        assertThat(status("/missing.css"), is(404));
+        assertThat(status("/missing.css"), is(404));
+        assertThat(requests.get("/missing.css").get(), is(2));
+        assertThat(port.getStats()[0], is(0L));
+    }
+
+    @Test
+    public void testVary() throws Exception {
+        proxy = start(1024 * 1024, 60000);
+
+        assertThat(get("/vary.css"), is("/vary.css 1"));
+        assertThat(get("/vary.css"), is("/vary.css 2"));
+        assertThat(port.getStats()[0], is(0L));
+    }
+
+    @Test
+    public void testCredentials() throws Exception {
+        proxy = start(1024 * 1024, 60000);
+
+        //responses to a logged-in user are not kept, nor served from the cache.
+        assertThat(get("/user.css", "Cookie", "session=1"), is("/user.css 1"));
+        assertThat(get("/user.css"), is("/user.css 2"));
+        assertThat(get("/user.css", "Authorization", "Basic dXNlcjpwYXNz"), is("/user.css 3"));
+        assertThat(get("/user.css", "Cookie", "session=1"), is("/user.css 4"));
+        assertThat(get("/user.css"), is("/user.css 2"));
+        assertThat(port.getStats()[0], is(1L));
+
+        assertThat(CachingProxy.isAnonymous(Collections.singletonList(new String[] { "Accept", "*/*" })), is(true));
+        assertThat(CachingProxy.isAnonymous(Collections.singletonList(new String[] { "cookie", "a=b" })), is(false));
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        //room for 2 entries of 10 bytes.
+        proxy = start(20, 60000);
+
+        get("/one.css");
+        get("/two.css");
+        get("/one.css");
+        get("/six.css");
+
+        //two.css was the least recently used.
+        assertThat(get("/one.css"), is("/one.css 1"));
+        assertThat(get("/two.css"), is("/two.css 2"));
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        proxy = start(1024 * 1024, 0);
+
+        get("/app.css");
+        Thread.sleep(10);
+        assertThat(get("/app.css"), is("/app.css 2"));
+    }
+
+    @Test
+    public void testPorts() throws Exception {
+        proxy = start(1024 * 1024, 60000);
+        get("/app.css");
+
+        //another run at the same time counts its own requests, and shares the cache.
+        CachingProxy.Port first = port;
+        port = proxy.lease();
+        assertThat(port.getAddress().equals(first.getAddress()), is(false));
+        get("/app.css");
+        get("/app.css");
+        assertThat(port.getStats()[0], is(2L));
+        assertThat(port.getStats()[1], is(0L));
+        assertThat(first.getStats()[0], is(0L));
+        assertThat(first.getStats()[1], is(1L));
+
+        //the port released last is leased first, counting from 0.
+        proxy.release(first);
+        proxy.release(port);
+        assertThat(proxy.getNextAddress(), is(port.getAddress()));
+        CachingProxy.Port next = proxy.lease();
+        assertThat(next, is(port));
+        assertThat(next.getStats()[0], is(0L));
+    }
+
+    @Test
+    public void testDriverOptions() throws Exception {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        DriverOptions opt = SeleneseRunnerCallable.newDriverOptions(spec("http://app.example.com:8080/"),
+            "127.0.0.1:3128", new PrintStream(log, true, "UTF-8"));
+        assertThat(opt.get(DriverOption.PROXY), is("127.0.0.1:3128"));
+        assertThat(log.toString("UTF-8").contains("do not use a proxy"), is(false));
+
+        //browsers bypass the proxy for the application on localhost.
+        opt = SeleneseRunnerCallable.newDriverOptions(spec("http://localhost:8080/"), "127.0.0.1:3128",
+            new PrintStream(log, true, "UTF-8"));
+        assertThat(opt.get(DriverOption.PROXY), is("127.0.0.1:3128"));
+        assertThat(log.toString("UTF-8"), containsString("do not use a proxy for http://localhost:8080/"));
+
+        opt = SeleneseRunnerCallable.newDriverOptions(spec("http://localhost:8080/"), null,
+            new PrintStream(log, true, "UTF-8"));
+        assertThat(opt.get(DriverOption.PROXY), nullValue());
+    }
+
+    @Test
+    public void testLoopback() {
+        assertThat(SeleneseRunnerCallable.isLoopback("http://localhost/"), is(true));
+        assertThat(SeleneseRunnerCallable.isLoopback("http://127.0.0.1:8080/app"), is(true));
+        assertThat(SeleneseRunnerCallable.isLoopback("http://[::1]:8080/"), is(true));
+        assertThat(SeleneseRunnerCallable.isLoopback("http://ci-app:8080/"), is(false));
+        assertThat(SeleneseRunnerCallable.isLoopback(""), is(false));
+    }
+
+    private CachingProxy start(long maxBytes, long maxAge) throws IOException {
+        CachingProxy started = new CachingProxy(Arrays.asList("\\.css$"), maxBytes, 1024, maxAge);
+        port = started.lease();
+        return started;
+    }
+
+    private SeleneseRunSpec spec(String baseUrl) throws Exception {
+        SeleneseRunnerBuilder builder = new SeleneseRunnerBuilder("*.html", "firefox", true, true, "", baseUrl, "",
+            "1024x768", "");
+        Map<String, String> env = Collections.emptyMap();
+        return new SeleneseRunSpec(builder, "firefox", null, null, "", Arrays.asList(Arrays.asList("case.html")),
+            null, null, 0, null, EnvironmentDiff.of(env, env));
+    }
+
+    private HttpURLConnection open(String path, String... header) throws IOException {
+        String[] address = port.getAddress().split(":");
+        Proxy http = new Proxy(Proxy.Type.HTTP, new InetSocketAddress(address[0], Integer.parseInt(address[1])));
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + app.getAddress().getPort()
+            + path).openConnection(http);
+        if (header.length > 0)
+            connection.setRequestProperty(header[0], header[1]);
+        return connection;
+    }
+
+    private String get(String path, String... header) throws IOException {
+        InputStream in = open(path, header).getInputStream();
+        try {
+            return IOUtils.toString(in, "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    private int status(String path) throws IOException {
+        HttpURLConnection connection = open(path);
+        try {
+            return connection.getResponseCode();
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import jp.haya10.jenkins.seleneserunnerplugin.CaseHistoryStore.CaseStats;
+import jp.haya10.jenkins.seleneserunnerplugin.CaseHistoryStore.Record;
+import jp.haya10.jenkins.seleneserunnerplugin.CaseHistoryStore.Timing;
+import jp.haya10.jenkins.seleneserunnerplugin.SeleneseRunReport.CaseResult;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+@SuppressWarnings("javadoc")
+public class CaseHistoryStoreTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File dir;
+
+    @Before
+    public void setUp() {
+        dir = tmp.getRoot();
+    }
+
+    @Test
+    public void testReadLastBuilds() throws Exception {
+        CaseHistoryStore store = CaseHistoryStore.of(dir);
+        assertThat(store.isEmpty(), is(true));
+        store.append(1, "firefox", Arrays.asList(new CaseResult("a", 100, true), new CaseResult("b", 200, false)));
+        store.append(2, "firefox", Arrays.asList(new CaseResult("a", 300, true, 2, "chrome")));
+        store.append(3, "firefox", Arrays.asList(new CaseResult("b", 400, true)));
+
+        List<Record> records = store.read(2);
+        assertThat(records.size(), is(2));
+        assertThat(records.get(0).getBuild(), is(2));
+        assertThat(records.get(0).getBrowser(), is("chrome"));
+        assertThat(records.get(0).getStatus(), is(CaseHistoryStore.Status.FLAKY));
+        assertThat(records.get(1).getName(), is("b"));
+        assertThat(records.get(1).getBrowser(), is("firefox"));
+        assertThat(records.get(1).getDuration(), is(400L));
+        assertThat(store.read(10).size(), is(4));
+    }
+
+    @Test
+    public void testBuildSteps() throws Exception {
+        CaseHistoryStore store = CaseHistoryStore.of(dir);
+        store.append(1, "firefox", Arrays.asList(new CaseResult("a", 100, true)));
+        //two build steps of build 2, and build 3 and 4 running at the same time.
+        store.append(2, "firefox", Arrays.asList(new CaseResult("a", 200, true)));
+        store.append(2, "chrome", Arrays.asList(new CaseResult("a", 300, true)));
+        store.append(3, "firefox", Arrays.asList(new CaseResult("a", 400, true)));
+        store.append(4, "firefox", Arrays.asList(new CaseResult("a", 500, true)));
+        store.append(3, "chrome", Arrays.asList(new CaseResult("a", 600, true)));
+
+        assertThat(new File(dir, CaseHistoryStore.INDEX).length(), is(5L * CaseHistoryStore.INDEX_SIZE));
+        //both entries of build 3, around the one of build 4.
+        List<Record> records = store.read(1);
+        assertThat(records.size(), is(2));
+        assertThat(records.get(0).getDuration(), is(400L));
+        assertThat(records.get(1).getDuration(), is(600L));
+        records = store.read(2);
+        assertThat(records.size(), is(3));
+        assertThat(records.get(1).getBuild(), is(3));
+        assertThat(records.get(2).getBuild(), is(4));
+        records = store.read(3);
+        assertThat(records.size(), is(5));
+        assertThat(records.get(0).getBuild(), is(2));
+        assertThat(records.get(1).getBrowser(), is("chrome"));
+        assertThat(store.read(10).size(), is(6));
+    }
+
+    @Test
+    public void testTimings() throws Exception {
+        CaseHistoryStore store = CaseHistoryStore.of(dir);
+        assertThat(store.readTimings(10).size(), is(0));
+        store.appendTiming(new Timing(1, 1000, 100, 10));
+        store.appendTiming(new Timing(2, 2000, 200, 20));
+        //build 3 and 4 at the same time, with two build steps of build 3.
+        store.appendTiming(new Timing(3, 3000, 300, 30));
+        store.appendTiming(new Timing(4, 4000, 400, 40));
+        store.appendTiming(new Timing(3, 5000, 500, 50));
+
+        List<Timing> timings = store.readTimings(2);
+        assertThat(timings.size(), is(2));
+        assertThat(timings.get(0).getBuild(), is(3));
+        assertThat(timings.get(0).getCaseDuration(), is(5000L));
+        assertThat(timings.get(1).getBuild(), is(4));
+        assertThat(timings.get(1).getCommandP90(), is(40L));
+        timings = store.readTimings(10);
+        assertThat(timings.size(), is(4));
+        assertThat(timings.get(0).getDriverStartup(), is(100L));
+
+        FileOutputStream out = new FileOutputStream(new File(dir, CaseHistoryStore.TIMINGS), true);
+        out.write(new byte[] { 0, 0, 0 });
+        out.close();
+        store.appendTiming(new Timing(5, 6000, 600, 60));
+        assertThat(store.readTimings(1).get(0).getCaseDuration(), is(6000L));
+    }
+
+    @Test
+    public void testForget() throws Exception {
+        File job = tmp.newFolder("job");
+        CaseHistoryStore store = CaseHistoryStore.of(job);
+        assertThat(CaseHistoryStore.of(job) == store, is(true));
+
+        CaseHistoryStore.forget(job);
+        assertThat(CaseHistoryStore.of(job) == store, is(false));
+
+        store = CaseHistoryStore.of(job);
+        job.delete();
+        CaseHistoryStore.forget(null);
+        assertThat(CaseHistoryStore.of(job) == store, is(false));
+    }
+
+    @Test
+    public void testStats() throws Exception {
+        CaseHistoryStore store = CaseHistoryStore.of(dir);
+        store.append(1, "firefox", Arrays.asList(new CaseResult("fast", 10, true), new CaseResult("slow", 900, false)));
+        store.append(2, "firefox", Arrays.asList(new CaseResult("fast", 30, true), new CaseResult("slow", 1100, true)));
+
+        List<CaseStats> slowest = store.getSlowest(10, 1);
+        assertThat(slowest.size(), is(1));
+        assertThat(slowest.get(0).getName(), is("slow"));
+        assertThat(slowest.get(0).getMean(), is(1000L));
+
+        List<CaseStats> flaky = store.getFlaky(10);
+        assertThat(flaky.size(), is(1));
+        assertThat(flaky.get(0).getName(), is("slow"));
+        assertThat(store.getFlaky(1).size(), is(0));
+    }
+
+    @Test
+    public void testPartialIndexEntryIgnored() throws Exception {
+        CaseHistoryStore store = CaseHistoryStore.of(dir);
+        store.append(1, "firefox", Arrays.asList(new CaseResult("a", 100, true)));
+        FileOutputStream out = new FileOutputStream(new File(dir, CaseHistoryStore.INDEX), true);
+        out.write(new byte[] { 0, 0, 0 });
+        out.close();
+        assertThat(store.read(10).size(), is(1));
+
+        store.append(2, "firefox", Arrays.asList(new CaseResult("b", 100, true)));
+        assertThat(store.read(10).size(), is(2));
+        assertThat(new File(dir, CaseHistoryStore.INDEX).length(), is((long) CaseHistoryStore.INDEX_SIZE * 2));
+    }
+}
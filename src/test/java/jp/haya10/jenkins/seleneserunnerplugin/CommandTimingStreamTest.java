@@ -0,0 +1,35 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class CommandTimingStreamTest {
+
+    @Test
+    public void testCommandsAreTimed() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SeleneseRunReport report = new SeleneseRunReport();
+        CommandTimingStream stream = new CommandTimingStream(out, report);
+        PrintStream log = new PrintStream(stream, true);
+
+        stream.startCase();
+        log.println("[INFO] Start: Simple test");
+        log.println("[INFO] - [Success] Command#1: open(\"/\")");
+        log.println("[INFO] - [Success] Command#2: type(\"name=q\", \"selenium\")");
+        log.println("[INFO] - [Success] Command#3: type(\"name=q\", \"jenkins\")");
+        log.print("[INFO] End");
+        stream.close();
+
+        assertThat(report.getCommands().size(), is(2));
+        assertThat(report.getCommands().get("open").getCount(), is(1L));
+        assertThat(report.getCommands().get("type").getCount(), is(2L));
+        assertThat(out.toString().endsWith("[INFO] End"), is(true));
+    }
+}
@@ -0,0 +1,98 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import hudson.FilePath;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+@SuppressWarnings("javadoc")
+public class ContentStoreTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File dir;
+
+    @Before
+    public void setUp() {
+        dir = tmp.getRoot();
+    }
+
+    @Test
+    public void testDigestNewFiles() throws Exception {
+        FilePath screenshots = new FilePath(new File(dir, "screenshot"));
+        screenshots.child("old.png").write("old", "UTF-8");
+        screenshots.child(".staging-0/tmp.png").write("tmp", "UTF-8");
+        Map<String, Long> before = screenshots.act(new ContentStore.Snapshot());
+        screenshots.child("a.png").write("same", "UTF-8");
+        screenshots.child("node1/b.png").write("same", "UTF-8");
+
+        Map<String, String> files = screenshots.act(new ContentStore.DigestFiles(before));
+        assertThat(files.size(), is(2));
+        assertThat(files.containsKey("old.png"), is(false));
+        assertThat(files.get("a.png"), is(files.get("node1/b.png")));
+    }
+
+    @Test
+    public void testDeleteStoredFiles() throws Exception {
+        FilePath screenshots = new FilePath(new File(dir, "screenshot"));
+        screenshots.child("old.png").write("old", "UTF-8");
+        screenshots.child("a.png").write("a", "UTF-8");
+        screenshots.child("node1/b.png").write("b", "UTF-8");
+
+        int deleted = screenshots.act(new ContentStore.DeleteFiles(Arrays.asList("a.png", "node1/b.png", "gone.png")));
+        assertThat(deleted, is(2));
+        assertThat(screenshots.child("old.png").exists(), is(true));
+        assertThat(screenshots.child("node1").exists(), is(false));
+        assertThat(screenshots.exists(), is(true));
+    }
+
+    @Test
+    public void testReferenceCount() throws Exception {
+        FilePath source = new FilePath(new File(dir, "a.png"));
+        source.write("png", "UTF-8");
+        ContentStore store = ContentStore.of(new File(dir, "store"));
+
+        Map<String, FilePath> contents = new HashMap<String, FilePath>();
+        contents.put("0123456789abcdef", source);
+        assertThat(store.add(contents), is(1));
+        assertThat(store.add(contents), is(0));
+        assertThat(store.getRefCount("0123456789abcdef"), is(2));
+        assertThat(FileUtils.readFileToString(store.getFile("0123456789abcdef")), is("png"));
+
+        store.release(Arrays.asList("0123456789abcdef"));
+        assertThat(store.getFile("0123456789abcdef").isFile(), is(true));
+        store.release(Arrays.asList("0123456789abcdef"));
+        assertThat(store.getFile("0123456789abcdef").exists(), is(false));
+        assertThat(store.getRefCount("0123456789abcdef"), is(0));
+    }
+
+    @Test
+    public void testForget() throws Exception {
+        File job = tmp.newFolder("job");
+        ContentStore store = ContentStore.of(new File(job, ContentStore.DIRNAME));
+        assertThat(ContentStore.of(new File(job, ContentStore.DIRNAME)) == store, is(true));
+
+        //the store directory is only created by the first build keeping screenshots.
+        ContentStore.forget(null);
+        assertThat(ContentStore.of(new File(job, ContentStore.DIRNAME)) == store, is(true));
+
+        ContentStore.forget(job);
+        assertThat(ContentStore.of(new File(job, ContentStore.DIRNAME)) == store, is(false));
+
+        store = ContentStore.of(new File(job, ContentStore.DIRNAME));
+        job.delete();
+        ContentStore.forget(null);
+        assertThat(ContentStore.of(new File(job, ContentStore.DIRNAME)) == store, is(false));
+    }
+}
@@ -0,0 +1,59 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class DurationHistogramTest {
+
+    @Test
+    public void testEmpty() {
+        DurationHistogram histogram = new DurationHistogram();
+        assertThat(histogram.getCount(), is(0L));
+        assertThat(histogram.getMean(), is(0L));
+        assertThat(histogram.getPercentile(90), is(0L));
+    }
+
+    @Test
+    public void testPercentile() {
+        DurationHistogram histogram = new DurationHistogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.add(i * 10);
+        }
+        assertThat(histogram.getCount(), is(100L));
+        assertThat(histogram.getMax(), is(1000L));
+        assertThat(histogram.getMean(), is(505L));
+        assertThat(histogram.getPercentile(100), is(1000L));
+
+        // estimates are at most one bucket (25%) above the exact value.
+        long p50 = histogram.getPercentile(50);
+        assertTrue(p50 >= 500 && p50 <= 625);
+        long p90 = histogram.getPercentile(90);
+        assertTrue(p90 >= 900 && p90 <= 1000);
+    }
+
+    @Test
+    public void testMerge() {
+        DurationHistogram a = new DurationHistogram();
+        a.add(10);
+        DurationHistogram b = new DurationHistogram();
+        b.add(30);
+        b.add(20000);
+        a.merge(b);
+
+        assertThat(a.getCount(), is(3L));
+        assertThat(a.getTotal(), is(20040L));
+        assertThat(a.getMax(), is(20000L));
+    }
+
+    @Test
+    public void testBucketOf() {
+        assertThat(DurationHistogram.bucketOf(0), is(0));
+        assertThat(DurationHistogram.bucketOf(1), is(0));
+        assertThat(DurationHistogram.bucketOf(2), is(1));
+        assertThat(DurationHistogram.bucketOf(Long.MAX_VALUE), is(DurationHistogram.BOUNDS.length - 1));
+    }
+}
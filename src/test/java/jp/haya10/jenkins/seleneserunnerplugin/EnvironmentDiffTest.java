@@ -0,0 +1,35 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class EnvironmentDiffTest {
+
+    @Test
+    public void testDiff() {
+        Map<String, String> agent = new HashMap<String, String>();
+        agent.put("PATH", "/usr/bin");
+        agent.put("HOME", "/home/jenkins");
+        agent.put("TMP", "/tmp");
+
+        Map<String, String> build = new HashMap<String, String>();
+        build.put("PATH", "/opt/bin:/usr/bin");
+        build.put("HOME", "/home/jenkins");
+        build.put("BUILD_NUMBER", "1");
+
+        EnvironmentDiff diff = EnvironmentDiff.of(agent, build);
+        assertThat(diff.getChanged().size(), is(2));
+        assertThat(diff.getChanged().get("PATH"), is("/opt/bin:/usr/bin"));
+        assertThat(diff.getChanged().get("BUILD_NUMBER"), is("1"));
+        assertThat(diff.getRemoved(), is(Collections.singleton("TMP")));
+
+        assertThat(diff.applyTo(agent), is(build));
+    }
+}
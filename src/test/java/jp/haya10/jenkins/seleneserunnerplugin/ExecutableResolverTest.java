@@ -0,0 +1,91 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+@SuppressWarnings("javadoc")
+public class ExecutableResolverTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File root;
+
+    private File bin1;
+
+    private File bin2;
+
+    private String path;
+
+    @Before
+    public void setUp() {
+        root = tmp.getRoot();
+        bin1 = new File(root, "bin1");
+        bin2 = new File(root, "bin2");
+        bin1.mkdirs();
+        bin2.mkdirs();
+        path = new File(root, "missing").getPath() + File.pathSeparator + bin1.getPath() + File.pathSeparator + bin2.getPath();
+    }
+
+    @Test
+    public void testResolve() throws IOException {
+        File tool = executable(bin2, "chromedriver");
+
+        ExecutableResolver resolver = new ExecutableResolver();
+        assertThat(resolver.resolve("chromedriver", path), is(tool));
+        assertThat(resolver.resolve("phantomjs", path), nullValue());
+    }
+
+    @Test
+    public void testCacheInvalidatedByDirectoryChange() throws IOException {
+        File second = executable(bin2, "chromedriver");
+        long mtime = bin1.lastModified();
+
+        ExecutableResolver resolver = new ExecutableResolver();
+        assertThat(resolver.resolve("chromedriver", path), is(second));
+
+        File first = executable(bin1, "chromedriver");
+        bin1.setLastModified(mtime + 2000);
+        assertThat(resolver.resolve("chromedriver", path), is(first));
+    }
+
+    @Test
+    public void testCacheInvalidatedByRemovedFile() throws IOException {
+        File tool = executable(bin1, "chromedriver");
+
+        ExecutableResolver resolver = new ExecutableResolver();
+        assertThat(resolver.resolve("chromedriver", path), is(tool));
+
+        long mtime = bin1.lastModified();
+        tool.delete();
+        bin1.setLastModified(mtime);
+        assertThat(resolver.resolve("chromedriver", path), nullValue());
+    }
+
+    @Test
+    public void testFindAll() throws IOException {
+        File first = executable(bin1, "chromedriver");
+        File second = executable(bin2, "chromedriver");
+
+        assertThat(ExecutableResolver.findAll("chromedriver", path).size(), is(2));
+        assertThat(ExecutableResolver.findAll("chromedriver", path).get(0), is(first));
+        assertThat(ExecutableResolver.findAll("chromedriver", path).get(1), is(second));
+    }
+
+    private File executable(File dir, String name) throws IOException {
+        File file = new File(dir, File.pathSeparatorChar == ';' ? name + ".exe" : name);
+        FileUtils.touch(file);
+        file.setExecutable(true);
+        return file;
+    }
+}
@@ -0,0 +1,170 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Properties;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+@SuppressWarnings("javadoc")
+public class JUnitMergerTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File dir;
+
+    @Before
+    public void setUp() {
+        dir = tmp.getRoot();
+    }
+
+    @Test
+    public void testMerge() throws Exception {
+        FileUtils.writeStringToFile(new File(dir, "TEST-a.xml"), "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<testsuite name=\"a\" tests=\"2\">\n"
+            + "  <testcase classname=\"a\" name=\"ok\" time=\"1.5\"/>\n"
+            + "  <testcase classname=\"a\" name=\"ng\" time=\"0.5\"><failure message=\"x\">x</failure></testcase>\n"
+            + "</testsuite>\n");
+        FileUtils.writeStringToFile(new File(dir, "firefox/TEST-b.xml"), "<?xml version=\"1.0\"?>\n"
+            + "<testsuites><testsuite name=\"b\"><testcase classname=\"b\" name=\"err\" time=\"1\">"
+            + "<error>e</error></testcase></testsuite></testsuites>");
+        FileUtils.writeStringToFile(new File(dir, "attempt-1/TEST-a.xml"), "<testsuite name=\"a\"/>");
+
+        JUnitSummary summary = JUnitMerger.merge(dir, "job#1");
+        assertThat(summary.getTests(), is(3));
+        assertThat(summary.getFailures(), is(1));
+        assertThat(summary.getErrors(), is(1));
+        assertThat(summary.getDuration(), is(3000L));
+        assertThat(summary.getFailedCases(), is(Arrays.asList("a.ng", "b.err")));
+
+        File merged = new File(dir, JUnitMerger.MERGED);
+        Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(merged);
+        assertThat(document.getDocumentElement().getTagName(), is("testsuites"));
+        assertThat(document.getElementsByTagName("testsuite").getLength(), is(2));
+        assertThat(document.getElementsByTagName("testcase").getLength(), is(3));
+        assertThat(new File(dir, "TEST-a.xml").exists(), is(false));
+        assertThat(new File(dir, "firefox/TEST-b.xml").exists(), is(false));
+        assertThat(new File(dir, "attempt-1").exists(), is(false));
+
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(new File(dir, JUnitMerger.SUMMARY));
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        assertThat(properties.getProperty("tests"), is("3"));
+        assertThat(properties.getProperty("failed.1"), is("b.err"));
+    }
+
+    @Test
+    public void testMergeAgain() throws Exception {
+        FileUtils.writeStringToFile(new File(dir, "TEST-a.xml"),
+            "<testsuite name=\"a\"><testcase classname=\"a\" name=\"one\" time=\"1\"/></testsuite>");
+        JUnitMerger.merge(dir, "job#1");
+        FileUtils.writeStringToFile(new File(dir, "TEST-b.xml"),
+            "<testsuite name=\"b\"><testcase classname=\"b\" name=\"two\" time=\"1\"/></testsuite>");
+
+        //another selenese step of the same build.
+        assertThat(JUnitMerger.clean(dir, "job#1"), is(false));
+        assertThat(JUnitMerger.merge(dir, "job#1").getTests(), is(2));
+        assertThat(dir.list().length, is(2));
+    }
+
+    @Test
+    public void testAttempts() throws Exception {
+        FileUtils.writeStringToFile(new File(dir, "attempt-1/TEST-a.xml"), "<testsuite name=\"a\">"
+            + "<testcase classname=\"a\" name=\"flaky\" time=\"1\"><failure message=\"first\">f1</failure></testcase>"
+            + "<testcase classname=\"a\" name=\"broken\" time=\"1\"><error type=\"E\">e1</error></testcase>"
+            + "</testsuite>");
+        FileUtils.writeStringToFile(new File(dir, "attempt-2/TEST-a.xml"), "<testsuite name=\"a\">"
+            + "<testcase classname=\"a\" name=\"broken\" time=\"1\"><error type=\"E\">e2</error></testcase>"
+            + "</testsuite>");
+        FileUtils.writeStringToFile(new File(dir, "TEST-a.xml"), "<testsuite name=\"a\">"
+            + "<testcase classname=\"a\" name=\"flaky\" time=\"1\"/>"
+            + "<testcase classname=\"a\" name=\"broken\" time=\"1\"><error type=\"E\">e3</error></testcase>"
+            + "</testsuite>");
+
+        //the attempts do not count, only the final results.
+        JUnitSummary summary = JUnitMerger.merge(dir, "job#1");
+        assertThat(summary.getTests(), is(2));
+        assertThat(summary.getFailures(), is(0));
+        assertThat(summary.getErrors(), is(1));
+        assertThat(new File(dir, "attempt-1").exists(), is(false));
+
+        Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(
+            new File(dir, JUnitMerger.MERGED));
+        NodeList flaky = document.getElementsByTagName("flakyFailure");
+        assertThat(flaky.getLength(), is(1));
+        assertThat(((Element) flaky.item(0)).getAttribute("message"), is("first"));
+        assertThat(((Element) flaky.item(0).getParentNode()).getAttribute("name"), is("flaky"));
+        NodeList reruns = document.getElementsByTagName("rerunError");
+        assertThat(reruns.getLength(), is(2));
+        assertThat(reruns.item(0).getTextContent(), is("e1"));
+        assertThat(reruns.item(1).getTextContent(), is("e2"));
+        assertThat(((Element) reruns.item(1).getParentNode()).getAttribute("name"), is("broken"));
+
+        //merging again for another selenese step does not add them twice.
+        assertThat(JUnitMerger.merge(dir, "job#1").getTests(), is(2));
+        document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new File(dir, JUnitMerger.MERGED));
+        assertThat(document.getElementsByTagName("rerunError").getLength(), is(2));
+    }
+
+    @Test
+    public void testQualify() throws Exception {
+        FileUtils.writeStringToFile(new File(dir, "firefox/TEST-a.xml"), "<?xml version=\"1.0\"?>\n"
+            + "<testsuite name=\"a\"><testcase classname=\"a\" name=\"one\" time=\"1\"/></testsuite>");
+        FileUtils.writeStringToFile(new File(dir, "chrome/TEST-a.xml"), "<?xml version=\"1.0\"?>\n"
+            + "<testsuite name=\"a\"><testcase classname=\"a\" name=\"one\" time=\"1\"/></testsuite>");
+        JUnitMerger.qualify(new File(dir, "firefox"), "firefox");
+        JUnitMerger.qualify(new File(dir, "chrome"), "chrome");
+        //already qualified.
+        JUnitMerger.qualify(new File(dir, "chrome"), "chrome");
+
+        //the merged results tell the browsers apart.
+        JUnitSummary summary = JUnitMerger.merge(dir, "job#1");
+        assertThat(summary.getTests(), is(2));
+        Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(
+            new File(dir, JUnitMerger.MERGED));
+        NodeList suites = document.getElementsByTagName("testsuite");
+        assertThat(((Element) suites.item(0)).getAttribute("name"), is("chrome.a"));
+        assertThat(((Element) suites.item(1)).getAttribute("name"), is("firefox.a"));
+        NodeList cases = document.getElementsByTagName("testcase");
+        assertThat(((Element) cases.item(0)).getAttribute("classname"), is("chrome.a"));
+        assertThat(((Element) cases.item(1)).getAttribute("classname"), is("firefox.a"));
+        assertThat(((Element) cases.item(1)).getAttribute("name"), is("one"));
+    }
+
+    @Test
+    public void testTwoBuilds() throws Exception {
+        FileUtils.writeStringToFile(new File(dir, "TEST-a.xml"),
+            "<testsuite name=\"a\"><testcase classname=\"a\" name=\"one\" time=\"1\"/></testsuite>");
+        assertThat(JUnitMerger.clean(dir, "job#1"), is(false));
+        assertThat(JUnitMerger.merge(dir, "job#1").getTests(), is(1));
+
+        //the next build starts from its own results only.
+        assertThat(JUnitMerger.clean(dir, "job#2"), is(true));
+        assertThat(new File(dir, JUnitMerger.MERGED).exists(), is(false));
+        FileUtils.writeStringToFile(new File(dir, "TEST-a.xml"),
+            "<testsuite name=\"a\"><testcase classname=\"a\" name=\"one\" time=\"2\"/></testsuite>");
+        JUnitSummary summary = JUnitMerger.merge(dir, "job#2");
+        assertThat(summary.getTests(), is(1));
+        assertThat(summary.getDuration(), is(2000L));
+        assertThat(JUnitMerger.clean(dir, "job#2"), is(false));
+    }
+}
@@ -0,0 +1,69 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class LogForwarderTest {
+
+    /**
+     * Counts the writes, like the round trips of a remote stream.
+     */
+    static class CountingStream extends ByteArrayOutputStream {
+        int writes;
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            writes++;
+            super.write(b, off, len);
+        }
+    }
+
+    @Test
+    public void testBatches() throws IOException {
+        CountingStream out = new CountingStream();
+        LogForwarder forwarder = new LogForwarder(out, 1024, 60000, 4096);
+        PrintStream log = new PrintStream(forwarder, true);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            log.println("[INFO] - [Success] Command#" + i + ": open(\"/\")");
+            expected.append("[INFO] - [Success] Command#" + i + ": open(\"/\")").append(System.getProperty("line.separator"));
+        }
+        forwarder.close();
+
+        assertThat(out.toString(), is(expected.toString()));
+        assertThat(out.writes < 100, is(true));
+    }
+
+    @Test
+    public void testFlushInterval() throws Exception {
+        CountingStream out = new CountingStream();
+        LogForwarder forwarder = new LogForwarder(out, 1024, 10, 4096);
+        forwarder.write("selenese start.".getBytes());
+        for (int i = 0; i < 100 && out.size() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertThat(out.toString(), is("selenese start."));
+        forwarder.close();
+    }
+
+    @Test
+    public void testQuietFilter() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LogForwarder.QuietFilter filter = new LogForwarder.QuietFilter(out);
+        PrintStream log = new PrintStream(filter, true);
+        log.println("[INFO] - [Success] Command#1: open(\"/\")");
+        log.println("[INFO] - [Failure] Command#2: assertTitle(\"Google\")");
+        log.print("[ERROR] Unexpected exception");
+        filter.close();
+
+        assertThat(out.toString(), is("[INFO] - [Failure] Command#2: assertTitle(\"Google\")"
+            + System.getProperty("line.separator") + "[ERROR] Unexpected exception"));
+    }
+}
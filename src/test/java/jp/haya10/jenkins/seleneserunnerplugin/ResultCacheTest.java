@@ -0,0 +1,77 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import hudson.FilePath;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+@SuppressWarnings("javadoc")
+public class ResultCacheTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File dir;
+
+    @Before
+    public void setUp() {
+        dir = tmp.getRoot();
+    }
+
+    @Test
+    public void testKey() throws Exception {
+        FilePath workspace = new FilePath(new File(dir, "workspace"));
+        FilePath script = workspace.child("case.html");
+        script.write("open", "UTF-8");
+        List<String> files = Arrays.asList(script.getRemote());
+        List<String> parts = Arrays.asList("firefox", "http://example.com/", "1.0");
+
+        String key = ResultCache.key(workspace, files, parts);
+        assertThat(ResultCache.key(workspace, files, parts), is(key));
+        assertThat(ResultCache.key(workspace, files, Arrays.asList("firefox", "http://example.com/", "1.1")),
+            not(is(key)));
+        script.write("click", "UTF-8");
+        assertThat(ResultCache.key(workspace, files, parts), not(is(key)));
+    }
+
+    @Test
+    public void testPutAndGet() throws Exception {
+        ResultCache cache = new ResultCache(new File(dir, "cache"));
+        FilePath junitdir = new FilePath(new File(dir, "junitresult"));
+        junitdir.child("TEST-case.xml").write("<testsuite/>", "UTF-8");
+        SeleneseRunReport report = new SeleneseRunReport();
+        report.addCase("case.html", 100, true);
+        report.addCommand("open", 50);
+
+        assertThat(cache.get("0123", junitdir), is(nullValue()));
+        cache.put("0123", report, junitdir);
+        junitdir.deleteRecursive();
+
+        SeleneseRunReport cached = cache.get("0123", junitdir);
+        assertThat(cached.getCases().size(), is(1));
+        assertThat(cached.getCommands().get("open").getCount(), is(1L));
+        assertThat(junitdir.child("TEST-case.xml").readToString(), is("<testsuite/>"));
+    }
+
+    @Test
+    public void testEvict() throws Exception {
+        ResultCache cache = new ResultCache(new File(dir, "cache"));
+        for (int i = 0; i <= ResultCache.MAX_ENTRIES; i++) {
+            cache.put("key" + i, new SeleneseRunReport(), null);
+            new File(dir, "cache/key" + i).setLastModified(1000L * (i + 1));
+        }
+        cache.put("last", new SeleneseRunReport(), null);
+        assertThat(new File(dir, "cache").list().length, is(ResultCache.MAX_ENTRIES));
+        assertThat(cache.get("key0", null), is(nullValue()));
+    }
+}
@@ -0,0 +1,269 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.junit.matchers.JUnitMatchers.containsString;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+@SuppressWarnings("javadoc")
+public class RunnerDaemonTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File dir;
+
+    private final CountDownLatch running = new CountDownLatch(1);
+
+    private final CountDownLatch aborted = new CountDownLatch(1);
+
+    private RunnerDaemonServer server;
+
+    private Thread serving;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = tmp.getRoot();
+
+        //runs without a browser: the browser of the spec tells what the run does.
+        server = new RunnerDaemonServer("token") {
+            @Override
+            SeleneseRunReport run(SeleneseRunSpec spec, PrintStream logger) throws Exception {
+                logger.println("run on " + spec.getBrowser());
+                if (spec.getBrowser().equals("error"))
+                    throw new IOException("no such browser");
+                if (spec.getBrowser().equals("wait")) {
+                    running.countDown();
+                    try {
+                        Thread.sleep(60000);
+                    } catch (InterruptedException e) {
+                        aborted.countDown();
+                        throw e;
+                    }
+                }
+                SeleneseRunReport report = new SeleneseRunReport();
+                report.addCase("case.html", 10, true);
+                return report;
+            }
+        };
+        serving = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    server.serve();
+                } catch (InterruptedException e) {
+                    //ignore
+                }
+            }
+        };
+        serving.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.retire();
+        serving.join(10000);
+        assertThat(serving.isAlive(), is(false));
+    }
+
+    @Test
+    public void testSync() throws Exception {
+        File versionDir = new File(dir, "v2");
+        File current = new File(versionDir, "current.jar");
+        FileUtils.writeStringToFile(current, "current");
+        File changed = new File(versionDir, "changed.jar");
+        FileUtils.writeStringToFile(changed, "old");
+        File removed = new File(versionDir, "removed.jar");
+        FileUtils.writeStringToFile(removed, "removed");
+        File log = new File(versionDir, "daemon.log");
+        FileUtils.writeStringToFile(log, "log");
+
+        Map<String, long[]> stamps = new HashMap<String, long[]>();
+        stamps.put("current.jar", new long[] { current.length(), current.lastModified() });
+        stamps.put("changed.jar", new long[] { 10, changed.lastModified() });
+        stamps.put("added.jar", new long[] { 5, 0 });
+
+        List<String> outdated = new RunnerDaemon.Sync("v2", stamps).invoke(dir, null);
+        Collections.sort(outdated);
+        assertThat(outdated.toString(), is("[added.jar, changed.jar]"));
+        assertThat(removed.exists(), is(false));
+        assertThat(current.exists(), is(true));
+        assertThat(log.exists(), is(true));
+    }
+
+    @Test
+    public void testSyncVersions() throws Exception {
+        File oldest = tmp.newFolder("v1");
+        oldest.setLastModified(System.currentTimeMillis() - 20000);
+        File previous = tmp.newFolder("v2");
+        previous.setLastModified(System.currentTimeMillis() - 10000);
+        FileUtils.writeStringToFile(new File(previous, "plugin.jar"), "running");
+
+        Map<String, long[]> stamps = Collections.singletonMap("plugin.jar", new long[] { 3, 0 });
+        assertThat(new RunnerDaemon.Sync("v3", stamps).invoke(dir, null).toString(), is("[plugin.jar]"));
+        assertThat(new File(dir, "v3").isDirectory(), is(true));
+        //a retiring daemon may still run from the previous version.
+        assertThat(new File(previous, "plugin.jar").exists(), is(true));
+        assertThat(oldest.exists(), is(false));
+    }
+
+    @Test
+    public void testVersion() throws Exception {
+        Map<String, long[]> stamps = new HashMap<String, long[]>();
+        stamps.put("plugin.jar", new long[] { 100, 1000 });
+        stamps.put("lib.jar", new long[] { 200, 2000 });
+        String version = RunnerDaemon.version(stamps);
+        assertThat(RunnerDaemon.version(new HashMap<String, long[]>(stamps)), is(version));
+
+        //an upgrade keeps the name of the plugin jar.
+        stamps.put("plugin.jar", new long[] { 100, 5000 });
+        assertThat(RunnerDaemon.version(stamps), not(is(version)));
+    }
+
+    @Test
+    public void testClasspath() throws Exception {
+        FileUtils.writeStringToFile(new File(dir, "b.jar"), "b");
+        FileUtils.writeStringToFile(new File(dir, "a.jar"), "a");
+        FileUtils.writeStringToFile(new File(dir, "a.jar.tmp"), "partial");
+
+        assertThat(RunnerDaemon.classpath(dir),
+            is(new File(dir, "a.jar").getPath() + File.pathSeparator + new File(dir, "b.jar").getPath()));
+    }
+
+    @Test
+    public void testReadLine() throws Exception {
+        InputStream in = new ByteArrayInputStream("port 1234\r\nlog".getBytes("UTF-8"));
+        assertThat(RunnerDaemon.readLine(in), is("port 1234"));
+        //the rest is left for the log.
+        assertThat(RunnerDaemon.readLine(in), is("log"));
+        assertThat(RunnerDaemon.readLine(in), nullValue());
+    }
+
+    @Test
+    public void testWrongToken() throws Exception {
+        Socket socket = new Socket(InetAddress.getByName("127.0.0.1"), server.getPort());
+        try {
+            socket.setSoTimeout(10000);
+            new DataOutputStream(socket.getOutputStream()).writeUTF("guess");
+            assertThat(socket.getInputStream().read(), is(-1));
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testReport() throws Exception {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        Socket socket = connect();
+        try {
+            SeleneseRunReport report = RunnerDaemon.run(socket, spec("firefox"), new PrintStream(log, true, "UTF-8"));
+            assertThat(report.getCases().size(), is(1));
+            assertThat(report.getCases().get(0).getName(), is("case.html"));
+        } finally {
+            socket.close();
+        }
+        assertThat(log.toString("UTF-8"), containsString("run on firefox"));
+    }
+
+    @Test
+    public void testError() throws Exception {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        Socket socket = connect();
+        try {
+            RunnerDaemon.run(socket, spec("error"), new PrintStream(log, true, "UTF-8"));
+            fail();
+        } catch (IOException e) {
+            assertThat(e.getMessage(), is("no such browser"));
+        } finally {
+            socket.close();
+        }
+        assertThat(log.toString("UTF-8"), containsString("run on error"));
+    }
+
+    @Test
+    public void testAbort() throws Exception {
+        Socket socket = connect();
+        ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+        out.writeObject(spec("wait"));
+        out.flush();
+        assertThat(running.await(10, TimeUnit.SECONDS), is(true));
+
+        //closing the connection interrupts the run in the daemon.
+        socket.close();
+        assertThat(aborted.await(10, TimeUnit.SECONDS), is(true));
+    }
+
+    @Test
+    public void testRestart() throws Exception {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        PrintStream logger = new PrintStream(log, true, "UTF-8");
+        //a daemon process on the classpath of the test, retired after 2 runs.
+        String cp = System.getProperty("java.class.path");
+        RunnerDaemon daemon = new RunnerDaemon(2);
+        try {
+            daemon.connect(dir, cp, logger).close();
+            Process first = daemon.getProcess();
+            assertThat(first, notNullValue());
+            daemon.connect(dir, cp, logger).close();
+            assertThat(daemon.getProcess(), sameInstance(first));
+
+            daemon.connect(dir, cp, logger).close();
+            Process second = daemon.getProcess();
+            assertThat(second, not(sameInstance(first)));
+            assertThat(log.toString("UTF-8"), containsString("runner daemon served 2 runs"));
+            //the retired daemon exits once its runs end.
+            assertThat(first.waitFor(), is(0));
+
+            second.destroy();
+            second.waitFor();
+            daemon.connect(dir, cp, logger).close();
+            assertThat(daemon.getProcess(), not(sameInstance(second)));
+            assertThat(log.toString("UTF-8"), containsString("runner daemon exited with"));
+        } finally {
+            daemon.retire();
+        }
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket(InetAddress.getByName("127.0.0.1"), server.getPort());
+        new DataOutputStream(socket.getOutputStream()).writeUTF("token");
+        return socket;
+    }
+
+    private SeleneseRunSpec spec(String browser) throws Exception {
+        SeleneseRunnerBuilder builder = new SeleneseRunnerBuilder("*.html", browser, true, true, "", "", "",
+            "1024x768", "");
+        Map<String, String> env = Collections.emptyMap();
+        return new SeleneseRunSpec(builder, browser, null, null, dir.getPath(), Arrays.asList(Arrays.asList(new File(
+            dir, "case.html").getPath())), null, null, 0, dir.getPath(), EnvironmentDiff.of(env, env));
+    }
+}
@@ -0,0 +1,83 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+@SuppressWarnings("javadoc")
+public class ScreenshotPipelineTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File dir;
+
+    @Before
+    public void setUp() {
+        dir = tmp.getRoot();
+    }
+
+    @Test
+    public void testDropsIdenticalScreenshots() throws Exception {
+        ScreenshotPipeline pipeline = new ScreenshotPipeline(dir, 100);
+        File staging = pipeline.newStagingDir("0");
+        FileUtils.writeByteArrayToFile(new File(staging, "1.png"), png(Color.WHITE));
+        FileUtils.writeByteArrayToFile(new File(staging, "2.png"), png(Color.WHITE));
+        FileUtils.writeByteArrayToFile(new File(staging, "3.png"), png(Color.BLACK));
+        FileUtils.writeByteArrayToFile(new File(staging, "4.png"), png(Color.WHITE));
+        pipeline.close();
+
+        assertThat(new File(dir, "1.png").isFile(), is(true));
+        assertThat(new File(dir, "2.png").exists(), is(false));
+        assertThat(new File(dir, "3.png").isFile(), is(true));
+        assertThat(new File(dir, "4.png").isFile(), is(true));
+        assertThat(pipeline.getKept(), is(3));
+        assertThat(pipeline.getDropped(), is(1));
+        assertThat(staging.exists(), is(false));
+    }
+
+    @Test
+    public void testKeepsNewestUntilClosed() throws Exception {
+        ScreenshotPipeline pipeline = new ScreenshotPipeline(dir, 100);
+        File staging = pipeline.newStagingDir("0");
+        FileUtils.writeByteArrayToFile(new File(staging, "1.png"), png(Color.WHITE));
+        pipeline.processAll(false);
+        assertThat(new File(dir, "1.png").exists(), is(false));
+
+        pipeline.close();
+        assertThat(new File(dir, "1.png").isFile(), is(true));
+    }
+
+    @Test
+    public void testDownscale() throws Exception {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(ScreenshotPipeline.encode(png(Color.WHITE), 50)));
+        assertThat(image.getWidth(), is(50));
+        assertThat(image.getHeight(), is(40));
+    }
+
+    private static byte[] png(Color color) throws IOException {
+        BufferedImage image = new BufferedImage(100, 80, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(color);
+        g.fillRect(0, 0, 100, 80);
+        g.dispose();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+}
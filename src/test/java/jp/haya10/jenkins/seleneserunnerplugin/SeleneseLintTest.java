@@ -0,0 +1,95 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+@SuppressWarnings("javadoc")
+public class SeleneseLintTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File dir;
+
+    @Before
+    public void setUp() {
+        dir = tmp.getRoot();
+    }
+
+    @Test
+    public void testValid() throws Exception {
+        File suite = new File(getClass().getResource("SeleneseRunnerBuilderTestSuite.html").toURI());
+        assertThat(SeleneseLint.check(Arrays.asList(suite.getPath()), "").getProblems().size(), is(0));
+        assertThat(SeleneseLint.check(Arrays.asList(suite.getPath()), "https://example.com/").getProblems().size(), is(0));
+    }
+
+    @Test
+    public void testUnknownCommand() throws Exception {
+        File testCase = testCase("case.html", "http://example.com/",
+            "<tr><td>open</td><td>/</td><td></td></tr>"
+                + "<tr><td>clickAndWiat</td><td>id=go</td><td></td></tr>"
+                + "<tr><td>verifyNotTextPresent</td><td>error</td><td></td></tr>"
+                + "<tr><td>assertErrorOnNext</td><td>error</td><td></td></tr>");
+        //unknown commands may still be known by selenese-runner, so they do not fail the check.
+        SeleneseLint.Result result = SeleneseLint.check(Arrays.asList(testCase.getPath()), "");
+        assertThat(result.getProblems().size(), is(0));
+        assertThat(result.getWarnings(), is(Arrays.asList(testCase + " : row 2 has unknown command 'clickAndWiat'")));
+    }
+
+    @Test
+    public void testMalformedTable() throws Exception {
+        File testCase = testCase("case.html", "http://example.com/",
+            "<tr><td>open</td><td>/</td></tr>");
+        List<String> problems = SeleneseLint.check(Arrays.asList(testCase.getPath()), "").getProblems();
+        assertThat(problems, is(Arrays.asList(testCase + " : row 1 has 2 cells instead of 3")));
+    }
+
+    @Test
+    public void testMissingTestCase() throws Exception {
+        File suite = new File(dir, "suite.html");
+        FileUtils.writeStringToFile(suite, "<html><body><table id=\"suiteTable\"><tbody>"
+            + "<tr><td><b>Test Suite</b></td></tr>"
+            + "<tr><td><a href=\"missing.html\">Missing</a></td></tr>"
+            + "</tbody></table></body></html>");
+        List<String> problems = SeleneseLint.check(Arrays.asList(suite.getPath()), "").getProblems();
+        assertThat(problems, is(Arrays.asList(new File(dir, "missing.html") + " : file not found")));
+    }
+
+    @Test
+    public void testBaseUrl() throws Exception {
+        File testCase = testCase("case.html", "example.com", "<tr><td>open</td><td>/</td><td></td></tr>");
+        assertThat(SeleneseLint.check(Arrays.asList(testCase.getPath()), "").getProblems().size(), is(1));
+        assertThat(SeleneseLint.check(Arrays.asList(testCase.getPath()), "http://example.com/").getProblems().size(), is(0));
+        assertThat(SeleneseLint.check(Arrays.asList(testCase.getPath()), "ftp://example.com/").getProblems().size(), is(1));
+        assertThat(SeleneseLint.check(Arrays.asList(testCase.getPath()), "http://").getProblems().size(), is(1));
+    }
+
+    @Test
+    public void testLocalBaseUrl() throws Exception {
+        File testCase = testCase("case.html", "http://localhost:8080/", "<tr><td>open</td><td>/</td><td></td></tr>");
+        assertThat(SeleneseLint.check(Arrays.asList(testCase.getPath()), "").getProblems().size(), is(0));
+        assertThat(SeleneseLint.check(Arrays.asList(testCase.getPath()), "http://127.0.0.1:8080/app/").getProblems().size(), is(0));
+        assertThat(SeleneseLint.check(Arrays.asList(testCase.getPath()), "http://ci-app:8080/").getProblems().size(), is(0));
+        assertThat(SeleneseLint.check(Arrays.asList(testCase.getPath()), "https://app.local/").getProblems().size(), is(0));
+        assertThat(SeleneseLint.check(Arrays.asList(testCase.getPath()), "https://staging.internal/").getProblems().size(), is(0));
+    }
+
+    private File testCase(String name, String baseUrl, String rows) throws IOException {
+        File file = new File(dir, name);
+        FileUtils.writeStringToFile(file, "<html><head><link rel=\"selenium.base\" href=\"" + baseUrl + "\" />"
+            + "</head><body><table><thead><tr><td rowspan=\"1\" colspan=\"3\">case</td></tr></thead><tbody>"
+            + rows + "</tbody></table></body></html>");
+        return file;
+    }
+}
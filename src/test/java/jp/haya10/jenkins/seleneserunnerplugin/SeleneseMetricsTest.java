@@ -0,0 +1,52 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.matchers.JUnitMatchers.containsString;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Collections;
+
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class SeleneseMetricsTest {
+
+    @Test
+    public void testRecord() {
+        SeleneseMetrics metrics = new SeleneseMetrics(false);
+        SeleneseRunReport report = new SeleneseRunReport();
+        report.addDriverStartup(2000);
+        report.addCommand("open", 100);
+        report.addCommand("click", 300);
+        report.addScreenshots(2, 1024);
+        metrics.record("firefox", report, 5000);
+        metrics.record("firefox", null, 1000);
+
+        SeleneseMetrics.BrowserMetrics firefox = metrics.getBrowsers().get("firefox");
+        assertThat(firefox.getRuns(), is(2L));
+        assertThat(firefox.getRemoteCallMeanMillis(), is(3000L));
+        assertThat(firefox.getDriverStartups(), is(1L));
+        assertThat(firefox.getCommands(), is(2L));
+        assertThat(firefox.getCommandMeanMillis(), is(200L));
+        assertThat(firefox.getScreenshotBytes(), is(1024L));
+    }
+
+    @Test
+    public void testWrite() {
+        SeleneseMetrics metrics = new SeleneseMetrics(false);
+        SeleneseRunReport report = new SeleneseRunReport();
+        report.addCommand("open", 100);
+        metrics.record("chrome", report, 1500);
+
+        StringWriter text = new StringWriter();
+        metrics.write(new PrintWriter(text), Collections.singletonMap("agent1", new long[] { 2, 1, 0 }));
+        String out = text.toString();
+        assertThat(out, containsString("seleneserunner_remote_call_seconds_count{browser=\"chrome\"} 1\n"));
+        assertThat(out, containsString("seleneserunner_remote_call_seconds_sum{browser=\"chrome\"} 1.5\n"));
+        assertThat(out, containsString("seleneserunner_command_seconds_bucket{browser=\"chrome\",le=\"+Inf\"} 1\n"));
+        assertThat(out, containsString("seleneserunner_browser_sessions{node=\"agent1\",state=\"active\"} 2\n"));
+        assertThat(out, containsString("seleneserunner_browser_sessions{node=\"agent1\",state=\"queued\"} 0\n"));
+    }
+}
@@ -0,0 +1,41 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+import hudson.model.FreeStyleProject;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+/**
+ * Submits the configuration page of a job, without running a browser.
+ */
+@SuppressWarnings("javadoc")
+public class SeleneseRunnerBuilderConfigTest {
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void testConfigRoundtrip() throws Exception {
+        FreeStyleProject p = j.createFreeStyleProject();
+        SeleneseRunnerBuilder before = new SeleneseRunnerBuilder("suite/*.html", "chrome", true, false, "screenshot",
+            "http://localhost:8080/", "junitresult", "1024x768", "", 3, true, "selenium", true, 2, 1, true, true,
+            true, 50, true, "firefox, phantomjs", true, "${BUILD_ID}", true, "\\.css$");
+        p.getBuildersList().add(before);
+
+        p = j.configRoundtrip(p);
+
+        j.assertEqualDataBoundBeans(before, p.getBuildersList().get(SeleneseRunnerBuilder.class));
+    }
+
+    @Test
+    public void testConfigRoundtripDefaults() throws Exception {
+        FreeStyleProject p = j.createFreeStyleProject();
+        SeleneseRunnerBuilder before = new SeleneseRunnerBuilder("case.html", "firefox", false, true, "", "", "",
+            "", "");
+        p.getBuildersList().add(before);
+
+        p = j.configRoundtrip(p);
+
+        j.assertEqualDataBoundBeans(before, p.getBuildersList().get(SeleneseRunnerBuilder.class));
+    }
+}
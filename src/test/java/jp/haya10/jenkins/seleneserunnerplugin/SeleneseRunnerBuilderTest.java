@@ -123,9 +123,8 @@ public class SeleneseRunnerBuilderTest {
         if (noDisplay)
             throw new AssumptionViolatedException("no display specified");
 
-        setupWebDriverManager();
         try {
-            WebDriverManager.getInstance().get();
+            DriverFactories.newDriver(WebDriverManager.FIREFOX, new DriverOptions(), System.getenv()).quit();
         } catch (WebDriverException e) {
             if (e.getMessage().contains("no display specified")) {
                 noDisplay = true;
@@ -133,10 +132,4 @@ public class SeleneseRunnerBuilderTest {
             }
         }
     }
-
-    private void setupWebDriverManager() {
-        WebDriverManager manager = WebDriverManager.getInstance();
-        manager.setWebDriverFactory(WebDriverManager.FIREFOX);
-        manager.setDriverOptions(new DriverOptions());
-    }
 }
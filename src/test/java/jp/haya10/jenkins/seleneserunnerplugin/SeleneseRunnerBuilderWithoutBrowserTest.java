@@ -2,15 +2,26 @@ package jp.haya10.jenkins.seleneserunnerplugin;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
+import hudson.FilePath;
 import hudson.util.FormValidation;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import javax.naming.directory.InvalidAttributesException;
 
 import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 public class SeleneseRunnerBuilderWithoutBrowserTest {
 
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
     @Test
     public void testBaseUrl() {
         SeleneseRunnerBuilder.DescriptorImpl d = new SeleneseRunnerBuilder.DescriptorImpl();
@@ -21,6 +32,21 @@ public class SeleneseRunnerBuilderWithoutBrowserTest {
         assertThat(d.doCheckBaseUrl("").kind, is(FormValidation.Kind.OK));
     }
 
+    @Test
+    public void testExpandSuites() throws InvalidAttributesException {
+        assertThat(new SeleneseRunnerBuilder("*.html", "firefox", true, true, "", "", "", "", "").isExpandSuites(),
+            is(false));
+        //retried and counted per test case, not per suite.
+        assertThat(newBuilder(1, 0).isExpandSuites(), is(true));
+        assertThat(newBuilder(0, 2).isExpandSuites(), is(true));
+        assertThat(newBuilder(0, 0).isExpandSuites(), is(false));
+    }
+
+    private SeleneseRunnerBuilder newBuilder(int retries, int failFast) throws InvalidAttributesException {
+        return new SeleneseRunnerBuilder("*.html", "firefox", true, true, "", "", "", "", "", 1, false, null, false,
+            failFast, retries, false, false, false, 100, false, null, false, null, false, null);
+    }
+
     @Test
     public void testGetSize() throws InvalidAttributesException {
         SeleneseRunnerBuilder b = new SeleneseRunnerBuilder(null, "", true, true, "", "", "", "1024x768", "");
@@ -65,6 +91,55 @@ public class SeleneseRunnerBuilderWithoutBrowserTest {
         size = SeleneseRunnerBuilder.parseSize("axa");
     }
 
+    @Test
+    public void testShard() {
+        List<List<String>> shards = SeleneseRunnerBuilder.shard(Arrays.asList("a", "b", "c", "d", "e"), 2);
+        assertThat(shards.size(), is(2));
+        assertThat(shards.get(0), is(Arrays.asList("a", "c", "e")));
+        assertThat(shards.get(1), is(Arrays.asList("b", "d")));
+
+        shards = SeleneseRunnerBuilder.shard(Arrays.asList("a"), 4);
+        assertThat(shards.size(), is(1));
+
+        shards = SeleneseRunnerBuilder.shard(Arrays.asList("a", "b"), 0);
+        assertThat(shards.size(), is(1));
+        assertThat(shards.get(0), is(Arrays.asList("a", "b")));
+    }
+
+    @Test
+    public void testShardByDuration() {
+        Map<String, Long> durations = new HashMap<String, Long>();
+        durations.put("a", 90L);
+        durations.put("b", 30L);
+        durations.put("c", 30L);
+        durations.put("d", 30L);
+        List<List<String>> shards = SeleneseRunnerBuilder.shard(Arrays.asList("a", "b", "c", "d", "e"), 2, durations);
+        assertThat(shards.get(0), is(Arrays.asList("a", "e")));
+        assertThat(shards.get(1), is(Arrays.asList("b", "c", "d")));
+    }
+
+    @Test
+    public void testExpandSeleneseFiles() throws Exception {
+        FilePath workspace = new FilePath(tmp.getRoot());
+        workspace.child("suite/b.html").write("", "UTF-8");
+        workspace.child("suite/a.html").write("", "UTF-8");
+        workspace.child("suite/readme.txt").write("", "UTF-8");
+
+        List<String> files = SeleneseRunnerBuilder.expandSeleneseFiles(workspace, "suite/*.html\nother.html, suite/a.html");
+        assertThat(files, is(Arrays.asList(
+            workspace.child("suite/a.html").getRemote(),
+            workspace.child("suite/b.html").getRemote(),
+            workspace.child("other.html").getRemote())));
+    }
+
+    @Test
+    public void testRelativize() {
+        assertThat(SeleneseRunnerBuilder.relativize("/ws", "/ws/suite/case.html"), is("suite/case.html"));
+        assertThat(SeleneseRunnerBuilder.relativize("/ws/", "/ws/case.html"), is("case.html"));
+        assertThat(SeleneseRunnerBuilder.relativize("C:\\ws", "C:\\ws\\suite\\case.html"), is("suite/case.html"));
+        assertThat(SeleneseRunnerBuilder.relativize("/ws", "/tmp/case.html"), is("case.html"));
+    }
+
     @Test
     public void testSizeFormat() {
         SeleneseRunnerBuilder.DescriptorImpl d = new SeleneseRunnerBuilder.DescriptorImpl();
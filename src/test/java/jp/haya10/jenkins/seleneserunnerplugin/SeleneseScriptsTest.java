@@ -0,0 +1,33 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class SeleneseScriptsTest {
+
+    @Test
+    public void testExpandSuites() throws IOException {
+        String simple = TestUtils.getScriptFile(SeleneseRunnerBuilderTest.class, "Simple");
+        String suite = TestUtils.getScriptFile(SeleneseRunnerBuilderTest.class, "Suite");
+
+        List<String> cases = SeleneseScripts.expandSuites(Arrays.asList(suite, simple));
+        assertThat(cases.size(), is(3));
+        for (String testCase : cases) {
+            assertThat(new File(testCase).getCanonicalPath(), is(simple));
+        }
+    }
+
+    @Test
+    public void testTestCaseIsNotSuite() throws IOException {
+        String simple = TestUtils.getScriptFile(SeleneseRunnerBuilderTest.class, "Simple");
+        assertThat(SeleneseScripts.getSuiteTable(SeleneseScripts.parse(new File(simple))) == null, is(true));
+    }
+}
@@ -0,0 +1,49 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+
+import jp.haya10.jenkins.seleneserunnerplugin.SeleneseRunReport.CaseResult;
+
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class TestCaseHistoryTest {
+
+    @Test
+    public void testDuration() {
+        TestCaseHistory history = new TestCaseHistory();
+        history.update(1, Arrays.asList(new CaseResult("a", 100, true)));
+        history.update(2, Arrays.asList(new CaseResult("a", 300, true)));
+        assertThat(history.getDuration("a"), is(200L));
+        assertThat(history.getDuration("b"), is(nullValue()));
+    }
+
+    @Test
+    public void testOrder() {
+        TestCaseHistory history = new TestCaseHistory();
+        history.update(1, Arrays.asList(new CaseResult("short", 10, true), new CaseResult("long", 500, true),
+            new CaseResult("failed", 20, false)));
+        history.update(2, Arrays.asList(new CaseResult("short", 10, true), new CaseResult("long", 500, true),
+            new CaseResult("failed", 20, true)));
+
+        assertThat(history.isRecentlyFailed("failed"), is(true));
+        assertThat(history.order(Arrays.asList("short", "long", "new", "failed")),
+            is(Arrays.asList("failed", "new", "long", "short")));
+    }
+
+    @Test
+    public void testExpire() {
+        TestCaseHistory history = new TestCaseHistory();
+        history.update(1, Arrays.asList(new CaseResult("failed", 20, false), new CaseResult("old", 10, true)));
+        history.update(TestCaseHistory.RECENT_BUILDS + 1, Arrays.asList(new CaseResult("failed", 20, true)));
+        assertThat(history.isRecentlyFailed("failed"), is(false));
+
+        history.update(TestCaseHistory.EXPIRE_BUILDS + 1, Arrays.asList(new CaseResult("failed", 20, true)));
+        assertThat(history.getDuration("old"), is(nullValue()));
+        assertThat(history.getDuration("failed"), is(20L));
+    }
+}
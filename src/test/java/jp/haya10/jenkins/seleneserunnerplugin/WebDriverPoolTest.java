@@ -0,0 +1,159 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.openqa.selenium.WebDriver;
+
+import com.google.common.base.Supplier;
+
+@SuppressWarnings("javadoc")
+public class WebDriverPoolTest {
+
+    private final AtomicInteger created = new AtomicInteger();
+
+    private final AtomicInteger quit = new AtomicInteger();
+
+    private final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+
+    private final Supplier<WebDriver> factory = new Supplier<WebDriver>() {
+        public WebDriver get() {
+            created.incrementAndGet();
+            return fakeDriver();
+        }
+    };
+
+    @Test
+    public void testReuse() {
+        WebDriverPool pool = new WebDriverPool(60000, 10);
+        WebDriver first = pool.acquire("firefox", factory);
+        pool.release(first);
+
+        WebDriver second = pool.acquire("firefox", factory);
+        assertThat(second, sameInstance(first));
+        assertThat(created.get(), is(1));
+
+        WebDriver other = pool.acquire("chrome", factory);
+        assertThat(other, not(sameInstance(first)));
+        assertThat(created.get(), is(2));
+    }
+
+    @Test
+    public void testMaxUses() {
+        WebDriverPool pool = new WebDriverPool(60000, 2);
+        WebDriver driver = pool.acquire("firefox", factory);
+        pool.release(driver);
+        pool.release(pool.acquire("firefox", factory));
+
+        assertThat(quit.get(), is(1));
+        assertThat(pool.getIdleCount(), is(0));
+    }
+
+    @Test
+    public void testIdleTimeout() throws InterruptedException {
+        WebDriverPool pool = new WebDriverPool(1, 10);
+        pool.release(pool.acquire("firefox", factory));
+        Thread.sleep(10);
+        pool.evictExpired();
+
+        assertThat(quit.get(), is(1));
+        assertThat(pool.getIdleCount(), is(0));
+    }
+
+    @Test
+    public void testMaxIdle() throws InterruptedException {
+        WebDriverPool pool = new WebDriverPool(60000, 10, 2);
+        WebDriver firefox = pool.acquire("firefox", factory);
+        WebDriver chrome = pool.acquire("chrome", factory);
+        WebDriver ie = pool.acquire("ie", factory);
+        pool.release(firefox);
+        Thread.sleep(10);
+        pool.release(chrome);
+        Thread.sleep(10);
+        pool.release(ie);
+
+        //the driver idle the longest makes room, whatever its key.
+        assertThat(quit.get(), is(1));
+        assertThat(pool.getIdleCount(), is(2));
+        assertThat(pool.acquire("chrome", factory), sameInstance(chrome));
+        assertThat(pool.acquire("firefox", factory), not(sameInstance(firefox)));
+        assertThat(created.get(), is(4));
+    }
+
+    @Test
+    public void testDiscard() {
+        WebDriverPool pool = new WebDriverPool(60000, 10);
+        pool.discard(pool.acquire("firefox", factory));
+
+        assertThat(quit.get(), is(1));
+        assertThat(pool.getLeasedCount(), is(0));
+        assertThat(pool.getIdleCount(), is(0));
+    }
+
+    @Test
+    public void testWarm() {
+        WebDriverPool pool = new WebDriverPool(60000, 10);
+        assertThat(pool.warm("firefox", factory), is(true));
+        WebDriver driver = pool.acquire("firefox", factory);
+        assertThat(created.get(), is(1));
+        assertThat(pool.getIdleCount(), is(0));
+
+        //a driver that was used is not handed out as warmed.
+        pool.release(driver);
+        assertThat(pool.takeWarmed("firefox"), is((WebDriver) null));
+
+        pool.warm("chrome", factory);
+        WebDriver warmed = pool.takeWarmed("chrome");
+        assertThat(warmed, not(is((WebDriver) null)));
+        assertThat(pool.getLeasedCount(), is(0));
+        assertThat(created.get(), is(2));
+    }
+
+    @Test
+    public void testReset() {
+        assertThat(WebDriverPool.reset(fakeDriver()), is(true));
+
+        //the cookies are deleted again once on about:blank.
+        assertThat(calls.lastIndexOf("deleteAllCookies") > calls.indexOf("get"), is(true));
+        assertThat(calls.indexOf("get") > calls.indexOf("deleteAllCookies"), is(true));
+    }
+
+    /**
+     * A driver that accepts every call, so that reset and health check pass.
+     */
+    private WebDriver fakeDriver() {
+        return (WebDriver) fake(WebDriver.class);
+    }
+
+    private Object fake(Class<?> type) {
+        return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { type }, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                calls.add(method.getName());
+                if (method.getName().equals("quit")) {
+                    quit.incrementAndGet();
+                    return null;
+                }
+                if (method.getName().equals("getWindowHandles"))
+                    return Collections.singleton("main");
+                if (method.getName().equals("hashCode"))
+                    return System.identityHashCode(proxy);
+                if (method.getName().equals("equals"))
+                    return proxy == args[0];
+                if (method.getReturnType().isInterface())
+                    return fake(method.getReturnType());
+                return null;
+            }
+        });
+    }
+}
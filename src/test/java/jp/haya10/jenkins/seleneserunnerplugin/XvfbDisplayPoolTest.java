@@ -0,0 +1,76 @@
+package jp.haya10.jenkins.seleneserunnerplugin;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Runs against a shell script standing in for Xvfb, which creates the display socket and waits.
+ */
+@SuppressWarnings("javadoc")
+public class XvfbDisplayPoolTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File tmpDir;
+
+    private XvfbDisplayPool pool;
+
+    @Before
+    public void setUp() throws IOException {
+        Assume.assumeTrue(File.pathSeparatorChar == ':' && new File("/bin/sh").exists());
+        tmpDir = tmp.getRoot();
+        new File(tmpDir, ".X11-unix").mkdirs();
+        File xvfb = new File(tmpDir, "Xvfb");
+        FileUtils.writeStringToFile(xvfb, "#!/bin/sh\n"
+            + "touch '" + tmpDir.getPath() + "/.X11-unix/X'\"${1#:}\"\n"
+            + "exec sleep 60\n");
+        xvfb.setExecutable(true);
+        pool = new XvfbDisplayPool(xvfb.getPath(), tmpDir, 99, 0);
+    }
+
+    @After
+    public void tearDown() {
+        if (pool != null)
+            pool.shutdown();
+    }
+
+    @Test
+    public void testAcquireRelease() throws Exception {
+        String first = pool.acquire();
+        String second = pool.acquire();
+        assertThat(first, is(":99"));
+        assertThat(second, is(not(first)));
+        assertThat(pool.getLeasedCount(), is(2));
+
+        pool.release(first);
+        assertThat(pool.getIdleCount(), is(1));
+        assertThat(pool.acquire(), is(first));
+    }
+
+    @Test
+    public void testSkipUsedDisplay() throws Exception {
+        FileUtils.touch(new File(tmpDir, ".X99-lock"));
+        assertThat(pool.acquire(), is(":100"));
+    }
+
+    @Test
+    public void testEvictExpired() throws Exception {
+        pool.release(pool.acquire());
+        Thread.sleep(10);
+        pool.evictExpired();
+        assertThat(pool.getIdleCount(), is(0));
+    }
+}